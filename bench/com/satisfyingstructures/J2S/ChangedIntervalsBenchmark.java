@@ -0,0 +1,349 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2016 Torsten Louland
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package com.satisfyingstructures.J2S;
+
+import com.satisfyingstructures.J2S.antlr.Java8Lexer;
+
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.misc.Interval;
+
+import java.util.ArrayList;
+
+/// Times ParseTreeRewriter.ChangedIntervalsList against the linear list it replaced, replaying the same sequences of
+/// changes and probes on both. The sequences are derived from the tokens of a synthetic source file, 20000 lines long
+/// by default (pass a line count to change it), rewritten densely in the way a tree walk does: mostly forward, renaming
+/// identifiers and replacing statements, probing the neighbours of each rewrite for whitespace, and occasionally
+/// reaching back to the start of an enclosing method. The forward workload is the linear list's best case, as it
+/// scans from the most recent end; the scattered workload then probes the same densely rewritten file at random
+/// positions, as happens when rewrites of outer scopes look back over text already converted. Both structures must
+/// give the same answers to every probe.
+///
+/// Not part of J2S itself; see the README for how to build and run it.
+public class ChangedIntervalsBenchmark
+{
+    private static final int CHANGED = 0;
+    private static final int IS_CHANGED = 1;
+    private static final int CONTAINING = 2;
+
+    /// The ArrayList based implementation that ChangedIntervalsList used to have, kept as the reference.
+    static class LinearChangedIntervals
+    {
+		final ArrayList<Interval> intervals = new ArrayList<>(256); // Normalised (overlapping/abutting entries merged), sorted
+
+		void changed(int start, int stop)
+		{
+            // Rewriting in response to a parse tree walk is generally done linearly going forward, with occasional
+            // larger rewrites reaching further back as the tree walk steps out to wider scopes. Therefore, rather than
+            // use a binary search, we search linearly backwards from the end, implying from most recent.
+
+            // We scan backwards for to identify all existing changed intervals that we intersect plus those that abutt
+            // each end if present, then replace them with a combined interval. We also check if the changed interval is
+            // completely contained in a gap, and if so insert it. Note that Interval represents a closed interval -
+            // both ends included.
+
+            if (0 == intervals.size())
+            {
+                intervals.add(Interval.of(start, stop));
+                return;
+            }
+
+            // Make a test interval that is one larger on each end, so that we can test for intersection with intervals
+            // that abutt in before and after
+            Interval intervalChanged = Interval.of(start, stop);
+            Interval intervalToCatch = Interval.of(start > 0 ? start-1 : 0, stop + 1);
+            Interval interval;
+            int gapStart, gapStop;
+            int combinedStart = start;
+            int combinedStop = stop;
+            final int NO_INDEX = Integer.MAX_VALUE;
+            int intersectingIndexLast = NO_INDEX;
+            int intersectingIndexFirst = NO_INDEX;
+            int insertionIndex = NO_INDEX;
+            int i = intervals.size();
+
+            // Scan backwards for the first intersection with an interval or complete containment by a gap
+            gapStop = Integer.MAX_VALUE;
+            while (0 < i--)
+            {
+                interval = intervals.get(i);
+                // Look for an intersection
+                if (!intervalToCatch.disjoint(interval))
+                {
+                    if (interval.properlyContains(intervalChanged))
+                        return; // already included in changed intervals, so nothing more to do
+                    intersectingIndexFirst = intersectingIndexLast = i;
+                    if (combinedStop < interval.b)
+                        combinedStop = interval.b;
+                    if (combinedStart > interval.a)
+                        combinedStart = interval.a;
+                    break;
+                }
+                // Create trailing gap and test
+                gapStart = interval.b + 1;
+                if (start >= gapStart && stop <= gapStop)
+                {
+                    insertionIndex = i + 1; // insert before following entry
+                    break;
+                }
+                gapStop = interval.a - 1;
+            }
+            if (0 > i && insertionIndex == NO_INDEX)
+            {
+                gapStart = 0;
+                if (start >= gapStart && stop <= gapStop)
+                    insertionIndex = i + 1; // insert before following entry
+            }
+
+            // Continue scanning backwards until last of intersecting intervals
+            if (insertionIndex == NO_INDEX)
+            while (0 < i--)
+            {
+                interval = intervals.get(i);
+                // Accumulate if we have another intersection
+                if (!intervalToCatch.disjoint(interval))
+                {
+                    intersectingIndexFirst = i;
+                    if (combinedStart > interval.a)
+                        combinedStart = interval.a;
+                }
+                else
+                    break; // done
+            }
+
+            for (i = intersectingIndexLast; i > intersectingIndexFirst; i--)
+                intervals.remove(i);
+            if (intersectingIndexFirst != NO_INDEX && intersectingIndexFirst < intervals.size())
+                intervals.set(intersectingIndexFirst, Interval.of(combinedStart, combinedStop));
+            else
+            if (insertionIndex != NO_INDEX)
+                intervals.add(insertionIndex, Interval.of(combinedStart, combinedStop));
+		}
+
+        boolean isChanged(int from, int to)
+        {
+            Interval interval;
+            int i = intervals.size();
+            while (0 < i--)
+            {
+                interval = intervals.get(i);
+                if (interval.b < from)
+                    return false;
+                if (interval.a <= to)
+                    return true;
+            }
+			return false;
+		}
+
+        Interval getChangedIntervalContaining(int from, int to)
+        {
+            Interval interval;
+            int i = intervals.size();
+            while (0 < i--)
+            {
+                interval = intervals.get(i);
+                if (interval.b < from)
+                    return null;
+                if (interval.a <= to)
+                    return interval;
+            }
+            return null;
+        }
+
+    }
+
+    private static String syntheticSource(int lines)
+    {
+        StringBuilder sb = new StringBuilder(lines * 32);
+        sb.append("package bench;\n\nclass Synthetic\n{\n    int total;\n    int[] values = new int[64];\n\n");
+        for (int m = 0, n = 7; n < lines; m++, n += 11)
+        {
+            sb.append("    public int method").append(m).append("(int a, int b)\n");
+            sb.append("    {\n");
+            sb.append("        int x").append(m).append(" = a + b * 2;\n");
+            sb.append("        String s = \"text\" + x").append(m).append(";\n");
+            sb.append("        if (x").append(m).append(" > 10) { x").append(m).append(" = x").append(m).append(" - 1; }\n");
+            sb.append("        for (int i = 0; i < x").append(m).append(" && i < values.length; i++)\n");
+            sb.append("            total += values[i];\n");
+            sb.append("        final long y = (long)x").append(m).append(" << 2;\n");
+            sb.append("        return (int)y;\n");
+            sb.append("    }\n\n");
+        }
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    /// Replay the workload, returning a checksum of the probe results.
+    private static long replay(int[] ops, int count, ChangedIntervals intervals)
+    {
+        long sum = 0;
+        for (int i = 0; i < count; i += 3)
+        {
+            switch (ops[i])
+            {
+                case CHANGED:
+                    intervals.changed(ops[i+1], ops[i+2]);
+                    break;
+                case IS_CHANGED:
+                    if (intervals.isChanged(ops[i+1], ops[i+2]))
+                        sum += i;
+                    break;
+                default:
+                    Interval interval = intervals.getChangedIntervalContaining(ops[i+1], ops[i+2]);
+                    if (null != interval)
+                        sum = 31 * sum + interval.a * 7 + interval.b;
+                    break;
+            }
+        }
+        return sum;
+    }
+
+    private interface ChangedIntervals
+    {
+        void changed(int start, int stop);
+        boolean isChanged(int from, int to);
+        Interval getChangedIntervalContaining(int from, int to);
+    }
+
+    private static class Ops
+    {
+        int[] ops = new int[1 << 16];
+        int count = 0;
+
+        void add(int op, int a, int b)
+        {
+            if (count + 3 > ops.length)
+                ops = java.util.Arrays.copyOf(ops, 2 * ops.length);
+            ops[count++] = op;
+            ops[count++] = a;
+            ops[count++] = b;
+        }
+
+        void rewrite(int from, int to)
+        {
+            // As replaceAndAdjustWhitespace does: look at what is either side, then record the change
+            add(CONTAINING, from - 1, from - 1);
+            add(IS_CHANGED, from - 1, from - 1);
+            add(CONTAINING, to + 1, to + 1);
+            add(IS_CHANGED, to + 1, to + 1);
+            add(CHANGED, from, to);
+        }
+    }
+
+    public static void main(String[] args)
+    {
+        int lines = 0 < args.length ? Integer.parseInt(args[0]) : 20000;
+        CommonTokenStream tokens = new CommonTokenStream(new Java8Lexer(new ANTLRInputStream(syntheticSource(lines))));
+        tokens.fill();
+
+        Ops ops = new Ops();
+        int statementStart = 0, methodStart = 0, methods = 0;
+        for (Token t : tokens.getTokens())
+        {
+            int i = t.getTokenIndex();
+            switch (t.getType())
+            {
+                case Java8Lexer.Identifier:
+                    ops.rewrite(i, i);
+                    break;
+                case Java8Lexer.LPAREN:
+                    if (0 == methodStart)
+                        methodStart = i;
+                    break;
+                case Java8Lexer.SEMI:
+                    if (0 == i % 3)
+                        ops.rewrite(statementStart, i - 1);
+                    statementStart = i + 1;
+                    break;
+                case Java8Lexer.RBRACE:
+                    if (0 != methodStart && 0 == ++methods % 16)
+                        ops.rewrite(methodStart, methodStart);
+                    methodStart = 0;
+                    statementStart = i + 1;
+                    break;
+                default:
+                    break;
+            }
+        }
+        System.out.println(lines+" lines, "+tokens.size()+" tokens");
+        time("forward", ops, null);
+
+        // The same again, followed by probes scattered across the whole token range
+        Ops scattered = new Ops();
+        java.util.Random random = new java.util.Random(42);
+        for (int i = 0; i < ops.count / 30; i++)
+        {
+            int from = random.nextInt(tokens.size());
+            scattered.add(0 == i % 2 ? IS_CHANGED : CONTAINING, from, from);
+        }
+        time("scattered", ops, scattered);
+    }
+
+    private static void time(String name, Ops setup, Ops probes)
+    {
+        long referenceSum = 0, treeSum = 0, referenceBest = Long.MAX_VALUE, treeBest = Long.MAX_VALUE;
+        for (int run = 0; run < 5; run++)
+        {
+            final LinearChangedIntervals reference = new LinearChangedIntervals();
+            ChangedIntervals wrappedReference = new ChangedIntervals() {
+                public void changed(int a, int b) { reference.changed(a, b); }
+                public boolean isChanged(int a, int b) { return reference.isChanged(a, b); }
+                public Interval getChangedIntervalContaining(int a, int b) { return reference.getChangedIntervalContaining(a, b); }
+            };
+            final ParseTreeRewriter.ChangedIntervalsList tree = new ParseTreeRewriter.ChangedIntervalsList();
+            ChangedIntervals wrappedTree = new ChangedIntervals() {
+                public void changed(int a, int b) { tree.changed(a, b); }
+                public boolean isChanged(int a, int b) { return tree.isChanged(a, b); }
+                public Interval getChangedIntervalContaining(int a, int b) { return tree.getChangedIntervalContaining(a, b); }
+            };
+            if (null == probes)
+            {
+                long start = System.nanoTime();
+                referenceSum = replay(setup.ops, setup.count, wrappedReference);
+                referenceBest = Math.min(referenceBest, System.nanoTime() - start);
+                start = System.nanoTime();
+                treeSum = replay(setup.ops, setup.count, wrappedTree);
+                treeBest = Math.min(treeBest, System.nanoTime() - start);
+            }
+            else
+            {
+                replay(setup.ops, setup.count, wrappedReference);
+                replay(setup.ops, setup.count, wrappedTree);
+                long start = System.nanoTime();
+                referenceSum = replay(probes.ops, probes.count, wrappedReference);
+                referenceBest = Math.min(referenceBest, System.nanoTime() - start);
+                start = System.nanoTime();
+                treeSum = replay(probes.ops, probes.count, wrappedTree);
+                treeBest = Math.min(treeBest, System.nanoTime() - start);
+            }
+        }
+        if (referenceSum != treeSum)
+        {
+            System.err.println(name+": ChangedIntervalsList disagrees with the reference implementation");
+            System.exit(1);
+        }
+        int count = (null == probes ? setup : probes).count / 3;
+        System.out.printf("%-10s %8d changes and probes: linear list %6d ms, treap %6d ms, speedup %.1fx%n", name, count,
+            referenceBest / 1000000, treeBest / 1000000, (double)referenceBest / treeBest);
+    }
+}
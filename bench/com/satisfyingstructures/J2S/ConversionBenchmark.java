@@ -0,0 +1,296 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2016 Torsten Louland
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package com.satisfyingstructures.J2S;
+
+import com.satisfyingstructures.J2S.antlr.Java8BaseListener;
+import com.satisfyingstructures.J2S.antlr.Java8Lexer;
+import com.satisfyingstructures.J2S.antlr.Java8Parser;
+
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.ParseTreeWalker;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/// Times each stage of converting a corpus of java sources, so that a change to J2S can be checked for its effect on
+/// speed: lexing; parsing with the prediction DFA cleared first (cold) and then as left by earlier parses (warm);
+/// walking the tree with J2SConverter; rewriting with replaceAndAdjustWhitespace; rendering heavily edited streams
+/// with getText, in whole and by statement; and converting for loops with J2SConvertBasicFor. Each stage is a JMH
+/// benchmark over the whole corpus, returning a checksum of what it produced so that JMH cannot optimise the work away.
+/// The parsing stages run both with J2SParserATNSimulator and with ANTLR's own ParserATNSimulator, as selected by
+/// -Dplainprediction, to show what the simulator's shortcuts save; pick one with `-p simulator=j2s` or `antlr`.
+///
+/// The corpus defaults to bench/corpus, a few java sources written for it, independent of J2S, covering generics,
+/// lambdas, nested calls, switch blocks and a large class body. They are pinned by bench/corpus/SHA256SUMS, which
+/// load checks, so that timings stay comparable as J2S changes: a corpus with a SHA256SUMS file is only timed if its
+/// java files are exactly those listed. Run from the repository root, or pass another directory of java files with
+/// `-p corpus=<directory>`.
+///
+/// Not part of J2S itself; see bench/pom.xml and the README for how to build and run it.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ConversionBenchmark
+{
+    private static class Source
+    {
+        final String name;
+        final String text;
+        CommonTokenStream tokens;
+        ParseTree tree;
+        final List<ParserRuleContext> statements = new ArrayList<>();
+        final List<ParserRuleContext> basicForStatements = new ArrayList<>();
+        J2SRewriter converted;
+
+        Source(String name, String text)
+        {
+            this.name = name;
+            this.text = text;
+        }
+    }
+
+    private static final String PINS = "SHA256SUMS";
+
+    @Param("bench/corpus")
+    public String corpus;
+
+    private final List<Source> sources = new ArrayList<>();
+
+    /// Lexes and parses the corpus, and finds what the later stages work on in the trees, once for the whole run.
+    @Setup(Level.Trial)
+    public void load() throws IOException
+    {
+        File directory = new File(corpus);
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".java"));
+        if (null == files || 0 == files.length)
+            throw new IOException("no java files in "+directory);
+        Arrays.sort(files);
+        Map<String, String> pinned = pinnedDigests(directory);
+        for (File file : files)
+        {
+            byte[] bytes = Files.readAllBytes(file.toPath());
+            if (null != pinned && !sha256(bytes).equals(pinned.remove(file.getName())))
+                throw new IOException(file+" is not as pinned in "+PINS+", so timings would not be comparable");
+            Source source = new Source(file.getName(), new String(bytes, StandardCharsets.UTF_8));
+            source.tokens = lex(source.text);
+            sources.add(source);
+        }
+        if (null != pinned && !pinned.isEmpty())
+            throw new IOException("pinned in "+PINS+" but missing from "+directory+": "+pinned.keySet());
+        parse(sources, false);
+        for (Source source : sources)
+        {
+            ParseTreeWalker.DEFAULT.walk(new Java8BaseListener() {
+                @Override public void exitStatement(Java8Parser.StatementContext ctx)
+                {
+                    source.statements.add(ctx);
+                }
+                @Override public void exitBasicForStatement(Java8Parser.BasicForStatementContext ctx)
+                {
+                    source.basicForStatements.add(ctx);
+                }
+            }, source.tree);
+            source.converted = walk(source);
+            source.converted.getText(); // ...reduces the edits, so that getText times only rendering
+        }
+    }
+
+    /// The digest of each file named in the directory's SHA256SUMS, as written by sha256sum, or null if it has none.
+    private static Map<String, String> pinnedDigests(File directory) throws IOException
+    {
+        File pins = new File(directory, PINS);
+        if (!pins.exists())
+            return null;
+        Map<String, String> digests = new HashMap<>();
+        for (String line : Files.readAllLines(pins.toPath(), StandardCharsets.UTF_8))
+        {
+            String[] parts = line.trim().split("\\s+", 2);
+            if (2 == parts.length)
+                digests.put(parts[1].startsWith("*") ? parts[1].substring(1) : parts[1], parts[0].toLowerCase());
+        }
+        return digests;
+    }
+
+    private static String sha256(byte[] bytes)
+    {
+        try
+        {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(bytes))
+                hex.append(String.format("%02x", b));
+            return hex.toString();
+        }
+        catch (NoSuchAlgorithmException ex)
+        {
+            throw new IllegalStateException(ex); // ...every java platform has SHA-256
+        }
+    }
+
+    /// Clears the DFA shared by all parsers before each cold parse, as that is what is being timed.
+    @State(Scope.Benchmark)
+    public static class ColdDFA
+    {
+        @Setup(Level.Iteration)
+        public void clear()
+        {
+            new Java8Parser(null).getInterpreter().clearDFA();
+        }
+    }
+
+    /// Which prediction engine the parsing stages use.
+    @State(Scope.Benchmark)
+    public static class Prediction
+    {
+        @Param({"j2s", "antlr"})
+        public String simulator;
+
+        boolean plain()
+        {
+            return "antlr".equals(simulator);
+        }
+    }
+
+    private static CommonTokenStream lex(String text)
+    {
+        CommonTokenStream tokens = new CommonTokenStream(new Java8Lexer(new ANTLRInputStream(text)));
+        tokens.fill();
+        return tokens;
+    }
+
+    private static long parse(List<Source> sources, boolean plainPrediction)
+    {
+        long sum = 0;
+        for (Source source : sources)
+        {
+            source.tokens.seek(0);
+            source.tree = Converter.parse(source.tokens, false, plainPrediction, new J2S.Outcome());
+            sum = 31 * sum + ((ParserRuleContext)source.tree).stop.getTokenIndex();
+        }
+        return sum;
+    }
+
+    private static J2SRewriter walk(Source source)
+    {
+        J2SRewriter rewriter = new J2SRewriter(source.tree, source.tokens);
+        J2SConverter listener = new J2SConverter(rewriter, Collections.emptyMap(), Collections.emptyMap(), null);
+        J2SParseTreeWalker.DEFAULT.walk(listener, source.tree);
+        return rewriter;
+    }
+
+    @Benchmark
+    public long lexer()
+    {
+        long sum = 0;
+        for (Source source : sources)
+            sum = 31 * sum + lex(source.text).size();
+        return sum;
+    }
+
+    // Cold parses are slow and each must start from an empty DFA, so each iteration is a single parse of the corpus
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 0)
+    @Measurement(iterations = 2)
+    public long parserCold(ColdDFA cold, Prediction prediction)
+    {
+        return parse(sources, prediction.plain());
+    }
+
+    @Benchmark
+    public long parserWarm(Prediction prediction)
+    {
+        return parse(sources, prediction.plain());
+    }
+
+    @Benchmark
+    public long walk()
+    {
+        long sum = 0;
+        for (Source source : sources)
+            sum = 31 * sum + walk(source).getInstructionCount();
+        return sum;
+    }
+
+    // Rename every identifier and drop every semicolon, then render, which is when the whitespace is settled
+    @Benchmark
+    public long whitespace()
+    {
+        long sum = 0;
+        for (Source source : sources)
+        {
+            J2SRewriter rewriter = new J2SRewriter(source.tree, source.tokens);
+            for (Token token : source.tokens.getTokens())
+                if (Java8Lexer.Identifier == token.getType())
+                    rewriter.replaceAndAdjustWhitespace(token, token.getText()+"_");
+                else if (Java8Lexer.SEMI == token.getType())
+                    rewriter.deleteAndAdjustWhitespace(token);
+            sum = 31 * sum + rewriter.getText().hashCode();
+        }
+        return sum;
+    }
+
+    // Render the streams as edited by the walk, whole and then statement by statement
+    @Benchmark
+    public long getText()
+    {
+        long sum = 0;
+        for (Source source : sources)
+        {
+            sum = 31 * sum + source.converted.getText().hashCode();
+            for (ParserRuleContext statement : source.statements)
+                sum = 31 * sum + source.converted.getText(statement).hashCode();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long basicFor()
+    {
+        long sum = 0;
+        for (Source source : sources)
+        {
+            J2SRewriter rewriter = new J2SRewriter(source.tree, source.tokens);
+            for (ParserRuleContext ctx : source.basicForStatements)
+                J2SConvertBasicFor.convert(ctx, rewriter);
+            sum = 31 * sum + rewriter.getText().hashCode();
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,561 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2016 Torsten Louland
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package com.satisfyingstructures.J2S;
+
+import com.satisfyingstructures.J2S.antlr.Java8Lexer;
+
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.misc.Interval;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/// Checks ParseTreeRewriter, which reduces and renders its rewrite operations incrementally, against simpler ways of
+/// getting the same result, over many random sequences of operations on a small java source. Run it after changing
+/// ParseTreeRewriter; it reports the first few differences, and exits with status 1 if there are any.
+///
+/// - antlr: after each of a random sequence of replaces, deletes and inserts, the text of random intervals must be the
+///   same as TokenStreamRewriter gives, or the same exception thrown for overlapping replaces. That is compared for the
+///   rendering itself; getText, which returns the original text of a range nothing has changed without rendering it,
+///   must give the same text wherever TokenStreamRewriter does not throw. As in ANTLR 4.6, which
+///   J2S targets, insertAfter(i) is insertBefore(i+1), so TokenStreamRewriter is given it that way; with that, the
+///   check holds with the 4.7 runtime too, whose own insertAfter orders text differently. writeText must write what
+///   getText returns.
+/// - render: over a source of many times the size of the chunks writeText writes in, with a mix of replaces, deletes,
+///   inserts and whitespace adjusting replaces, writeText must write exactly what getText returns, for the whole text
+///   and for random intervals around the changes.
+/// - eager: whitespace adjusting replaces must give byte for byte the same text as the old way of adjusting the
+///   whitespace at the time of each replace. That is only the same where what is either side of each replace is final
+///   when it is made, so the replaces are kept apart by tokens that are neither blank nor changed; elsewhere the old
+///   way could leave whitespace that later changes made wrong, which is why it was replaced.
+/// - rollback: rolling back to a mark, after a mix of replaces, deletes and inserts with renders in between, must leave
+///   the rewriter rendering the same text, and reporting the same changed intervals, as a rewriter that never
+///   received the operations rolled back.
+///
+/// Pass a number of random sequences to change how many are run for each check (20000 by default).
+///
+/// Not part of J2S itself; see the README for how to build and run it.
+public class ParseTreeRewriterCheck
+{
+    private static final String SOURCE =
+        "class A {\n"+
+        "    int x = a + b * c;\n"+
+        "    void f(int n) {\n"+
+        "        for (int i = 0; i < n; i++)  g(i, \"s\");\n"+
+        "    }\n"+
+        "}\n";
+
+    /// One rewrite operation, kept so that it can be replayed on another rewriter.
+    private static class Op
+    {
+        static final int INSERT_BEFORE = 0;
+        static final int INSERT_AFTER = 1;
+        static final int REPLACE = 2;   // ...or delete, when text is null
+        static final int REPLACE_ADJUSTING = 3;
+
+        final int kind;
+        final int from;
+        final int to;
+        final String text;
+
+        Op(int kind, int from, int to, String text)
+        {
+            this.kind = kind;
+            this.from = from;
+            this.to = to;
+            this.text = text;
+        }
+
+        static Op random(Random random, int tokenCount, int step)
+        {
+            int kind = random.nextInt(5);
+            int from = random.nextInt(tokenCount);
+            if (kind < REPLACE)
+                return new Op(kind, from, from, "<"+step+">");
+            int to = Math.min(tokenCount - 1, from + random.nextInt(4));
+            return new Op(REPLACE, from, to, 0 == random.nextInt(4) ? null : "<"+step+">");
+        }
+
+        /// A random op in the window of tokens from base, which may also be a whitespace adjusting replace.
+        static Op randomAdjusting(Random random, int base, int window, int tokenCount, int step)
+        {
+            Op op = random(random, Math.min(window, tokenCount - base), step);
+            if (0 == random.nextInt(2))
+                op = new Op(REPLACE_ADJUSTING, op.from, op.to, randomAdjustedText(random, step));
+            return new Op(op.kind, base + op.from, base + op.to, op.text);
+        }
+
+        void applyTo(ParseTreeRewriter rewriter)
+        {
+            switch (kind)
+            {
+                case INSERT_BEFORE:     rewriter.insertBefore(from, text); break;
+                case INSERT_AFTER:      rewriter.insertAfter(from, text); break;
+                case REPLACE_ADJUSTING: rewriter.replaceAdjustingWhitespace(from, to, text); break;
+                default:                rewriter.replace(from, to, text); break;
+            }
+        }
+
+        /// Apply to the reference rewriter, which is given insertAfter as ANTLR 4.6 defines it.
+        void applyTo(TokenStreamRewriter reference)
+        {
+            switch (kind)
+            {
+                case INSERT_BEFORE: reference.insertBefore(from, text); break;
+                case INSERT_AFTER:  reference.insertBefore(from + 1, text); break;
+                default:            reference.replace(from, to, text); break;
+            }
+        }
+    }
+
+    /// Replacement text that starts and ends with characters that recommendKeepSeparate treats differently.
+    private static String randomAdjustedText(Random random, int step)
+    {
+        switch (random.nextInt(6))
+        {
+            case 0:  return "";
+            case 1:  return "x"+step;
+            case 2:  return "("+step+")";
+            case 3:  return "= y"+step;
+            case 4:  return "z"+step+" {";
+            default: return "+";
+        }
+    }
+
+    private final CommonTokenStream tokens;
+    private final int sequences;
+    private int differences = 0;
+
+    private ParseTreeRewriterCheck(String source, int sequences)
+    {
+        tokens = new CommonTokenStream(new Java8Lexer(new ANTLRInputStream(source)));
+        tokens.fill();
+        this.sequences = sequences;
+    }
+
+    private boolean same(String check, long seed, String what, String expected, String got)
+    {
+        if (expected.equals(got))
+            return true;
+        if (differences++ < 5)
+        {
+            // Show where they start to differ, rather than the whole of long texts
+            int d = 0;
+            while (d < expected.length() && d < got.length() && expected.charAt(d) == got.charAt(d))
+                d++;
+            System.out.println(check+" seed "+seed+": "+what+" differs from character "+d
+                              +"\n  expected: "+excerpt(expected, d)+"\n  got:      "+excerpt(got, d));
+        }
+        return false;
+    }
+
+    private static String excerpt(String text, int at)
+    {
+        int from = Math.max(0, at - 40), to = Math.min(text.length(), at + 40);
+        return (0 < from ? "..." : "")+text.substring(from, to)+(to < text.length() ? "..." : "");
+    }
+
+    /// The text of the interval, or the exception that getting it threw.
+    private static String textOf(ParseTreeRewriter rewriter, Interval interval)
+    {
+        try
+        {
+            return rewriter.getText(interval);
+        }
+        catch (RuntimeException | Error ex) // ...including the Error both throw for an internal inconsistency
+        {
+            return "threw "+ex.getClass().getName();
+        }
+    }
+
+    /// The text of the interval as rendered, even if nothing in the interval has changed, or the exception thrown.
+    private static String renderedTextOf(ParseTreeRewriter rewriter, Interval interval)
+    {
+        try
+        {
+            return rewriter.rewriteProgramsByName.get(TokenStreamRewriter.DEFAULT_PROGRAM_NAME).getText(interval);
+        }
+        catch (RuntimeException | Error ex) // ...including the Error both throw for an internal inconsistency
+        {
+            return "threw "+ex.getClass().getName();
+        }
+    }
+
+    /// The text of the interval as writeText writes it, or the exception thrown.
+    private static String writtenTextOf(ParseTreeRewriter rewriter, Interval interval)
+    {
+        StringWriter writer = new StringWriter();
+        try
+        {
+            rewriter.writeText(TokenStreamRewriter.DEFAULT_PROGRAM_NAME, interval, writer);
+            return writer.toString();
+        }
+        catch (IOException ex)
+        {
+            throw new UncheckedIOException(ex); // ...not from a StringWriter
+        }
+        catch (RuntimeException | Error ex) // ...including the Error both throw for an internal inconsistency
+        {
+            return "threw "+ex.getClass().getName();
+        }
+    }
+
+    private static String textOf(TokenStreamRewriter reference, Interval interval)
+    {
+        try
+        {
+            return reference.getText(interval);
+        }
+        catch (RuntimeException | Error ex) // ...including the Error both throw for an internal inconsistency
+        {
+            return "threw "+ex.getClass().getName();
+        }
+    }
+
+    private Interval randomInterval(Random random)
+    {
+        int from = random.nextInt(tokens.size());
+        return Interval.of(from, from + random.nextInt(tokens.size() - from));
+    }
+
+    private void checkAgainstAntlr()
+    {
+        int comparisons = 0;
+        for (long seed = 0; seed < sequences; seed++)
+        {
+            Random random = new Random(seed);
+            TokenStreamRewriter reference = new TokenStreamRewriter(tokens);
+            ParseTreeRewriter rewriter = new ParseTreeRewriter(null, tokens);
+            for (int step = 0, steps = 1 + random.nextInt(16); step < steps; step++)
+            {
+                Op op = Op.random(random, tokens.size(), step);
+                op.applyTo(reference);
+                op.applyTo(rewriter);
+                // Render at random points, so that reduction happens in different batches, and always at the end
+                if (0 != random.nextInt(3) && step != steps - 1)
+                    continue;
+                Interval interval = 0 == random.nextInt(3) ? Interval.of(0, tokens.size() - 1) : randomInterval(random);
+                String expected = textOf(reference, interval);
+                String what = "text of "+interval+" after "+(step + 1)+" ops";
+                comparisons++;
+                if (!same("antlr", seed, "rendered "+what, expected, renderedTextOf(rewriter, interval))
+                 || expected.startsWith("threw ")
+                 || !same("antlr", seed, what, expected, textOf(rewriter, interval))
+                 || !same("antlr", seed, "written "+what, expected, writtenTextOf(rewriter, interval)))
+                    break;
+            }
+        }
+        System.out.println("antlr: "+sequences+" sequences, "+comparisons+" renders compared");
+    }
+
+    private void checkRender()
+    {
+        // Rendering the whole of the large source is slow enough that fewer sequences are run
+        int renders = 0, window = 200, sequences = Math.max(1, this.sequences / 20);
+        for (long seed = 0; seed < sequences; seed++)
+        {
+            Random random = new Random(seed);
+            ParseTreeRewriter rewriter = new J2SRewriter(null, tokens);
+            int base = random.nextInt(tokens.size());
+            for (int step = 0, steps = 1 + random.nextInt(32); step < steps; step++)
+            {
+                Op.randomAdjusting(random, base, window, tokens.size(), step).applyTo(rewriter);
+                if (0 != random.nextInt(4) && step != steps - 1)
+                    continue;
+                // The whole text, or an interval starting or ending around the changes
+                int around = Math.max(0, Math.min(tokens.size() - 1, base - 8 + random.nextInt(window)));
+                Interval interval;
+                switch (random.nextInt(3))
+                {
+                    case 0:  interval = Interval.of(0, tokens.size() - 1); break;
+                    case 1:  interval = Interval.of(around, tokens.size() - 1); break;
+                    default: interval = Interval.of(0, around); break;
+                }
+                String expected = textOf(rewriter, interval);
+                renders++;
+                if (expected.startsWith("threw ")
+                 || !same("render", seed, "written text of "+interval+" after "+(step + 1)+" ops", expected,
+                          writtenTextOf(rewriter, interval)))
+                    break;
+            }
+        }
+        System.out.println("render: "+sequences+" sequences, "+renders+" renders compared");
+    }
+
+    private void checkEagerAdjustment()
+    {
+        List<Integer> significant = new ArrayList<>();
+        for (int i = 0; i < tokens.size(); i++)
+            if (Token.DEFAULT_CHANNEL == tokens.get(i).getChannel() && Token.EOF != tokens.get(i).getType())
+                significant.add(i);
+        int replaces = 0;
+        for (long seed = 0; seed < sequences; seed++)
+        {
+            Random random = new Random(seed);
+            // Ranges of significant tokens, each followed by at least one that is left alone
+            List<Op> ops = new ArrayList<>();
+            for (int k = random.nextInt(3), step = 0; k < significant.size(); k += 2 + random.nextInt(4), step++)
+            {
+                int from = significant.get(k);
+                k = Math.min(significant.size() - 1, k + random.nextInt(3));
+                ops.add(new Op(Op.REPLACE_ADJUSTING, from, significant.get(k), randomAdjustedText(random, step)));
+            }
+            Collections.shuffle(ops, random);
+            J2SRewriter eager = new J2SRewriter(null, tokens);
+            J2SRewriter rewriter = new J2SRewriter(null, tokens);
+            for (Op op : ops)
+            {
+                replaceAndAdjustWhitespaceEagerly(eager, op.from, op.to, op.text);
+                rewriter.replaceAndAdjustWhitespace(op.from, op.to, op.text);
+            }
+            replaces += ops.size();
+            Interval all = Interval.of(0, tokens.size() - 1);
+            String expected = textOf(eager, all);
+            String what = "text after "+ops.size()+" replaces";
+            if (same("eager", seed, what, expected, textOf(rewriter, all)))
+                same("eager", seed, "written "+what, expected, writtenTextOf(rewriter, all));
+        }
+        System.out.println("eager: "+sequences+" sequences, "+replaces+" adjusted replaces compared");
+    }
+
+    /// J2SRewriter.replaceAndAdjustWhitespace as it was before the adjustment was left until rendering: it looks at
+    /// the text either side as it is at the time of the replace, and replaces whitespace tokens there to adjust them.
+    private static void replaceAndAdjustWhitespaceEagerly(J2SRewriter rewriter, int from, int to, String text)
+    {
+        String textL, textR;
+        Interval interval;
+        int i, tokenIdxL, tokenIdxR, lenL, lenR, wsL, wsR, wsWanted;
+        int tokenIdxL_WSFrom, tokenIdxL_WSTo, tokenIdxR_WSFrom, tokenIdxR_WSTo;
+        int codePointL, codePointR;
+        boolean leftIsIndent;
+        boolean keepSeparate;
+
+        text = text.trim();
+
+        // Assess left: count whitespace and stop when first non-white character reached
+        tokenIdxL = from - 1; textL = null;
+        tokenIdxL_WSFrom = tokenIdxL_WSTo = -1;
+        codePointL = 0; wsL = 0; i = -1;
+        assessL: while ( 0 <= tokenIdxL )
+        {
+            if (null != (interval = rewriter.getChangedIntervalContaining(tokenIdxL, tokenIdxL)))
+                textL = rewriter.getText(interval);
+            else
+                textL = rewriter.getText(tokenIdxL, tokenIdxL);
+            for (lenL = textL.length(), i = lenL-1; 0 <= i; i--)
+            {
+                codePointL = textL.codePointAt(i);
+                if (' ' != codePointL && '\t' != codePointL)
+                    break assessL;
+                wsL++;
+                tokenIdxL_WSFrom = null != interval ? interval.a : tokenIdxL;
+                if (tokenIdxL_WSTo == -1)
+                    tokenIdxL_WSTo = null != interval ? interval.b : tokenIdxL;
+            }
+            tokenIdxL = null != interval ? interval.a - 1 : tokenIdxL - 1;
+            textL = null;
+        }
+        leftIsIndent = codePointL == '\n' || codePointL == '\r' || (0 > tokenIdxL && 0 > i);
+
+        // Assess right: count whitespace and stop when first non-white character reached
+        tokenIdxR = to + 1; textR = null;
+        tokenIdxR_WSFrom = tokenIdxR_WSTo = -1;
+        codePointR = 0; wsR = 0;
+        assessR: while ( tokenIdxR < rewriter.getTokenStream().size() )
+        {
+            if (null != (interval = rewriter.getChangedIntervalContaining(tokenIdxR, tokenIdxR)))
+                textR = rewriter.getText(interval);
+            else
+                textR = rewriter.getText(tokenIdxR, tokenIdxR);
+            for (i = 0, lenR = textR.length(); i < lenR; i++)
+            {
+                codePointR = textR.codePointAt(i);
+                if (' ' != codePointR && '\t' != codePointR)
+                    break assessR;
+                wsR++;
+                if (tokenIdxR_WSFrom == -1)
+                    tokenIdxR_WSFrom = null != interval ? interval.a : tokenIdxR;
+                tokenIdxR_WSTo = null != interval ? interval.b : tokenIdxR;
+            }
+            tokenIdxR = null != interval ? interval.b + 1 : tokenIdxR + 1;
+            textR = null;
+        }
+
+        if (0 < text.length())
+        {
+            keepSeparate = rewriter.recommendKeepSeparate(codePointL, text.codePointAt(0));
+            wsWanted = keepSeparate ? 1 : 0;
+            if (!leftIsIndent && wsL != wsWanted)
+            {
+                if (wsL == 0)
+                    text = " " + text;
+                else
+                {
+                    String s = tokenIdxL == tokenIdxL_WSTo
+                             ? textL
+                             : rewriter.getText(tokenIdxL_WSFrom, tokenIdxL_WSTo);
+                    s = s.substring(0, s.length() - (wsL - wsWanted)); // trim excess from end
+                    rewriter.replace(tokenIdxL_WSFrom, tokenIdxL_WSTo, s);
+                }
+            }
+
+            keepSeparate = rewriter.recommendKeepSeparate(text.codePointAt(text.length()-1), codePointR);
+            wsWanted = keepSeparate ? 1 : 0;
+            if (wsR != wsWanted)
+            {
+                if (wsR == 0)
+                    text += " ";
+                else
+                {
+                    String s = tokenIdxR == tokenIdxR_WSFrom
+                             ? textR
+                             : rewriter.getText(tokenIdxR_WSFrom, tokenIdxR_WSTo);
+                    s = s.substring(wsR - wsWanted); // trim excess from start
+                    rewriter.replace(tokenIdxR_WSFrom, tokenIdxR_WSTo, s);
+                }
+            }
+        }
+        else
+        if (0 < from && to < rewriter.getTokenStream().size()-1)
+        {
+            keepSeparate = rewriter.recommendKeepSeparate(codePointL, codePointR);
+            wsWanted = keepSeparate && !leftIsIndent ? 1 : 0;
+            if (leftIsIndent)
+                ; // do nothing to left
+            else if (wsL == wsWanted)
+                wsWanted -= wsL;
+            else if (wsL > wsWanted)
+            {
+                String s = tokenIdxL == tokenIdxL_WSTo
+                         ? textL
+                         : rewriter.getText(tokenIdxL_WSFrom, tokenIdxL_WSTo);
+                s = s.substring(0, s.length() - (wsL - wsWanted)); // trim excess from end
+                rewriter.replace(tokenIdxL_WSFrom, tokenIdxL_WSTo, s);
+                wsWanted = 0;
+            }
+
+            if (wsR > wsWanted)
+            {
+                String s = tokenIdxR == tokenIdxR_WSFrom
+                         ? textR
+                         : rewriter.getText(tokenIdxR_WSFrom, tokenIdxR_WSTo);
+                s = s.substring(wsR - wsWanted); // trim excess from start
+                rewriter.replace(tokenIdxR_WSFrom, tokenIdxR_WSTo, s);
+            }
+            else if (wsR < wsWanted)
+            {
+                text = " ";
+            }
+        }
+
+        rewriter.replace(from, to, text);
+    }
+
+    private void checkRollback()
+    {
+        int rollbacks = 0;
+        for (long seed = 0; seed < sequences; seed++)
+        {
+            Random random = new Random(seed);
+            ParseTreeRewriter rewriter = new ParseTreeRewriter(null, tokens);
+            List<Op> ops = new ArrayList<>();
+            List<Integer> marks = new ArrayList<>();
+            for (int step = 0, steps = 1 + random.nextInt(24); step < steps; step++)
+            {
+                int choice = random.nextInt(10);
+                if (choice < 2)
+                    marks.add(rewriter.mark());
+                else if (choice < 4)
+                {
+                    // Rendering reduces what has been added so far, so that rollback has reductions to undo
+                    if (textOf(rewriter, randomInterval(random)).startsWith("threw "))
+                        break; // ...overlapping replaces, after which the rewriter is no use
+                }
+                else if (choice < 5 && !marks.isEmpty())
+                {
+                    int mark = marks.get(random.nextInt(marks.size()));
+                    rewriter.rollback(mark);
+                    ops.subList(mark, ops.size()).clear();
+                    marks.removeIf(m -> m > mark);
+                    rollbacks++;
+                    if (!sameAsReplayed(seed, rewriter, ops, random))
+                        break;
+                }
+                else
+                {
+                    Op op = Op.random(random, tokens.size(), step);
+                    op.applyTo(rewriter);
+                    ops.add(op);
+                }
+            }
+        }
+        System.out.println("rollback: "+sequences+" sequences, "+rollbacks+" rollbacks compared");
+    }
+
+    /// Compare the rewriter with one that has only been given ops, and return whether it is worth going on.
+    private boolean sameAsReplayed(long seed, ParseTreeRewriter rewriter, List<Op> ops, Random random)
+    {
+        ParseTreeRewriter replayed = new ParseTreeRewriter(null, tokens);
+        for (Op op : ops)
+            op.applyTo(replayed);
+        boolean same = same("rollback", seed, "instruction count", ""+replayed.getInstructionCount(),
+                            ""+rewriter.getInstructionCount());
+        for (int i = 0; same && i < tokens.size(); i++)
+            same = same("rollback", seed, "changed interval containing "+i,
+                        String.valueOf(replayed.getChangedIntervalContaining(i, i)),
+                        String.valueOf(rewriter.getChangedIntervalContaining(i, i)));
+        Interval interval = randomInterval(random);
+        String expected = textOf(replayed, interval);
+        same = same && same("rollback", seed, "text of "+interval, expected, textOf(rewriter, interval));
+        Interval all = Interval.of(0, tokens.size() - 1);
+        same = same && same("rollback", seed, "whole text", textOf(replayed, all), textOf(rewriter, all));
+        return same && !expected.startsWith("threw ");
+    }
+
+    public static void main(String[] args)
+    {
+        int sequences = 0 < args.length ? Integer.parseInt(args[0]) : 20000;
+        ParseTreeRewriterCheck check = new ParseTreeRewriterCheck(SOURCE, sequences);
+        check.checkAgainstAntlr();
+        check.checkRollback();
+        check.checkEagerAdjustment();
+        // Enough copies of the source to be rendered in several chunks
+        StringBuilder large = new StringBuilder();
+        while (large.length() < 5 * ParseTreeRewriter.Render.CHUNK)
+            large.append(SOURCE);
+        ParseTreeRewriterCheck render = new ParseTreeRewriterCheck(large.toString(), sequences);
+        render.checkRender();
+        int differences = check.differences + render.differences;
+        if (0 != differences)
+        {
+            System.err.println(differences+" differences");
+            System.exit(1);
+        }
+    }
+}
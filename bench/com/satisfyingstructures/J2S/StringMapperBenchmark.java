@@ -0,0 +1,200 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2016 Torsten Louland
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package com.satisfyingstructures.J2S;
+
+import com.satisfyingstructures.J2S.antlr.Java8Lexer;
+
+import org.antlr.v4.runtime.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/// Times J2SStringMapper lookups against the recursive lookup it replaced, at increasing depths of nesting. The
+/// mapper is set up as J2SConverter sets up its type mapper, with the built in mappings plus several hundred more
+/// standing in for the `-M` mappings of an argument file (500 by default; pass a count to change it), some of them
+/// overridden again at each nested level. The lookups are the identifiers and primitive type keywords of the java
+/// sources in `bench/corpus` (or the directory given as the second argument), in order, so most of them miss as they
+/// do in a conversion. Both must give the same answer to every lookup.
+///
+/// Not part of J2S itself; see the README for how to build and run it.
+public class StringMapperBenchmark
+{
+    /// The parent chain walking lookup that J2SStringMapper used to have, kept as the reference.
+    static class RecursiveMapper
+    {
+        private Level top = null;
+
+        static class Level
+        {
+            Level parent;
+            int nests;
+            final Map<String, String> map = new HashMap<>();
+
+            String getMapping(String inType)
+            {
+                if (null == inType)
+                    return null;
+                String outType = map.get(inType);
+                if (null == outType)
+                    outType = null != parent ? parent.getMapping(inType) : inType;
+                return outType;
+            }
+        }
+
+        String map(String inType)
+        {
+            return null != top ? top.getMapping(inType) : inType;
+        }
+
+        void push()
+        {
+            if (null != top)
+                top.nests++;
+        }
+
+        void addOne(String from, String to)
+        {
+            if (null == top || 0 < top.nests)
+            {
+                Level level = new Level();
+                level.parent = top;
+                top = level;
+            }
+            top.map.put(from, to);
+        }
+    }
+
+    private static final String[] BUILT_IN = {
+        "boolean", "Bool", "byte", "Int8", "short", "Int16", "int", "Int", "long", "Int64", "char", "UInt16",
+        "float", "Float", "double", "Double", "Boolean", "Bool", "Byte", "Int8", "Short", "Int16", "Integer", "Int",
+        "Long", "Int64", "Char", "UInt16", "Float", "Float", "Double", "Double", "Object", "AnyObject",
+        "List", "Array", "ArrayList", "Array", "Map", "Dictionary", "HashMap", "Dictionary", "Set", "Set",
+        "HashSet", "Set", "", ""
+    };
+
+    public static void main(String[] args) throws IOException
+    {
+        int mappingCount = 0 < args.length ? Integer.parseInt(args[0]) : 500;
+        Path corpus = Paths.get(1 < args.length ? args[1] : "bench/corpus");
+
+        List<String> lookups = new ArrayList<>();
+        List<String> identifiers = new ArrayList<>();
+        List<Path> sources;
+        try (Stream<Path> paths = Files.walk(corpus))
+        {
+            sources = paths.filter(p -> p.toString().endsWith(".java")).sorted().collect(Collectors.toList());
+        }
+        for (Path source : sources)
+        {
+            CommonTokenStream tokens = new CommonTokenStream(new Java8Lexer(new ANTLRInputStream(
+                new String(Files.readAllBytes(source), StandardCharsets.UTF_8))));
+            tokens.fill();
+            for (Token t : tokens.getTokens())
+                switch (t.getType())
+                {
+                    case Java8Lexer.Identifier:
+                        identifiers.add(t.getText());
+                        // fall through
+                    case Java8Lexer.BOOLEAN: case Java8Lexer.BYTE: case Java8Lexer.SHORT: case Java8Lexer.INT:
+                    case Java8Lexer.LONG: case Java8Lexer.CHAR: case Java8Lexer.FLOAT: case Java8Lexer.DOUBLE:
+                        lookups.add(t.getText());
+                        break;
+                }
+        }
+        if (lookups.isEmpty())
+        {
+            System.err.println("No java sources in "+corpus);
+            System.exit(1);
+        }
+
+        // Argument file mappings: mostly types that don't occur, with some corpus identifiers among them
+        Map<String, String> argumentMappings = new HashMap<>();
+        for (int i = 0; i < mappingCount; i++)
+            argumentMappings.put(0 == i % 10 ? identifiers.get(i * 7919 % identifiers.size()) : "JavaType"+i,
+                                 "SwiftType"+i);
+
+        System.out.println(sources.size()+" sources, "+lookups.size()+" lookups, "+argumentMappings.size()+" mappings");
+        for (int depth : new int[]{1, 4, 16, 64})
+            time(depth, argumentMappings, lookups.toArray(new String[0]));
+    }
+
+    private static void time(int depth, Map<String, String> argumentMappings, String[] lookups)
+    {
+        RecursiveMapper reference = new RecursiveMapper();
+        J2SStringMapper flattened = new J2SStringMapper();
+        for (int i = 0; i < BUILT_IN.length; i += 2)
+        {
+            reference.addOne(BUILT_IN[i], BUILT_IN[i+1]);
+            flattened.addOne(BUILT_IN[i], BUILT_IN[i+1]);
+        }
+        for (Map.Entry<String, String> entry : argumentMappings.entrySet())
+            reference.addOne(entry.getKey(), entry.getValue());
+        flattened.addMap(argumentMappings);
+        for (int level = 1; level < depth; level++)
+        {
+            reference.push();
+            flattened.push();
+            String from = lookups[level * 104729 % lookups.length], to = "Level"+level;
+            reference.addOne(from, to);
+            flattened.addOne(from, to);
+        }
+
+        long referenceSum = 0, flattenedSum = 0, referenceBest = Long.MAX_VALUE, flattenedBest = Long.MAX_VALUE;
+        int repeats = Math.max(1, 2000000 / lookups.length);
+        for (int run = 0; run < 10; run++)
+        {
+            long start = System.nanoTime();
+            long sum = 0;
+            for (int r = 0; r < repeats; r++)
+                for (String lookup : lookups)
+                    sum = 31 * sum + reference.map(lookup).hashCode();
+            referenceBest = Math.min(referenceBest, System.nanoTime() - start);
+            referenceSum = sum;
+            start = System.nanoTime();
+            sum = 0;
+            for (int r = 0; r < repeats; r++)
+                for (String lookup : lookups)
+                    sum = 31 * sum + flattened.map(lookup).hashCode();
+            flattenedBest = Math.min(flattenedBest, System.nanoTime() - start);
+            flattenedSum = sum;
+        }
+        if (referenceSum != flattenedSum)
+        {
+            System.err.println("depth "+depth+": J2SStringMapper disagrees with the reference implementation");
+            System.exit(1);
+        }
+        long count = (long)repeats * lookups.length;
+        System.out.printf("depth %-3d %9d lookups: recursive %5d ms, flattened %5d ms, speedup %.1fx%n", depth, count,
+            referenceBest / 1000000, flattenedBest / 1000000, (double)referenceBest / flattenedBest);
+    }
+}
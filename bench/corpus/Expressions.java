@@ -0,0 +1,335 @@
+/*
+ * Benchmark input for J2S: a small recursive descent expression parser and evaluator, heavy in nested method calls,
+ * chained calls and arithmetic. Self-contained; it depends only on java.lang and java.util.
+ */
+package example;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+public class Expressions
+{
+    public interface Node
+    {
+        double evaluate(Map<String, Double> variables);
+
+        String print();
+    }
+
+    static final class Number implements Node
+    {
+        private final double value;
+
+        Number(double value)
+        {
+            this.value = value;
+        }
+
+        public double evaluate(Map<String, Double> variables)
+        {
+            return value;
+        }
+
+        public String print()
+        {
+            return value == Math.rint(value) ? Long.toString((long) value) : Double.toString(value);
+        }
+    }
+
+    static final class Variable implements Node
+    {
+        private final String name;
+
+        Variable(String name)
+        {
+            this.name = name;
+        }
+
+        public double evaluate(Map<String, Double> variables)
+        {
+            Double value = variables.get(name);
+            if (value == null)
+                throw new IllegalArgumentException("unbound variable " + name);
+            return value.doubleValue();
+        }
+
+        public String print()
+        {
+            return name;
+        }
+    }
+
+    static final class Binary implements Node
+    {
+        private final char operator;
+        private final Node left;
+        private final Node right;
+
+        Binary(char operator, Node left, Node right)
+        {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+
+        public double evaluate(Map<String, Double> variables)
+        {
+            double a = left.evaluate(variables), b = right.evaluate(variables);
+            if (operator == '+') return a + b;
+            if (operator == '-') return a - b;
+            if (operator == '*') return a * b;
+            if (operator == '/') return a / b;
+            if (operator == '^') return Math.pow(a, b);
+            throw new IllegalStateException("unknown operator " + operator);
+        }
+
+        public String print()
+        {
+            return "(" + left.print() + " " + operator + " " + right.print() + ")";
+        }
+    }
+
+    static final class Call implements Node
+    {
+        private final String function;
+        private final List<Node> arguments;
+
+        Call(String function, List<Node> arguments)
+        {
+            this.function = function;
+            this.arguments = arguments;
+        }
+
+        public double evaluate(Map<String, Double> variables)
+        {
+            double[] values = new double[arguments.size()];
+            for (int i = 0; i < values.length; i++)
+                values[i] = arguments.get(i).evaluate(variables);
+            if ("sqrt".equals(function)) return Math.sqrt(values[0]);
+            if ("abs".equals(function)) return Math.abs(values[0]);
+            if ("min".equals(function)) return Math.min(values[0], values[1]);
+            if ("max".equals(function)) return Math.max(values[0], values[1]);
+            if ("hypot".equals(function)) return Math.sqrt(Math.pow(values[0], 2) + Math.pow(values[1], 2));
+            if ("clamp".equals(function)) return Math.max(values[1], Math.min(values[2], values[0]));
+            throw new IllegalArgumentException("unknown function " + function + "/" + values.length);
+        }
+
+        public String print()
+        {
+            StringBuilder sb = new StringBuilder(function).append('(');
+            for (int i = 0; i < arguments.size(); i++)
+                sb.append(i == 0 ? "" : ", ").append(arguments.get(i).print());
+            return sb.append(')').toString();
+        }
+    }
+
+    /// Parses infix expressions with the usual precedence, right associative powers, and function calls.
+    static final class Parser
+    {
+        private final String text;
+        private int position;
+
+        Parser(String text)
+        {
+            this.text = text;
+        }
+
+        Node parse()
+        {
+            Node node = parseSum();
+            skipSpaces();
+            if (position != text.length())
+                throw error("unexpected '" + text.charAt(position) + "'");
+            return node;
+        }
+
+        private Node parseSum()
+        {
+            Node node = parseProduct();
+            for (char c = peek(); c == '+' || c == '-'; c = peek())
+            {
+                position++;
+                node = new Binary(c, node, parseProduct());
+            }
+            return node;
+        }
+
+        private Node parseProduct()
+        {
+            Node node = parsePower();
+            for (char c = peek(); c == '*' || c == '/'; c = peek())
+            {
+                position++;
+                node = new Binary(c, node, parsePower());
+            }
+            return node;
+        }
+
+        private Node parsePower()
+        {
+            Node base = parseUnary();
+            if (peek() == '^')
+            {
+                position++;
+                return new Binary('^', base, parsePower());
+            }
+            return base;
+        }
+
+        private Node parseUnary()
+        {
+            if (peek() == '-')
+            {
+                position++;
+                return new Binary('-', new Number(0), parseUnary());
+            }
+            return parseAtom();
+        }
+
+        private Node parseAtom()
+        {
+            char c = peek();
+            if (c == '(')
+            {
+                position++;
+                Node inner = parseSum();
+                expect(')');
+                return inner;
+            }
+            if (Character.isDigit(c) || c == '.')
+            {
+                int start = position;
+                while (position < text.length()
+                       && (Character.isDigit(text.charAt(position)) || text.charAt(position) == '.'))
+                    position++;
+                return new Number(Double.parseDouble(text.substring(start, position)));
+            }
+            if (Character.isLetter(c))
+            {
+                int start = position;
+                while (position < text.length() && Character.isLetterOrDigit(text.charAt(position)))
+                    position++;
+                String name = text.substring(start, position);
+                if (peek() != '(')
+                    return new Variable(name);
+                position++;
+                List<Node> arguments = new ArrayList<>();
+                if (peek() != ')')
+                {
+                    arguments.add(parseSum());
+                    while (peek() == ',')
+                    {
+                        position++;
+                        arguments.add(parseSum());
+                    }
+                }
+                expect(')');
+                return new Call(name, arguments);
+            }
+            throw error(c == 0 ? "unexpected end" : "unexpected '" + c + "'");
+        }
+
+        private char peek()
+        {
+            skipSpaces();
+            return position < text.length() ? text.charAt(position) : 0;
+        }
+
+        private void expect(char c)
+        {
+            if (peek() != c)
+                throw error("expected '" + c + "'");
+            position++;
+        }
+
+        private void skipSpaces()
+        {
+            while (position < text.length() && Character.isWhitespace(text.charAt(position)))
+                position++;
+        }
+
+        private IllegalArgumentException error(String message)
+        {
+            return new IllegalArgumentException(String.format(Locale.ROOT, "%s at %d in \"%s\"", message, position,
+                                                               text));
+        }
+    }
+
+    static Node simplify(Node node)
+    {
+        if (!(node instanceof Binary))
+            return node;
+        Binary binary = (Binary) node;
+        Node left = simplify(binary.left), right = simplify(binary.right);
+        if (left instanceof Number && right instanceof Number)
+            return new Number(new Binary(binary.operator, left, right).evaluate(new HashMap<String, Double>()));
+        if (binary.operator == '*' && (isConstant(left, 0) || isConstant(right, 0)))
+            return new Number(0);
+        if (binary.operator == '*' && isConstant(left, 1))
+            return right;
+        if ((binary.operator == '*' || binary.operator == '/') && isConstant(right, 1))
+            return left;
+        if (binary.operator == '+' && isConstant(left, 0))
+            return right;
+        if ((binary.operator == '+' || binary.operator == '-') && isConstant(right, 0))
+            return left;
+        return new Binary(binary.operator, left, right);
+    }
+
+    private static boolean isConstant(Node node, double value)
+    {
+        return node instanceof Number && ((Number) node).evaluate(null) == value;
+    }
+
+    static Map<String, Double> bind(Object... namesAndValues)
+    {
+        Map<String, Double> variables = new HashMap<>();
+        for (int i = 0; i + 1 < namesAndValues.length; i += 2)
+            variables.put(String.valueOf(namesAndValues[i]), ((java.lang.Number) namesAndValues[i + 1]).doubleValue());
+        return variables;
+    }
+
+    static String table(String expression, String variable, double from, double to, int steps)
+    {
+        Node node = simplify(new Parser(expression).parse());
+        StringBuilder sb = new StringBuilder(node.print()).append('\n');
+        for (int i = 0; i <= steps; i++)
+        {
+            double x = from + (to - from) * i / steps;
+            sb.append(String.format(Locale.ROOT, "%8.3f %12.5f%n", x, node.evaluate(bind(variable, x))));
+        }
+        return sb.toString();
+    }
+
+    public static void main(String[] args)
+    {
+        String[] sources = {
+            "1 + 2 * 3 - 4 / (5 - 3)",
+            "2 ^ 3 ^ 2",
+            "hypot(3, 4) * min(max(a, b), 10) + abs(-(a - b))",
+            "clamp(sqrt(a * a + b * b), 1, max(a, min(b, sqrt(16))))",
+            "0 * x + 1 * (y + 0) / 1",
+            "-(-(-(1)))",
+        };
+        Map<String, Double> variables = bind("a", 6, "b", 8, "x", 2.5, "y", -1);
+        for (String source : sources)
+        {
+            Node parsed = new Parser(source).parse();
+            Node simplified = simplify(parsed);
+            System.out.println(String.format(Locale.ROOT, "%-50s = %10.4f  %s", parsed.print(),
+                                             parsed.evaluate(variables), simplified.print()));
+        }
+        System.out.print(table("x ^ 2 - 3 * x + sqrt(abs(x)) * max(x, 1)", "x", -2.0, 2.0, 8));
+        try
+        {
+            new Parser("max(1, (2 + 3)").parse();
+        }
+        catch (IllegalArgumentException ex)
+        {
+            System.out.println(ex.getMessage().toUpperCase(Locale.ROOT).replace('"', '\'').trim());
+        }
+    }
+}
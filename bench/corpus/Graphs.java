@@ -0,0 +1,406 @@
+/*
+ * Benchmark input for J2S: generic types, bounded and wildcard type arguments, generic methods and recursive
+ * generics. Self-contained; it depends only on java.util.
+ */
+package example;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+
+public class Graphs
+{
+    public static final class Pair<A, B>
+    {
+        public final A first;
+        public final B second;
+
+        public Pair(A first, B second)
+        {
+            this.first = first;
+            this.second = second;
+        }
+
+        public static <A, B> Pair<A, B> of(A first, B second)
+        {
+            return new Pair<>(first, second);
+        }
+
+        public Pair<B, A> swap()
+        {
+            return new Pair<B, A>(second, first);
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            if (!(other instanceof Pair))
+                return false;
+            Pair<?, ?> that = (Pair<?, ?>) other;
+            return (first == null ? that.first == null : first.equals(that.first))
+                && (second == null ? that.second == null : second.equals(that.second));
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * (first == null ? 0 : first.hashCode()) + (second == null ? 0 : second.hashCode());
+        }
+
+        @Override
+        public String toString()
+        {
+            return "(" + first + ", " + second + ")";
+        }
+    }
+
+    public static abstract class Either<L, R>
+    {
+        public abstract boolean isLeft();
+
+        public abstract L left();
+
+        public abstract R right();
+
+        public static <L, R> Either<L, R> left(final L value)
+        {
+            return new Either<L, R>() {
+                public boolean isLeft() { return true; }
+                public L left() { return value; }
+                public R right() { throw new NoSuchElementException("left has no right"); }
+            };
+        }
+
+        public static <L, R> Either<L, R> right(final R value)
+        {
+            return new Either<L, R>() {
+                public boolean isLeft() { return false; }
+                public L left() { throw new NoSuchElementException("right has no left"); }
+                public R right() { return value; }
+            };
+        }
+
+        public <T> Either<L, T> map(Mapper<? super R, ? extends T> mapper)
+        {
+            if (isLeft())
+                return Either.<L, T>left(left());
+            return Either.<L, T>right(mapper.apply(right()));
+        }
+
+        public <T> Either<L, T> flatMap(Mapper<? super R, Either<L, T>> mapper)
+        {
+            return isLeft() ? Either.<L, T>left(left()) : mapper.apply(right());
+        }
+    }
+
+    public interface Mapper<S, T>
+    {
+        T apply(S source);
+    }
+
+    public static final class Edge<V, W extends Number>
+    {
+        final V from;
+        final V to;
+        final W weight;
+
+        Edge(V from, V to, W weight)
+        {
+            this.from = from;
+            this.to = to;
+            this.weight = weight;
+        }
+    }
+
+    /// A directed graph with weighted edges, keeping vertices in their natural order.
+    public static class Graph<V extends Comparable<? super V>, W extends Number>
+    {
+        private final Map<V, List<Edge<V, W>>> adjacent = new TreeMap<>();
+        private int edgeCount;
+
+        public void addVertex(V vertex)
+        {
+            if (!adjacent.containsKey(vertex))
+                adjacent.put(vertex, new ArrayList<Edge<V, W>>());
+        }
+
+        public void addEdge(V from, V to, W weight)
+        {
+            addVertex(from);
+            addVertex(to);
+            adjacent.get(from).add(new Edge<V, W>(from, to, weight));
+            edgeCount++;
+        }
+
+        public Set<V> vertices()
+        {
+            return Collections.unmodifiableSet(adjacent.keySet());
+        }
+
+        public int edgeCount()
+        {
+            return edgeCount;
+        }
+
+        public List<Edge<V, W>> edgesFrom(V vertex)
+        {
+            List<Edge<V, W>> edges = adjacent.get(vertex);
+            return edges == null ? Collections.<Edge<V, W>>emptyList() : edges;
+        }
+
+        public Map<V, Double> shortestDistances(V source)
+        {
+            final Map<V, Double> distances = new HashMap<>();
+            PriorityQueue<Pair<V, Double>> queue = new PriorityQueue<>(11, new Comparator<Pair<V, Double>>() {
+                @Override
+                public int compare(Pair<V, Double> a, Pair<V, Double> b)
+                {
+                    int byDistance = Double.compare(a.second, b.second);
+                    return byDistance != 0 ? byDistance : a.first.compareTo(b.first);
+                }
+            });
+            distances.put(source, 0.0);
+            queue.add(Pair.of(source, 0.0));
+            Set<V> settled = new HashSet<>();
+            while (!queue.isEmpty())
+            {
+                Pair<V, Double> next = queue.poll();
+                if (!settled.add(next.first))
+                    continue;
+                for (Edge<V, W> edge : edgesFrom(next.first))
+                {
+                    double candidate = next.second + edge.weight.doubleValue();
+                    Double known = distances.get(edge.to);
+                    if (known == null || candidate < known)
+                    {
+                        distances.put(edge.to, candidate);
+                        queue.add(Pair.of(edge.to, candidate));
+                    }
+                }
+            }
+            return distances;
+        }
+
+        public List<V> topologicalOrder()
+        {
+            Map<V, Integer> incoming = new HashMap<>();
+            for (V vertex : adjacent.keySet())
+                incoming.put(vertex, 0);
+            for (List<Edge<V, W>> edges : adjacent.values())
+                for (Edge<V, W> edge : edges)
+                    incoming.put(edge.to, incoming.get(edge.to) + 1);
+            Deque<V> ready = new ArrayDeque<>();
+            for (Map.Entry<V, Integer> entry : incoming.entrySet())
+                if (entry.getValue() == 0)
+                    ready.add(entry.getKey());
+            List<V> order = new ArrayList<>(adjacent.size());
+            while (!ready.isEmpty())
+            {
+                V vertex = ready.removeFirst();
+                order.add(vertex);
+                for (Edge<V, W> edge : edgesFrom(vertex))
+                {
+                    int remaining = incoming.get(edge.to) - 1;
+                    incoming.put(edge.to, remaining);
+                    if (remaining == 0)
+                        ready.addLast(edge.to);
+                }
+            }
+            if (order.size() != adjacent.size())
+                throw new IllegalStateException("graph has a cycle");
+            return order;
+        }
+
+        public <R> Graph<V, W> filterEdges(Mapper<? super Edge<V, W>, Boolean> keep)
+        {
+            Graph<V, W> result = new Graph<>();
+            for (V vertex : adjacent.keySet())
+            {
+                result.addVertex(vertex);
+                for (Edge<V, W> edge : edgesFrom(vertex))
+                    if (keep.apply(edge))
+                        result.addEdge(edge.from, edge.to, edge.weight);
+            }
+            return result;
+        }
+    }
+
+    /// Least recently used cache on top of LinkedHashMap's access order.
+    public static class LruCache<K, V> extends LinkedHashMap<K, V>
+    {
+        private static final long serialVersionUID = 1L;
+        private final int capacity;
+
+        public LruCache(int capacity)
+        {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest)
+        {
+            return size() > capacity;
+        }
+
+        public V getOrCompute(K key, Mapper<? super K, ? extends V> compute)
+        {
+            V value = get(key);
+            if (value == null)
+            {
+                value = compute.apply(key);
+                put(key, value);
+            }
+            return value;
+        }
+    }
+
+    /// Builders that return their own subtype from every step.
+    public static abstract class Builder<T, B extends Builder<T, B>>
+    {
+        protected final List<String> names = new ArrayList<>();
+        protected int size;
+
+        @SuppressWarnings("unchecked")
+        protected B self()
+        {
+            return (B) this;
+        }
+
+        public B name(String name)
+        {
+            names.add(name);
+            return self();
+        }
+
+        public B size(int size)
+        {
+            this.size = size;
+            return self();
+        }
+
+        public abstract T build();
+    }
+
+    public static final class Shape
+    {
+        final String label;
+        final int sides;
+        final int size;
+
+        Shape(String label, int sides, int size)
+        {
+            this.label = label;
+            this.sides = sides;
+            this.size = size;
+        }
+    }
+
+    public static final class ShapeBuilder extends Builder<Shape, ShapeBuilder>
+    {
+        private int sides = 3;
+
+        public ShapeBuilder sides(int sides)
+        {
+            this.sides = sides;
+            return this;
+        }
+
+        @Override
+        public Shape build()
+        {
+            return new Shape(names.isEmpty() ? "shape" : names.get(names.size() - 1), sides, size);
+        }
+    }
+
+    public static <T extends Comparable<? super T>> T max(Collection<? extends T> items)
+    {
+        Iterator<? extends T> it = items.iterator();
+        T best = it.next();
+        while (it.hasNext())
+        {
+            T candidate = it.next();
+            if (candidate.compareTo(best) > 0)
+                best = candidate;
+        }
+        return best;
+    }
+
+    public static <K, V extends Comparable<? super V>> List<Map.Entry<K, V>> sortedByValue(Map<K, V> map)
+    {
+        List<Map.Entry<K, V>> entries = new ArrayList<>(map.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<K, V>>() {
+            public int compare(Map.Entry<K, V> a, Map.Entry<K, V> b)
+            {
+                return a.getValue().compareTo(b.getValue());
+            }
+        });
+        return entries;
+    }
+
+    public static <T> void copy(List<? super T> destination, List<? extends T> source)
+    {
+        for (int i = 0; i < source.size(); i++)
+            destination.add(source.get(i));
+    }
+
+    public static <S, T> List<T> mapAll(Iterable<? extends S> sources, Mapper<? super S, ? extends T> mapper)
+    {
+        List<T> results = new ArrayList<>();
+        for (S source : sources)
+            results.add(mapper.apply(source));
+        return results;
+    }
+
+    public static <K, V> Map<V, List<K>> invert(Map<K, ? extends V> map)
+    {
+        Map<V, List<K>> inverted = new HashMap<>();
+        for (Map.Entry<K, ? extends V> entry : map.entrySet())
+        {
+            List<K> keys = inverted.get(entry.getValue());
+            if (keys == null)
+            {
+                keys = new ArrayList<K>();
+                inverted.put(entry.getValue(), keys);
+            }
+            keys.add(entry.getKey());
+        }
+        return inverted;
+    }
+
+    public static void main(String[] args)
+    {
+        Graph<String, Integer> graph = new Graph<>();
+        String[] names = { "a", "b", "c", "d", "e", "f" };
+        for (int i = 0; i < names.length; i++)
+            for (int j = i + 1; j < names.length; j += 2)
+                graph.addEdge(names[i], names[j], (i + 1) * (j + 2) % 7 + 1);
+        Map<String, Double> distances = graph.shortestDistances("a");
+        List<Map.Entry<String, Double>> sorted = sortedByValue(distances);
+        System.out.println(sorted + " " + graph.topologicalOrder() + " " + max(distances.values()));
+
+        LruCache<Integer, String> cache = new LruCache<>(4);
+        for (int i = 0; i < 10; i++)
+            cache.getOrCompute(i % 6, new Mapper<Integer, String>() {
+                public String apply(Integer key) { return "v" + key * key; }
+            });
+        Either<String, Integer> parsed = Either.<String, Integer>right(41).map(new Mapper<Integer, Integer>() {
+            public Integer apply(Integer value) { return value + 1; }
+        });
+        Shape shape = new ShapeBuilder().name("triangle").size(3).sides(3).build();
+        System.out.println(cache.keySet() + " " + parsed.right() + " " + shape.label + " " + invert(distances));
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Benchmark input for J2S: lambdas, method references, functional interfaces and stream pipelines. Self-contained;
+ * it depends only on the java.util packages.
+ */
+package example;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+public class Pipelines
+{
+    @FunctionalInterface
+    public interface TriFunction<A, B, C, R>
+    {
+        R apply(A a, B b, C c);
+
+        default <S> TriFunction<A, B, C, S> andThen(Function<? super R, ? extends S> after)
+        {
+            return (a, b, c) -> after.apply(apply(a, b, c));
+        }
+    }
+
+    public static final class Order
+    {
+        final String customer;
+        final String product;
+        final int quantity;
+        final double price;
+
+        Order(String customer, String product, int quantity, double price)
+        {
+            this.customer = customer;
+            this.product = product;
+            this.quantity = quantity;
+            this.price = price;
+        }
+
+        double total()
+        {
+            return quantity * price;
+        }
+
+        String getCustomer()
+        {
+            return customer;
+        }
+
+        String getProduct()
+        {
+            return product;
+        }
+    }
+
+    /// Listeners subscribe by event type and are called in order of subscription.
+    public static final class EventBus
+    {
+        private final Map<Class<?>, List<Consumer<Object>>> listeners = new HashMap<>();
+        private final AtomicInteger delivered = new AtomicInteger();
+
+        public <E> Runnable subscribe(Class<E> type, Consumer<? super E> listener)
+        {
+            Consumer<Object> wrapper = event -> listener.accept(type.cast(event));
+            listeners.computeIfAbsent(type, t -> new CopyOnWriteArrayList<>()).add(wrapper);
+            return () -> listeners.get(type).remove(wrapper);
+        }
+
+        public void publish(Object event)
+        {
+            listeners.entrySet().stream()
+                .filter(entry -> entry.getKey().isInstance(event))
+                .flatMap(entry -> entry.getValue().stream())
+                .forEach(listener -> {
+                    listener.accept(event);
+                    delivered.incrementAndGet();
+                });
+        }
+
+        public int deliveredCount()
+        {
+            return delivered.get();
+        }
+    }
+
+    static List<Order> sampleOrders()
+    {
+        String[] customers = { "ada", "brian", "chen", "dana" };
+        String[] products = { "pen", "ink", "paper", "stamp", "folder" };
+        List<Order> orders = new ArrayList<>();
+        for (int i = 0; i < 40; i++)
+            orders.add(new Order(customers[i % customers.length], products[(i * 3) % products.length],
+                                 1 + i % 5, 0.5 + (i % 7) * 1.25));
+        return orders;
+    }
+
+    static Map<String, Double> totalsByCustomer(List<Order> orders)
+    {
+        return orders.stream()
+            .collect(Collectors.groupingBy(Order::getCustomer, Collectors.summingDouble(Order::total)));
+    }
+
+    static Optional<String> bestSellingProduct(List<Order> orders)
+    {
+        return orders.stream()
+            .collect(Collectors.groupingBy(o -> o.product, Collectors.summingInt(o -> o.quantity)))
+            .entrySet().stream()
+            .max(Map.Entry.comparingByValue())
+            .map(Map.Entry::getKey);
+    }
+
+    static List<String> customersOver(List<Order> orders, double threshold)
+    {
+        return totalsByCustomer(orders).entrySet().stream()
+            .filter(e -> e.getValue() > threshold)
+            .sorted(Map.Entry.<String, Double>comparingByValue().reversed())
+            .map(e -> String.format("%s=%.2f", e.getKey(), e.getValue()))
+            .collect(Collectors.toList());
+    }
+
+    static <T> Predicate<T> all(List<Predicate<? super T>> predicates)
+    {
+        return t -> predicates.stream().allMatch(p -> p.test(t));
+    }
+
+    static <T> T retry(int attempts, Supplier<T> action, Consumer<Exception> onFailure)
+    {
+        RuntimeException last = null;
+        for (int attempt = 1; attempt <= attempts; attempt++)
+        {
+            try
+            {
+                return action.get();
+            }
+            catch (RuntimeException ex)
+            {
+                last = ex;
+                onFailure.accept(ex);
+            }
+        }
+        throw new IllegalStateException("gave up after " + attempts + " attempts", last);
+    }
+
+    static Function<Integer, Integer> compose(List<UnaryOperator<Integer>> steps)
+    {
+        return steps.stream()
+            .map(step -> (Function<Integer, Integer>) step)
+            .reduce(Function.identity(), Function::andThen);
+    }
+
+    static <T, K> Map<K, List<T>> partition(List<T> items, Function<? super T, ? extends K> key)
+    {
+        Map<K, List<T>> groups = new HashMap<>();
+        items.forEach(item -> groups.computeIfAbsent(key.apply(item), k -> new ArrayList<>()).add(item));
+        return groups;
+    }
+
+    static Supplier<Integer> counter(int start, int step)
+    {
+        int[] next = { start };
+        return () -> {
+            int value = next[0];
+            next[0] += step;
+            return value;
+        };
+    }
+
+    static long primesBelow(int limit)
+    {
+        return IntStream.range(2, limit)
+            .filter(n -> IntStream.rangeClosed(2, (int) Math.sqrt(n)).noneMatch(d -> n % d == 0))
+            .count();
+    }
+
+    static String wordFrequencies(String text)
+    {
+        return Arrays.stream(text.toLowerCase().split("[^a-z]+"))
+            .filter(word -> !word.isEmpty())
+            .collect(Collectors.groupingBy(Function.identity(), Collectors.counting()))
+            .entrySet().stream()
+            .sorted(Comparator.comparing((Map.Entry<String, Long> e) -> -e.getValue())
+                        .thenComparing(Map.Entry::getKey))
+            .limit(5)
+            .map(e -> e.getKey() + ":" + e.getValue())
+            .collect(Collectors.joining(", ", "[", "]"));
+    }
+
+    public static void main(String[] args)
+    {
+        List<Order> orders = sampleOrders();
+        System.out.println(totalsByCustomer(orders));
+        System.out.println(bestSellingProduct(orders).orElse("nothing"));
+        System.out.println(customersOver(orders, 50.0));
+
+        List<Predicate<? super Order>> rules = new ArrayList<>();
+        rules.add(o -> o.quantity > 1);
+        rules.add(o -> o.price < 6.0);
+        rules.add(o -> !"ink".equals(o.product));
+        long matching = orders.stream().filter(all(rules)).count();
+
+        TriFunction<Integer, Integer, Integer, Integer> volume = (a, b, c) -> a * b * c;
+        TriFunction<Integer, Integer, Integer, String> described = volume.andThen(v -> "volume " + v);
+        BiFunction<String, Integer, String> repeat = (s, n) -> String.join("", java.util.Collections.nCopies(n, s));
+        BinaryOperator<Integer> larger = BinaryOperator.maxBy(Comparator.naturalOrder());
+
+        AtomicInteger failures = new AtomicInteger();
+        Supplier<Integer> flaky = counter(0, 1);
+        int value = retry(5, () -> {
+            int n = flaky.get();
+            if (n < 3)
+                throw new IllegalArgumentException("not yet: " + n);
+            return n * 10;
+        }, ex -> failures.incrementAndGet());
+
+        Function<Integer, Integer> pipeline = compose(Arrays.asList(x -> x + 1, x -> x * 2, x -> x - 3));
+        EventBus bus = new EventBus();
+        List<String> seen = new ArrayList<>();
+        Runnable unsubscribe = bus.subscribe(String.class, seen::add);
+        bus.subscribe(Integer.class, n -> seen.add("#" + n));
+        bus.subscribe(Object.class, o -> { if (o instanceof Double) seen.add("double"); });
+        Stream.of("one", 2, "three", 4.0).forEach(bus::publish);
+        unsubscribe.run();
+        bus.publish("ignored");
+
+        Map<Boolean, List<Integer>> evenOdd = partition(Arrays.asList(1, 2, 3, 4, 5, 6, 7), n -> n % 2 == 0);
+        System.out.println(matching + " " + described.apply(2, 3, 4) + " " + repeat.apply("ab", 3) + " "
+                           + larger.apply(3, 9) + " " + value + "/" + failures + " " + pipeline.apply(5) + " "
+                           + seen + " " + bus.deliveredCount() + " " + evenOdd + " " + primesBelow(200) + " "
+                           + wordFrequencies("the cat and the hat and the bat sat on the mat"));
+    }
+}
@@ -0,0 +1,1009 @@
+/*
+ * Benchmark input for J2S: one large class body, a small spreadsheet with many fields, constructors, accessors,
+ * nested types, initialisers, counted loops, exception handling and synchronisation. Self-contained; it depends only
+ * on java.lang and java.util.
+ */
+package example;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+public class Sheet
+{
+    public static final int DEFAULT_ROWS = 64;
+    public static final int DEFAULT_COLUMNS = 26;
+    public static final int MAX_UNDO = 100;
+    public static final String ERROR = "#ERR";
+    public static final String CYCLE = "#CYCLE";
+    private static final char SEPARATOR = ',';
+    private static final char QUOTE = '"';
+    private static final Map<String, Integer> FUNCTION_ARITY;
+
+    static
+    {
+        Map<String, Integer> arity = new HashMap<>();
+        arity.put("SUM", -1);
+        arity.put("AVG", -1);
+        arity.put("MIN", -1);
+        arity.put("MAX", -1);
+        arity.put("COUNT", -1);
+        arity.put("ABS", 1);
+        arity.put("ROUND", 2);
+        arity.put("IF", 3);
+        FUNCTION_ARITY = Collections.unmodifiableMap(arity);
+    }
+
+    public enum Alignment { LEFT, RIGHT, CENTER }
+
+    public enum Format
+    {
+        GENERAL("%s"), INTEGER("%.0f"), FIXED2("%.2f"), PERCENT("%.1f%%"), SCIENTIFIC("%.3e");
+
+        final String pattern;
+
+        Format(String pattern)
+        {
+            this.pattern = pattern;
+        }
+
+        String apply(double value)
+        {
+            return this == GENERAL ? Sheet.formatGeneral(value)
+                 : String.format(Locale.ROOT, pattern, this == PERCENT ? value * 100 : value);
+        }
+    }
+
+    /// A cell's position, as column and row from zero, named like "B7".
+    public static final class Address implements Comparable<Address>
+    {
+        public final int column;
+        public final int row;
+
+        public Address(int column, int row)
+        {
+            if (column < 0 || row < 0)
+                throw new IllegalArgumentException("negative address " + column + "," + row);
+            this.column = column;
+            this.row = row;
+        }
+
+        public static Address parse(String name)
+        {
+            int i = 0, column = 0;
+            while (i < name.length() && Character.isLetter(name.charAt(i)))
+                column = column * 26 + (Character.toUpperCase(name.charAt(i++)) - 'A' + 1);
+            if (i == 0 || i == name.length())
+                throw new IllegalArgumentException("not an address: " + name);
+            return new Address(column - 1, Integer.parseInt(name.substring(i)) - 1);
+        }
+
+        public String name()
+        {
+            StringBuilder letters = new StringBuilder();
+            for (int c = column + 1; c > 0; c = (c - 1) / 26)
+                letters.insert(0, (char) ('A' + (c - 1) % 26));
+            return letters.toString() + (row + 1);
+        }
+
+        public Address offset(int columns, int rows)
+        {
+            return new Address(column + columns, row + rows);
+        }
+
+        @Override
+        public int compareTo(Address other)
+        {
+            return row != other.row ? Integer.compare(row, other.row) : Integer.compare(column, other.column);
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            return other instanceof Address && ((Address) other).column == column && ((Address) other).row == row;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return row * 1031 + column;
+        }
+
+        @Override
+        public String toString()
+        {
+            return name();
+        }
+    }
+
+    private static final class Cell
+    {
+        String input = "";
+        Double number;
+        String text;
+        boolean formula;
+        Format format = Format.GENERAL;
+        Alignment alignment;
+        final Set<Address> dependents = new HashSet<>();
+
+        boolean isEmpty()
+        {
+            return input.isEmpty();
+        }
+    }
+
+    private static final class Edit
+    {
+        final Address address;
+        final String before;
+        final String after;
+
+        Edit(Address address, String before, String after)
+        {
+            this.address = address;
+            this.before = before;
+            this.after = after;
+        }
+    }
+
+    public interface Listener
+    {
+        void cellChanged(Address address, String oldDisplay, String newDisplay);
+    }
+
+    private final String name;
+    private int rows;
+    private int columns;
+    private final Map<Address, Cell> cells = new HashMap<>();
+    private final Deque<Edit> undo = new ArrayDeque<>();
+    private final Deque<Edit> redo = new ArrayDeque<>();
+    private final List<Listener> listeners = new ArrayList<>();
+    private final Object lock = new Object();
+    private int recalculations;
+    private int[] columnWidths;
+    private boolean frozen;
+    private String lastError;
+
+    {
+        columnWidths = new int[DEFAULT_COLUMNS];
+        Arrays.fill(columnWidths, 10);
+    }
+
+    public Sheet()
+    {
+        this("Sheet1");
+    }
+
+    public Sheet(String name)
+    {
+        this(name, DEFAULT_ROWS, DEFAULT_COLUMNS);
+    }
+
+    public Sheet(String name, int rows, int columns)
+    {
+        this.name = name;
+        this.rows = rows;
+        this.columns = columns;
+        if (columns > columnWidths.length)
+            columnWidths = Arrays.copyOf(columnWidths, columns);
+        for (int i = DEFAULT_COLUMNS; i < columns; i++)
+            columnWidths[i] = 10;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public int getRows()
+    {
+        return rows;
+    }
+
+    public int getColumns()
+    {
+        return columns;
+    }
+
+    public int getRecalculations()
+    {
+        return recalculations;
+    }
+
+    public String getLastError()
+    {
+        return lastError;
+    }
+
+    public boolean isFrozen()
+    {
+        return frozen;
+    }
+
+    public void setFrozen(boolean frozen)
+    {
+        this.frozen = frozen;
+    }
+
+    public int getColumnWidth(int column)
+    {
+        return column < columnWidths.length ? columnWidths[column] : 10;
+    }
+
+    public void setColumnWidth(int column, int width)
+    {
+        if (width < 1 || width > 80)
+            throw new IllegalArgumentException("width " + width + " out of range");
+        checkColumn(column);
+        columnWidths[column] = width;
+    }
+
+    public void addListener(Listener listener)
+    {
+        synchronized (lock)
+        {
+            listeners.add(listener);
+        }
+    }
+
+    public void removeListener(Listener listener)
+    {
+        synchronized (lock)
+        {
+            listeners.remove(listener);
+        }
+    }
+
+    private void checkColumn(int column)
+    {
+        if (column >= columns)
+            throw new IndexOutOfBoundsException("column " + column + " of " + columns);
+    }
+
+    private void checkAddress(Address address)
+    {
+        checkColumn(address.column);
+        if (address.row >= rows)
+            throw new IndexOutOfBoundsException("row " + address.row + " of " + rows);
+    }
+
+    private Cell cell(Address address, boolean create)
+    {
+        Cell cell = cells.get(address);
+        if (cell == null && create)
+        {
+            cell = new Cell();
+            cells.put(address, cell);
+        }
+        return cell;
+    }
+
+    public String getInput(String address)
+    {
+        Cell cell = cells.get(Address.parse(address));
+        return cell == null ? "" : cell.input;
+    }
+
+    public void set(String address, String input)
+    {
+        set(Address.parse(address), input, true);
+    }
+
+    public void set(String address, double value)
+    {
+        set(address, formatGeneral(value));
+    }
+
+    private void set(Address address, String input, boolean record)
+    {
+        if (frozen)
+            throw new IllegalStateException(name + " is frozen");
+        checkAddress(address);
+        Cell cell = cell(address, true);
+        String before = cell.input;
+        if (before.equals(input))
+            return;
+        if (record)
+        {
+            undo.push(new Edit(address, before, input));
+            while (undo.size() > MAX_UNDO)
+                undo.removeLast();
+            redo.clear();
+        }
+        for (Cell other : cells.values())
+            other.dependents.remove(address);
+        cell.input = input == null ? "" : input.trim();
+        cell.formula = cell.input.startsWith("=");
+        if (cell.formula)
+            for (Address reference : references(cell.input.substring(1)))
+                cell(reference, true).dependents.add(address);
+        recalculateFrom(address);
+    }
+
+    public boolean undo()
+    {
+        if (undo.isEmpty())
+            return false;
+        Edit edit = undo.pop();
+        set(edit.address, edit.before, false);
+        redo.push(edit);
+        return true;
+    }
+
+    public boolean redo()
+    {
+        if (redo.isEmpty())
+            return false;
+        Edit edit = redo.pop();
+        set(edit.address, edit.after, false);
+        undo.push(edit);
+        return true;
+    }
+
+    public void clear(String from, String to)
+    {
+        Address a = Address.parse(from), b = Address.parse(to);
+        for (int row = Math.min(a.row, b.row); row <= Math.max(a.row, b.row); row++)
+            for (int column = Math.min(a.column, b.column); column <= Math.max(a.column, b.column); column++)
+                if (cells.containsKey(new Address(column, row)))
+                    set(new Address(column, row), "", true);
+    }
+
+    public double getNumber(String address)
+    {
+        Cell cell = cells.get(Address.parse(address));
+        if (cell == null || cell.number == null)
+            return 0;
+        return cell.number;
+    }
+
+    public String getDisplay(String address)
+    {
+        return display(cells.get(Address.parse(address)));
+    }
+
+    private String display(Cell cell)
+    {
+        if (cell == null || cell.isEmpty())
+            return "";
+        if (cell.number != null)
+            return cell.format.apply(cell.number);
+        return cell.text == null ? "" : cell.text;
+    }
+
+    public void setFormat(String address, Format format)
+    {
+        Cell cell = cell(Address.parse(address), true);
+        cell.format = format;
+    }
+
+    public void setAlignment(String address, Alignment alignment)
+    {
+        cell(Address.parse(address), true).alignment = alignment;
+    }
+
+    // Recalculation: evaluate the changed cell, then everything depending on it, in dependency order
+
+    private void recalculateFrom(Address start)
+    {
+        List<Address> order = new ArrayList<>();
+        Set<Address> visiting = new HashSet<>(), done = new HashSet<>();
+        boolean cyclic = !collect(start, visiting, done, order);
+        Collections.reverse(order);
+        for (int i = 0; i < order.size(); i++)
+        {
+            Address address = order.get(i);
+            Cell cell = cells.get(address);
+            String before = display(cell);
+            if (cyclic)
+            {
+                cell.number = null;
+                cell.text = CYCLE;
+            }
+            else
+                evaluate(cell);
+            recalculations++;
+            String after = display(cell);
+            if (!before.equals(after))
+                fireChanged(address, before, after);
+        }
+    }
+
+    private boolean collect(Address address, Set<Address> visiting, Set<Address> done, List<Address> order)
+    {
+        if (done.contains(address))
+            return true;
+        if (!visiting.add(address))
+            return false;
+        Cell cell = cells.get(address);
+        boolean ok = true;
+        if (cell != null)
+            for (Address dependent : cell.dependents)
+                ok &= collect(dependent, visiting, done, order);
+        visiting.remove(address);
+        done.add(address);
+        order.add(address);
+        return ok;
+    }
+
+    private void fireChanged(Address address, String before, String after)
+    {
+        List<Listener> copy;
+        synchronized (lock)
+        {
+            copy = new ArrayList<>(listeners);
+        }
+        for (Listener listener : copy)
+        {
+            try
+            {
+                listener.cellChanged(address, before, after);
+            }
+            catch (RuntimeException ex)
+            {
+                lastError = ex.getClass().getSimpleName() + ": " + ex.getMessage();
+            }
+        }
+    }
+
+    private void evaluate(Cell cell)
+    {
+        cell.number = null;
+        cell.text = null;
+        if (!cell.formula)
+        {
+            try
+            {
+                cell.number = Double.valueOf(cell.input);
+            }
+            catch (NumberFormatException ex)
+            {
+                cell.text = cell.input;
+            }
+            return;
+        }
+        try
+        {
+            cell.number = new Evaluator(cell.input.substring(1)).evaluate();
+        }
+        catch (RuntimeException ex)
+        {
+            lastError = ex.getMessage();
+            cell.text = ERROR;
+        }
+    }
+
+    static List<Address> references(String formula)
+    {
+        List<Address> found = new ArrayList<>();
+        String upper = formula.toUpperCase(Locale.ROOT);
+        for (int i = 0; i < upper.length(); i++)
+        {
+            if (!Character.isLetter(upper.charAt(i)) || (i > 0 && Character.isLetterOrDigit(upper.charAt(i - 1))))
+                continue;
+            int j = i;
+            while (j < upper.length() && Character.isLetter(upper.charAt(j)))
+                j++;
+            int k = j;
+            while (k < upper.length() && Character.isDigit(upper.charAt(k)))
+                k++;
+            if (k > j && j - i <= 2)
+            {
+                Address first = Address.parse(upper.substring(i, k));
+                if (k < upper.length() && upper.charAt(k) == ':')
+                {
+                    int end = k + 1;
+                    while (end < upper.length() && Character.isLetterOrDigit(upper.charAt(end)))
+                        end++;
+                    Address last = Address.parse(upper.substring(k + 1, end));
+                    for (int row = first.row; row <= last.row; row++)
+                        for (int column = first.column; column <= last.column; column++)
+                            found.add(new Address(column, row));
+                    k = end;
+                }
+                else
+                    found.add(first);
+            }
+            i = k - 1;
+        }
+        return found;
+    }
+
+    /// Evaluates a formula: numbers, cell references and ranges, + - * / with parentheses, and the functions.
+    private final class Evaluator
+    {
+        private final String text;
+        private int at;
+
+        Evaluator(String text)
+        {
+            this.text = text.toUpperCase(Locale.ROOT).replace(" ", "");
+        }
+
+        double evaluate()
+        {
+            double value = sum();
+            if (at != text.length())
+                throw new IllegalArgumentException("junk at " + at + " in " + text);
+            return value;
+        }
+
+        private double sum()
+        {
+            double value = product();
+            while (at < text.length())
+            {
+                char c = text.charAt(at);
+                if (c == '+') { at++; value += product(); }
+                else if (c == '-') { at++; value -= product(); }
+                else break;
+            }
+            return value;
+        }
+
+        private double product()
+        {
+            double value = factor();
+            while (at < text.length())
+            {
+                char c = text.charAt(at);
+                if (c == '*') { at++; value *= factor(); }
+                else if (c == '/')
+                {
+                    at++;
+                    double divisor = factor();
+                    if (divisor == 0)
+                        throw new ArithmeticException("division by zero");
+                    value /= divisor;
+                }
+                else break;
+            }
+            return value;
+        }
+
+        private double factor()
+        {
+            if (at >= text.length())
+                throw new IllegalArgumentException("unexpected end of " + text);
+            char c = text.charAt(at);
+            if (c == '-')
+            {
+                at++;
+                return -factor();
+            }
+            if (c == '(')
+            {
+                at++;
+                double value = sum();
+                expect(')');
+                return value;
+            }
+            if (Character.isDigit(c) || c == '.')
+            {
+                int start = at;
+                while (at < text.length() && (Character.isDigit(text.charAt(at)) || text.charAt(at) == '.'))
+                    at++;
+                return Double.parseDouble(text.substring(start, at));
+            }
+            int start = at;
+            while (at < text.length() && Character.isLetter(text.charAt(at)))
+                at++;
+            String word = text.substring(start, at);
+            if (at < text.length() && text.charAt(at) == '(')
+                return function(word);
+            while (at < text.length() && Character.isDigit(text.charAt(at)))
+                at++;
+            return valueAt(Address.parse(text.substring(start, at)));
+        }
+
+        private double function(String function)
+        {
+            Integer arity = FUNCTION_ARITY.get(function);
+            if (arity == null)
+                throw new IllegalArgumentException("unknown function " + function);
+            expect('(');
+            List<Double> arguments = new ArrayList<>();
+            while (text.charAt(at) != ')')
+            {
+                if (!arguments.isEmpty())
+                    expect(',');
+                int save = at;
+                List<Address> range = rangeAt();
+                if (range != null)
+                    for (Address address : range)
+                        arguments.add(valueAt(address));
+                else
+                {
+                    at = save;
+                    arguments.add(sum());
+                }
+            }
+            expect(')');
+            if (arity >= 0 && arguments.size() != arity)
+                throw new IllegalArgumentException(function + " takes " + arity + " arguments");
+            double result;
+            if (function.equals("SUM") || function.equals("AVG"))
+            {
+                result = 0;
+                for (int i = 0; i < arguments.size(); i++)
+                    result += arguments.get(i);
+                if (function.equals("AVG"))
+                    result = arguments.isEmpty() ? 0 : result / arguments.size();
+            }
+            else if (function.equals("MIN"))
+                result = Collections.min(arguments);
+            else if (function.equals("MAX"))
+                result = Collections.max(arguments);
+            else if (function.equals("COUNT"))
+                result = arguments.size();
+            else if (function.equals("ABS"))
+                result = Math.abs(arguments.get(0));
+            else if (function.equals("ROUND"))
+            {
+                double scale = Math.pow(10, arguments.get(1).intValue());
+                result = Math.round(arguments.get(0) * scale) / scale;
+            }
+            else
+                result = arguments.get(0) != 0 ? arguments.get(1) : arguments.get(2);
+            return result;
+        }
+
+        private List<Address> rangeAt()
+        {
+            int start = at;
+            while (at < text.length() && Character.isLetterOrDigit(text.charAt(at)))
+                at++;
+            if (at >= text.length() || text.charAt(at) != ':' || start == at)
+                return null;
+            Address first = Address.parse(text.substring(start, at++));
+            int end = at;
+            while (at < text.length() && Character.isLetterOrDigit(text.charAt(at)))
+                at++;
+            Address last = Address.parse(text.substring(end, at));
+            List<Address> range = new ArrayList<>();
+            for (int row = first.row; row <= last.row; row++)
+                for (int column = first.column; column <= last.column; column++)
+                    range.add(new Address(column, row));
+            return range;
+        }
+
+        private double valueAt(Address address)
+        {
+            Cell cell = cells.get(address);
+            if (cell == null || cell.isEmpty())
+                return 0;
+            if (cell.number == null)
+                throw new IllegalArgumentException(address + " is not a number");
+            return cell.number;
+        }
+
+        private void expect(char c)
+        {
+            if (at >= text.length() || text.charAt(at) != c)
+                throw new IllegalArgumentException("expected " + c + " at " + at + " in " + text);
+            at++;
+        }
+    }
+
+    // Rows and columns
+
+    public void insertRow(int before)
+    {
+        shift(0, before, 0, 1);
+        rows++;
+    }
+
+    public void deleteRow(int row)
+    {
+        for (int column = 0; column < columns; column++)
+            cells.remove(new Address(column, row));
+        shift(0, row + 1, 0, -1);
+        rows--;
+    }
+
+    public void insertColumn(int before)
+    {
+        shift(before, 0, 1, 0);
+        columns++;
+        columnWidths = Arrays.copyOf(columnWidths, Math.max(columns, columnWidths.length));
+        System.arraycopy(columnWidths, before, columnWidths, before + 1, columns - before - 1);
+        columnWidths[before] = 10;
+    }
+
+    private void shift(int fromColumn, int fromRow, int byColumns, int byRows)
+    {
+        Map<Address, Cell> moved = new HashMap<>();
+        List<Address> keys = new ArrayList<>(cells.keySet());
+        for (int i = keys.size() - 1; i >= 0; i--)
+        {
+            Address address = keys.get(i);
+            if (address.column >= fromColumn && address.row >= fromRow)
+                moved.put(address.offset(byColumns, byRows), cells.remove(address));
+        }
+        cells.putAll(moved);
+        undo.clear();
+        redo.clear();
+    }
+
+    public void sortRows(final int byColumn, int firstRow, int lastRow, final boolean descending)
+    {
+        List<Map<Integer, String>> table = new ArrayList<>();
+        for (int row = firstRow; row <= lastRow; row++)
+        {
+            Map<Integer, String> values = new HashMap<>();
+            for (int column = 0; column < columns; column++)
+            {
+                Cell cell = cells.get(new Address(column, row));
+                if (cell != null && !cell.isEmpty())
+                    values.put(column, cell.input);
+            }
+            table.add(values);
+        }
+        Collections.sort(table, new Comparator<Map<Integer, String>>() {
+            @Override
+            public int compare(Map<Integer, String> a, Map<Integer, String> b)
+            {
+                String x = a.get(byColumn), y = b.get(byColumn);
+                int order;
+                if (x == null || y == null)
+                    order = x == null ? (y == null ? 0 : 1) : -1;
+                else
+                {
+                    try
+                    {
+                        order = Double.compare(Double.parseDouble(x), Double.parseDouble(y));
+                    }
+                    catch (NumberFormatException ex)
+                    {
+                        order = x.compareToIgnoreCase(y);
+                    }
+                }
+                return descending ? -order : order;
+            }
+        });
+        for (int i = 0; i < table.size(); i++)
+            for (int column = 0; column < columns; column++)
+            {
+                String value = table.get(i).get(column);
+                Address address = new Address(column, firstRow + i);
+                if (value != null || cells.containsKey(address))
+                    set(address, value == null ? "" : value, true);
+            }
+    }
+
+    // Statistics over a column
+
+    public double[] columnValues(int column)
+    {
+        List<Double> values = new ArrayList<>();
+        for (int row = 0; row < rows; row++)
+        {
+            Cell cell = cells.get(new Address(column, row));
+            if (cell != null && cell.number != null)
+                values.add(cell.number);
+        }
+        double[] result = new double[values.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = values.get(i);
+        return result;
+    }
+
+    public static double mean(double[] values)
+    {
+        double sum = 0;
+        for (double value : values)
+            sum += value;
+        return values.length == 0 ? Double.NaN : sum / values.length;
+    }
+
+    public static double median(double[] values)
+    {
+        if (values.length == 0)
+            return Double.NaN;
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        int middle = sorted.length / 2;
+        return sorted.length % 2 == 1 ? sorted[middle] : (sorted[middle - 1] + sorted[middle]) / 2;
+    }
+
+    public static double standardDeviation(double[] values)
+    {
+        double mean = mean(values), squares = 0;
+        for (int i = 0; i < values.length; i++)
+        {
+            double d = values[i] - mean;
+            squares += d * d;
+        }
+        return values.length < 2 ? 0 : Math.sqrt(squares / (values.length - 1));
+    }
+
+    public Map<String, Integer> histogram(int column, double bucketWidth)
+    {
+        Map<String, Integer> buckets = new LinkedHashMap<>();
+        double[] values = columnValues(column);
+        Arrays.sort(values);
+        for (double value : values)
+        {
+            double low = Math.floor(value / bucketWidth) * bucketWidth;
+            String key = formatGeneral(low) + ".." + formatGeneral(low + bucketWidth);
+            Integer count = buckets.get(key);
+            buckets.put(key, count == null ? 1 : count + 1);
+        }
+        return buckets;
+    }
+
+    // Import and export
+
+    public void importCsv(String csv)
+    {
+        String[] lines = csv.split("\r?\n");
+        for (int row = 0; row < lines.length; row++)
+        {
+            List<String> fields = splitCsvLine(lines[row]);
+            for (int column = 0; column < fields.size(); column++)
+                if (!fields.get(column).isEmpty())
+                    set(new Address(column, row), fields.get(column), true);
+        }
+    }
+
+    static List<String> splitCsvLine(String line)
+    {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++)
+        {
+            char c = line.charAt(i);
+            if (quoted)
+            {
+                if (c == QUOTE && i + 1 < line.length() && line.charAt(i + 1) == QUOTE)
+                {
+                    field.append(QUOTE);
+                    i++;
+                }
+                else if (c == QUOTE)
+                    quoted = false;
+                else
+                    field.append(c);
+            }
+            else if (c == QUOTE)
+                quoted = true;
+            else if (c == SEPARATOR)
+            {
+                fields.add(field.toString());
+                field.setLength(0);
+            }
+            else
+                field.append(c);
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    public String exportCsv(boolean values)
+    {
+        int lastRow = -1, lastColumn = -1;
+        for (Map.Entry<Address, Cell> entry : cells.entrySet())
+            if (!entry.getValue().isEmpty())
+            {
+                lastRow = Math.max(lastRow, entry.getKey().row);
+                lastColumn = Math.max(lastColumn, entry.getKey().column);
+            }
+        StringBuilder sb = new StringBuilder();
+        for (int row = 0; row <= lastRow; row++)
+        {
+            for (int column = 0; column <= lastColumn; column++)
+            {
+                if (column > 0)
+                    sb.append(SEPARATOR);
+                Cell cell = cells.get(new Address(column, row));
+                String text = cell == null ? "" : values ? display(cell) : cell.input;
+                if (text.indexOf(SEPARATOR) >= 0 || text.indexOf(QUOTE) >= 0)
+                    text = QUOTE + text.replace("\"", "\"\"") + QUOTE;
+                sb.append(text);
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    public String render(int firstRow, int lastRow)
+    {
+        StringBuilder sb = new StringBuilder("    ");
+        int lastColumn = 0;
+        for (Address address : cells.keySet())
+            lastColumn = Math.max(lastColumn, address.column);
+        for (int column = 0; column <= lastColumn; column++)
+            sb.append(pad(new Address(column, 0).name().replaceAll("[0-9]", ""), getColumnWidth(column),
+                          Alignment.CENTER)).append('|');
+        sb.append('\n');
+        for (int row = firstRow; row <= lastRow; row++)
+        {
+            sb.append(pad(Integer.toString(row + 1), 4, Alignment.RIGHT));
+            for (int column = 0; column <= lastColumn; column++)
+            {
+                Cell cell = cells.get(new Address(column, row));
+                Alignment alignment = cell == null || cell.alignment == null
+                                    ? (cell != null && cell.number != null ? Alignment.RIGHT : Alignment.LEFT)
+                                    : cell.alignment;
+                sb.append(pad(display(cell), getColumnWidth(column), alignment)).append('|');
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    static String pad(String text, int width, Alignment alignment)
+    {
+        if (text.length() >= width)
+            return text.substring(0, width);
+        int space = width - text.length();
+        StringBuilder sb = new StringBuilder(width);
+        int left = alignment == Alignment.RIGHT ? space : alignment == Alignment.CENTER ? space / 2 : 0;
+        for (int i = 0; i < left; i++)
+            sb.append(' ');
+        sb.append(text);
+        while (sb.length() < width)
+            sb.append(' ');
+        return sb.toString();
+    }
+
+    static String formatGeneral(double value)
+    {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15)
+            return Long.toString((long) value);
+        String text = String.format(Locale.ROOT, "%.6f", value);
+        int end = text.length();
+        while (text.charAt(end - 1) == '0')
+            end--;
+        return text.substring(0, text.charAt(end - 1) == '.' ? end - 1 : end);
+    }
+
+    public static void main(String[] args)
+    {
+        Sheet sheet = new Sheet("Budget", 20, 6);
+        final List<String> changes = new ArrayList<>();
+        sheet.addListener(new Listener() {
+            @Override
+            public void cellChanged(Address address, String oldDisplay, String newDisplay)
+            {
+                changes.add(address + ":" + oldDisplay + "->" + newDisplay);
+            }
+        });
+        sheet.importCsv("Item,Qty,Price,Total\n"
+                      + "Pens,12,1.25,=B2*C2\n"
+                      + "Paper,5,4.5,=B3*C3\n"
+                      + "\"Ink, black\",3,17.99,=B4*C4\n"
+                      + "Stamps,100,0.6,=B5*C5\n");
+        sheet.set("D6", "=SUM(D2:D5)");
+        sheet.set("D7", "=ROUND(AVG(D2:D5), 2)");
+        sheet.set("D8", "=IF(D6-100, MAX(D2:D5), MIN(D2:D5))");
+        sheet.setFormat("D6", Format.FIXED2);
+        sheet.setFormat("C2", Format.PERCENT);
+        sheet.set("B3", 7);
+        sheet.set("E1", "=E2");
+        sheet.set("E2", "=E1");
+        sheet.undo();
+        sheet.redo();
+        sheet.sortRows(3, 1, 4, true);
+        sheet.insertColumn(1);
+        double[] totals = sheet.columnValues(4);
+        System.out.println(sheet.render(0, 8));
+        System.out.println(sheet.exportCsv(true));
+        System.out.println(String.format(Locale.ROOT, "mean %.3f median %.3f sd %.3f", mean(totals),
+                                         median(totals), standardDeviation(totals)));
+        System.out.println(sheet.histogram(4, 25) + " " + changes.size() + " changes, "
+                           + sheet.getRecalculations() + " recalculations, last error " + sheet.getLastError());
+        System.out.println(references("SUM(A1:B2) + C3 * MAX(AA10, B1)") + " " + Address.parse("AB12").name());
+    }
+}
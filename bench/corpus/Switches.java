@@ -0,0 +1,311 @@
+/*
+ * Benchmark input for J2S: switch statements over characters, strings, enums and ints, with fall through, defaults
+ * in the middle, nested switches and labelled loops. Self-contained; it depends only on java.lang and java.util.
+ */
+package example;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+public class Switches
+{
+    enum Kind { IDENTIFIER, NUMBER, STRING, OPERATOR, OPEN, CLOSE, COMMENT, END }
+
+    enum Day { MONDAY, TUESDAY, WEDNESDAY, THURSDAY, FRIDAY, SATURDAY, SUNDAY }
+
+    static final class Token
+    {
+        final Kind kind;
+        final String text;
+
+        Token(Kind kind, String text)
+        {
+            this.kind = kind;
+            this.text = text;
+        }
+
+        @Override
+        public String toString()
+        {
+            return kind + "[" + text + "]";
+        }
+    }
+
+    /// Splits text into tokens with a character driven state machine.
+    static List<Token> tokenize(String text)
+    {
+        final int START = 0, IN_WORD = 1, IN_NUMBER = 2, IN_STRING = 3, IN_COMMENT = 4;
+        List<Token> tokens = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        int state = START;
+        int i = 0;
+        scan:
+        while (true)
+        {
+            char c = i < text.length() ? text.charAt(i) : '\0';
+            switch (state)
+            {
+                case START:
+                    switch (c)
+                    {
+                        case '\0':
+                            break scan;
+                        case ' ': case '\t': case '\n': case '\r':
+                            i++;
+                            continue scan;
+                        case '"':
+                            state = IN_STRING;
+                            i++;
+                            continue scan;
+                        case '#':
+                            state = IN_COMMENT;
+                            i++;
+                            continue scan;
+                        case '(': case '[': case '{':
+                            tokens.add(new Token(Kind.OPEN, String.valueOf(c)));
+                            i++;
+                            continue scan;
+                        case ')': case ']': case '}':
+                            tokens.add(new Token(Kind.CLOSE, String.valueOf(c)));
+                            i++;
+                            continue scan;
+                        case '+': case '-': case '*': case '/': case '=': case '<': case '>': case ',':
+                            if (i + 1 < text.length() && text.charAt(i + 1) == '=')
+                            {
+                                tokens.add(new Token(Kind.OPERATOR, text.substring(i, i + 2)));
+                                i += 2;
+                            }
+                            else
+                                tokens.add(new Token(Kind.OPERATOR, String.valueOf(text.charAt(i++))));
+                            continue scan;
+                        default:
+                            if (Character.isDigit(c))
+                                state = IN_NUMBER;
+                            else if (Character.isLetter(c) || c == '_')
+                                state = IN_WORD;
+                            else
+                                throw new IllegalArgumentException("unexpected " + c + " at " + i);
+                    }
+                    break;
+                case IN_WORD:
+                case IN_NUMBER:
+                    if (state == IN_WORD ? Character.isLetterOrDigit(c) || c == '_' : Character.isDigit(c) || c == '.')
+                    {
+                        current.append(c);
+                        i++;
+                        break;
+                    }
+                    tokens.add(new Token(state == IN_WORD ? Kind.IDENTIFIER : Kind.NUMBER, current.toString()));
+                    current.setLength(0);
+                    state = START;
+                    break;
+                case IN_STRING:
+                    switch (c)
+                    {
+                        case '\0':
+                            throw new IllegalArgumentException("unterminated string");
+                        case '\\':
+                            current.append(i + 1 < text.length() ? text.charAt(i + 1) : '\\');
+                            i += 2;
+                            break;
+                        case '"':
+                            tokens.add(new Token(Kind.STRING, current.toString()));
+                            current.setLength(0);
+                            state = START;
+                            // fall through
+                        default:
+                            if (state == IN_STRING)
+                                current.append(c);
+                            i++;
+                    }
+                    break;
+                case IN_COMMENT:
+                    if (c == '\n' || c == '\0')
+                    {
+                        tokens.add(new Token(Kind.COMMENT, current.toString().trim()));
+                        current.setLength(0);
+                        state = START;
+                    }
+                    else
+                    {
+                        current.append(c);
+                        i++;
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("state " + state);
+            }
+        }
+        tokens.add(new Token(Kind.END, ""));
+        return tokens;
+    }
+
+    static int precedence(String operator)
+    {
+        switch (operator)
+        {
+            case "=":
+                return 0;
+            case "<": case ">": case "<=": case ">=":
+                return 1;
+            case "+": case "-":
+                return 2;
+            case "*": case "/":
+                return 3;
+            default:
+                return -1;
+        }
+    }
+
+    static int daysUntilWeekend(Day day)
+    {
+        int days = 0;
+        switch (day)
+        {
+            case MONDAY:
+                days++;
+            case TUESDAY:
+                days++;
+            case WEDNESDAY:
+                days++;
+            case THURSDAY:
+                days++;
+            case FRIDAY:
+                days++;
+                break;
+            case SATURDAY:
+            case SUNDAY:
+                days = 0;
+        }
+        return days;
+    }
+
+    static String describe(int code)
+    {
+        String result;
+        switch (code / 100)
+        {
+            case 1:
+                result = "informational";
+                break;
+            case 2:
+                switch (code)
+                {
+                    case 200: result = "ok"; break;
+                    case 201: result = "created"; break;
+                    case 204: result = "no content"; break;
+                    default: result = "success"; break;
+                }
+                break;
+            default:
+                result = "unknown";
+                break;
+            case 3:
+                result = code == 304 ? "not modified" : "redirect";
+                break;
+            case 4:
+                switch (code)
+                {
+                    case 401:
+                    case 403:
+                        result = "denied";
+                        break;
+                    case 404:
+                        result = "not found";
+                        break;
+                    default:
+                        result = "client error";
+                }
+                break;
+            case 5:
+                result = "server error";
+        }
+        return code + " " + result;
+    }
+
+    static Map<Kind, Integer> histogram(List<Token> tokens)
+    {
+        Map<Kind, Integer> counts = new EnumMap<>(Kind.class);
+        for (Token token : tokens)
+        {
+            Integer count = counts.get(token.kind);
+            counts.put(token.kind, count == null ? 1 : count + 1);
+        }
+        return counts;
+    }
+
+    static int checkBalance(List<Token> tokens)
+    {
+        int depth = 0, maxDepth = 0;
+        for (Token token : tokens)
+        {
+            switch (token.kind)
+            {
+                case OPEN:
+                    maxDepth = Math.max(maxDepth, ++depth);
+                    break;
+                case CLOSE:
+                    if (--depth < 0)
+                        return -1;
+                    break;
+                case END:
+                    return depth == 0 ? maxDepth : -1;
+                default:
+                    continue;
+            }
+        }
+        return -1;
+    }
+
+    static String roman(int number)
+    {
+        StringBuilder sb = new StringBuilder();
+        int[] values = { 1000, 500, 100, 50, 10, 5, 1 };
+        for (int i = 0; i < values.length; i += 2)
+        {
+            int digit = number / values[i] % 10;
+            String one = "MCXI".substring(i / 2, i / 2 + 1);
+            String five = i == 0 ? "?" : "?DLV".substring(i / 2, i / 2 + 1);
+            String ten = i == 0 ? "?" : "MCX".substring(i / 2 - 1, i / 2);
+            switch (digit)
+            {
+                case 9: sb.append(one).append(ten); break;
+                case 8: case 7: case 6: case 5:
+                    sb.append(five);
+                    for (int k = 5; k < digit; k++)
+                        sb.append(one);
+                    break;
+                case 4: sb.append(one).append(five); break;
+                case 3: sb.append(one);
+                case 2: sb.append(one);
+                case 1: sb.append(one);
+                case 0: break;
+            }
+        }
+        return sb.toString();
+    }
+
+    public static void main(String[] args)
+    {
+        String source = "total = (price * qty) + tax # running sum\n"
+                      + "if total >= 100 { label = \"big \\\"order\\\"\" } else { label = \"small\" }\n"
+                      + "scale(x, [1, 2.5, 3]) - 4 / y";
+        List<Token> tokens = tokenize(source);
+        System.out.println(tokens);
+        System.out.println(histogram(tokens) + " depth " + checkBalance(tokens));
+        for (Token token : tokens)
+            if (token.kind == Kind.OPERATOR)
+                System.out.print(token.text + ":" + precedence(token.text) + " ");
+        System.out.println();
+        for (Day day : Day.values())
+            System.out.print(day.name().charAt(0) + "" + daysUntilWeekend(day) + " ");
+        System.out.println();
+        for (int code : new int[] { 100, 200, 201, 204, 299, 301, 304, 401, 404, 418, 503, 999 })
+            System.out.println(describe(code));
+        for (int n = 1; n < 40; n += 3)
+            System.out.print(roman(n) + " ");
+        System.out.println(roman(1994) + " " + roman(2024));
+    }
+}
@@ -0,0 +1,127 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2016 Torsten Louland
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package com.satisfyingstructures.J2S;
+
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/// ConversionOptions are everything, besides the input, that determines what a conversion produces: the values
+/// defined for keys the converter looks up (the -D options), the type mappings to apply (the -M options), a compiled
+/// profile of further type mappings (the -m option), whether to parse using only full LL prediction (the -L option),
+/// and the charset in which to read java source given as bytes (the -e option). Instances are immutable, so can be
+/// shared freely between threads and conversions.
+///
+/// One -D option is for the parser rather than the converter: -Dplainprediction parses with ANTLR's own prediction
+/// instead of J2SParserATNSimulator, to rule the simulator's shortcuts out when a parse looks wrong, or to time them.
+public final class ConversionOptions
+{
+    public static final ConversionOptions DEFAULT = new ConversionOptions(null, null, false);
+
+    private final Map<String, String> definitions;
+    private final Map<String, String> typeMappings;
+    private final boolean fullLL;
+    private final boolean plainPrediction;
+    private final Charset charset;
+    private final J2SMappingProfile mappingProfile;
+
+    /// Either map may be null for none; both are copied. Source is read in the platform's default charset.
+    public ConversionOptions(Map<String, String> definitions, Map<String, String> typeMappings, boolean fullLL)
+    {
+        this(definitions, typeMappings, fullLL, null);
+    }
+
+    /// As above, but reading source in charset, or if that is null, the platform's default.
+    public ConversionOptions(Map<String, String> definitions, Map<String, String> typeMappings, boolean fullLL,
+                             Charset charset)
+    {
+        this(definitions, typeMappings, fullLL, charset, null);
+    }
+
+    /// As above, but also applying the type mappings of mappingProfile, if not null, to types that typeMappings
+    /// doesn't map.
+    public ConversionOptions(Map<String, String> definitions, Map<String, String> typeMappings, boolean fullLL,
+                             Charset charset, J2SMappingProfile mappingProfile)
+    {
+        this.definitions = null == definitions || definitions.isEmpty()
+                         ? Collections.emptyMap()
+                         : Collections.unmodifiableMap(new HashMap<>(definitions));
+        this.typeMappings = null == typeMappings || typeMappings.isEmpty()
+                          ? Collections.emptyMap()
+                          : Collections.unmodifiableMap(new HashMap<>(typeMappings));
+        this.fullLL = fullLL;
+        this.plainPrediction = option(this.definitions, "plainprediction");
+        this.charset = null != charset ? charset : Charset.defaultCharset();
+        this.mappingProfile = mappingProfile;
+    }
+
+    public Map<String, String> getDefinitions()
+    {
+        return definitions;
+    }
+
+    public Map<String, String> getTypeMappings()
+    {
+        return typeMappings;
+    }
+
+    public boolean isFullLL()
+    {
+        return fullLL;
+    }
+
+    public boolean isPlainPrediction()
+    {
+        return plainPrediction;
+    }
+
+    public Charset getCharset()
+    {
+        return charset;
+    }
+
+    public J2SMappingProfile getMappingProfile()
+    {
+        return mappingProfile;
+    }
+
+    /// Whether key is defined in definitions as a switch that is on: with no value, or a value meaning yes.
+    static boolean option(Map<String, String> definitions, String key)
+    {
+        String value = definitions.get(key);
+        if (null != value)
+        switch (value)
+        {
+            case "": // key was just defined
+            case "1":
+            case "Y":
+            case "YES":
+            case "true":
+            case "TRUE":
+                return true;
+        }
+        return false;
+    }
+}
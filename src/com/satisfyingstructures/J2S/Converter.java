@@ -0,0 +1,275 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2016 Torsten Louland
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package com.satisfyingstructures.J2S;
+
+import com.satisfyingstructures.J2S.antlr.Java8Lexer;
+import com.satisfyingstructures.J2S.antlr.Java8Parser;
+
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.*;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/// Converter is the way in to J2S for other code running in the same JVM: it converts java source to swift with the
+/// options it was made with. It holds nothing that a conversion changes - each conversion makes its own lexer, parser,
+/// rewriter and listener - and the recognisers share only their ATN and DFA cache, which ANTLR makes safe for use by
+/// concurrent parsers, so one Converter can convert many files on many threads at once.
+public final class Converter
+{
+    private static final long MAP_THRESHOLD = 1 << 16;
+
+    private final ConversionOptions options;
+    private final J2SCache cache;
+
+    public Converter(ConversionOptions options)
+    {
+        this(options, null);
+    }
+
+    /// A converter that reuses output from cache, when not null, and adds to it.
+    Converter(ConversionOptions options, J2SCache cache)
+    {
+        this.options = null != options ? options : ConversionOptions.DEFAULT;
+        this.cache = cache;
+    }
+
+    public ConversionOptions getOptions()
+    {
+        return options;
+    }
+
+    public String convert(CharSequence source)
+    {
+        J2S.Outcome outcome = new J2S.Outcome();
+        outcome.timings.start();
+        if (null == cache)
+        {
+            CharStream input = new ANTLRInputStream(source.toString());
+            outcome.timings.end(J2STimings.Phase.read);
+            return convert(input, outcome);
+        }
+        try
+        {
+            ByteBuffer bytes = ByteBuffer.wrap(source.toString().getBytes(StandardCharsets.UTF_8));
+            return convert(bytes, StandardCharsets.UTF_8, outcome, null);
+        }
+        catch (IOException ex)
+        {
+            throw new UncheckedIOException(ex); // ...from the cache, as there is no input stream to fail
+        }
+    }
+
+    /// Convert a file, read in the charset of the options.
+    public String convert(Path javaFile) throws IOException
+    {
+        return convert(javaFile, new J2S.Outcome(), null);
+    }
+
+    /// Convert from is, read in the charset of the options.
+    public String convert(InputStream is) throws IOException
+    {
+        return convert(is, new J2S.Outcome(), null);
+    }
+
+    /// Convert from is, writing the swift text to writer as it is generated rather than building it up in memory first.
+    /// The writer is flushed but not closed.
+    public void convert(InputStream is, Writer writer) throws IOException
+    {
+        convert(is, new J2S.Outcome(), writer);
+        writer.flush();
+    }
+
+    /// Convert from javaFile, noting what happened in outcome, and writing the swift to writer, not flushed, or when
+    /// writer is null, returning it.
+    String convert(Path javaFile, J2S.Outcome outcome, Writer writer) throws IOException
+    {
+        outcome.timings.start();
+        return convert(read(javaFile), options.getCharset(), outcome, writer);
+    }
+
+    /// As convert(javaFile, outcome, writer), but from is.
+    String convert(InputStream is, J2S.Outcome outcome, Writer writer) throws IOException
+    {
+        outcome.timings.start();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1 << 16];
+        int n;
+        while (0 < (n = is.read(buffer)))
+            bytes.write(buffer, 0, n);
+        return convert(ByteBuffer.wrap(bytes.toByteArray()), options.getCharset(), outcome, writer);
+    }
+
+    /// The bytes of a file. A large file is mapped into memory rather than copied through buffers on the heap; a small
+    /// one is read in one go into a buffer of its size, as mapping it would cost more than copying it.
+    private static ByteBuffer read(Path path) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            long size = channel.size();
+            if (Integer.MAX_VALUE < size)
+                throw new IOException("file too large to convert: "+path);
+            if (MAP_THRESHOLD <= size)
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            ByteBuffer bytes = ByteBuffer.allocate((int)size);
+            while (bytes.hasRemaining() && 0 <= channel.read(bytes))
+                ;
+            bytes.flip();
+            return bytes;
+        }
+    }
+
+    /// Decode bytes straight into the array that the char stream then takes over, with no copy between.
+    private static CharStream decode(ByteBuffer bytes, Charset charset) throws CharacterCodingException
+    {
+        CharsetDecoder decoder = charset.newDecoder()
+                                        .onMalformedInput(CodingErrorAction.REPLACE) // ...as a Reader would
+                                        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        CharBuffer chars = CharBuffer.allocate((int)Math.ceil(bytes.remaining() * (double)decoder.maxCharsPerByte()));
+        CoderResult result = decoder.decode(bytes, chars, true);
+        if (!result.isUnderflow())
+            result.throwException();
+        result = decoder.flush(chars);
+        if (!result.isUnderflow())
+            result.throwException();
+        return new ANTLRInputStream(chars.array(), chars.position());
+    }
+
+    /// Convert source bytes in charset, reusing and adding to the cache if there is one, and writing the swift to
+    /// writer, or when writer is null, returning it. outcome is taken to be timing already.
+    private String convert(ByteBuffer bytes, Charset charset, J2S.Outcome outcome, Writer writer) throws IOException
+    {
+        String key = null;
+        if (null != cache)
+        {
+            key = cache.keyFor(bytes.duplicate(), charset, options.getDefinitions(), options.getTypeMappings(),
+                               options.getMappingProfile());
+            String text = cache.get(key);
+            if (null != text)
+            {
+                outcome.timings.end(J2STimings.Phase.read);
+                outcome.parseStrategy = J2S.ParseStrategy.cached;
+                if (null != writer)
+                    writer.write(text);
+                return text;
+            }
+        }
+        CharStream input = decode(bytes, charset);
+        outcome.timings.end(J2STimings.Phase.read);
+        if (null == writer || null != cache) // ...the cache holds whole files anyway
+        {
+            String text = convert(input, outcome);
+            if (null != cache)
+                cache.put(key, text);
+            if (null != writer)
+                writer.write(text);
+            return text;
+        }
+        J2SRewriter rewriter = rewrite(input, outcome);
+        rewriter.writeText(writer);
+        outcome.timings.end(J2STimings.Phase.render);
+        return null;
+    }
+
+    /// Convert, timing each phase from lexing to rendering in outcome, which is taken to be timing already.
+    private String convert(CharStream input, J2S.Outcome outcome)
+    {
+        J2SRewriter rewriter = rewrite(input, outcome);
+        String text = rewriter.getText();
+        outcome.timings.end(J2STimings.Phase.render);
+        return text;
+    }
+
+    /// Lex, parse and walk the input, timing each phase in outcome as for convert, and return the rewriter, ready to
+    /// render the swift.
+    private J2SRewriter rewrite(CharStream input, J2S.Outcome outcome)
+    {
+        J2STimings timings = outcome.timings;
+        Java8Lexer lexer = new Java8Lexer( input );
+        CommonTokenStream tokens = new CommonTokenStream( lexer );
+        tokens.fill(); // ...tokenize all at once, rather than as the parser asks, to time lexing apart from parsing
+        timings.end(J2STimings.Phase.lex);
+        timings.tokenCount = tokens.size();
+        ParseTree tree = parse(tokens, options.isFullLL(), options.isPlainPrediction(), outcome);
+        timings.end(J2STimings.Phase.parse);
+        timings.start();
+        J2SRewriter rewriter = new J2SRewriter( tree, tokens );
+        J2SConverter listener = new J2SConverter( rewriter, options.getDefinitions(), options.getTypeMappings(),
+                                                  options.getMappingProfile() );
+        timings.nodeCount = J2SParseTreeWalker.DEFAULT.walkCountingNodes( listener, tree );
+        timings.end(J2STimings.Phase.walk);
+        timings.opCount = rewriter.getInstructionCount();
+        timings.identifierContextLookups = listener.identifierContexts.lookups;
+        timings.identifierContextHits = listener.identifierContexts.hits;
+        return rewriter;
+    }
+
+    /// Parse tokens, which must be at their start, with SLL prediction falling back to LL unless fullLL, noting in
+    /// outcome which it was. Prediction is by J2SParserATNSimulator, unless plainPrediction, when it is ANTLR's own.
+    static ParseTree parse(CommonTokenStream tokens, boolean fullLL, boolean plainPrediction, J2S.Outcome outcome)
+    {
+        Java8Parser parser = new Java8Parser( tokens );
+        if (!plainPrediction)
+            parser.setInterpreter(new J2SParserATNSimulator(parser));
+        ParseTree tree;
+        if (fullLL)
+        {
+            tree = parser.compilationUnit();
+            outcome.parseStrategy = J2S.ParseStrategy.ll;
+        }
+        else
+        // Two stage parsing, from http://stackoverflow.com/a/32918434/618653 (without the extra settings that need
+        // antlr 4.5.3-opt). SLL prediction is much faster than LL on this grammar and gives the same tree for nearly
+        // all valid input; it can fail only by reporting a syntax error, in which case we bail out at once and reparse
+        // with LL, which then either succeeds or reports the errors properly.
+        try
+        {
+            // First attempt: high-speed parsing for correct documents
+            parser.removeErrorListeners();
+            parser.setErrorHandler(new BailErrorStrategy());
+            parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+            tree = parser.compilationUnit();
+            outcome.parseStrategy = J2S.ParseStrategy.sll;
+        }
+        catch (ParseCancellationException e)
+        {
+            // Second attempt: high-accuracy fallback parsing for complex and/or erroneous documents
+            tokens.seek(0);
+            parser.reset();
+            parser.addErrorListener(ConsoleErrorListener.INSTANCE);
+            parser.setErrorHandler(new DefaultErrorStrategy());
+            parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+            tree = parser.compilationUnit();
+            outcome.parseStrategy = J2S.ParseStrategy.llAfterSLLFailed;
+        }
+        return tree;
+    }
+}
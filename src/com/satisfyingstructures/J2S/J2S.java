@@ -23,19 +23,15 @@ SOFTWARE.
 */
 package com.satisfyingstructures.J2S;
 
-import com.satisfyingstructures.J2S.antlr.Java8Lexer;
-import com.satisfyingstructures.J2S.antlr.Java8Parser;
-
-import org.antlr.v4.runtime.*;
-import org.antlr.v4.runtime.tree.ParseTree;
-import org.antlr.v4.runtime.tree.ParseTreeWalker;
-
 import java.lang.*;
 import java.io.*;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 
 public class J2S
@@ -48,20 +44,84 @@ public class J2S
         String next() { return index < args.length ? args[index++] : null; }
     }
 
-    private static File wd = null;
-    private static File inputFile = null;
-    private static File outputFile = null;
-    private static Boolean forceOverwrite = false;
-    private static Map<String, String> env = new HashMap<>();
-    private static Map<String, String> typeMappings = new HashMap<>();
-    private static List<ArgsEnumerator> argStack = new ArrayList<>();
+    // Requests that preload or save the DFA snapshot run alone, as it must not change while being saved or loaded
+    private static final ReentrantReadWriteLock dfaSnapshotLock = new ReentrantReadWriteLock();
 
-    private static void pushArgs( String[] args )
+    private final File baseDir;
+    private final PrintStream err;
+    private File wd = null;
+    private File inputFile = null;
+    private File outputFile = null;
+    private boolean forceOverwrite = false;
+    private File inputRoot = null;
+    private File outputRoot = null;
+    private int threadCount = 0;
+    private J2SCache cache = null;
+    private J2SDFASnapshot dfaSnapshot = null;
+    private boolean fullLL = false;
+    private boolean verbose = false;
+    private boolean watch = false;
+    private J2SWatch pendingWatch = null;   // set up by a batch run with -W, to run once the DFA lock is released
+    private boolean updateChangedOnly = false;
+    private Charset charset = null;
+    private J2SMappingProfile mappingProfile = null;
+    private File compileProfileFile = null;
+    private J2STimings.Format timingFormat = null;
+    private final Map<String, String> env = new HashMap<>();
+    private final Map<String, String> typeMappings = new HashMap<>();
+    private final List<ArgsEnumerator> argStack = new ArrayList<>();
+
+    private J2S( File clientDir, PrintStream clientErr )
+    {
+        baseDir = clientDir;
+        err = clientErr;
+    }
+
+    enum ParseStrategy {
+        sll,                // SLL prediction sufficed
+        llAfterSLLFailed,   // SLL prediction failed, so reparsed with LL prediction
+        ll,                 // LL prediction only, as requested by -L
+        cached;             // not parsed, output came from cache
+        public String toString() {
+            switch (this) {
+                case sll:               return "SLL prediction";
+                case llAfterSLLFailed:  return "LL prediction after SLL failed";
+                case ll:                return "LL prediction";
+                default:                return "output from cache";
+            }
+        }
+    }
+
+    /// What happened during a conversion, for reporting
+    static class Outcome
+    {
+        ParseStrategy parseStrategy;
+        final J2STimings timings = new J2STimings();
+
+        String describe()
+        {
+            if (parseStrategy == ParseStrategy.cached)
+                return parseStrategy.toString();
+            return "parsed in "+timings.wallMillis(J2STimings.Phase.parse)+" ms with "+parseStrategy;
+        }
+    }
+
+    private File resolve( String path )
+    {
+        // Relative paths are relative to the process working directory, or when serving a client on behalf of the
+        // daemon, to the client's working directory.
+        File f = new File(path);
+        if (null != baseDir && !f.isAbsolute())
+            f = new File(baseDir, path);
+        return f;
+    }
+
+    private void pushArgs( String[] args )
     {
         argStack.add(new ArgsEnumerator(args));
     }
 
-    private static String nextArg()
+    private String nextArg()
     {
         int sz = argStack.size();
         ArgsEnumerator ae = sz > 0 ? argStack.get(sz-1) : null;
@@ -74,20 +134,41 @@ public class J2S
         return next;
     }
 
-    private static int oops( String whoops )
+    private int oops( String whoops )
     {
         String s = "J2S:\n";
         if (null != whoops)
             s = "Oops: "+whoops+"\n";
         s += "J2S: a tool to do much of the work in converting Java 8 syntax to Swift 3\n"
             +"Usage:\n"
-            +"J2S [-i path] [-o path] [-w path] [-a path] [-f] [-Dkey=value | -Dkey]* [path]\n\n"
+            +"J2S [-i path] [-o path] [-e charset] [-w path] [-a path] [-m path] [-C path] [-P path] [-f | -u] [-L]\n"
+            +"      [-v] [-T format] [-Dkey=value | -Dkey]* [path]\n"
+            +"J2S -I path -O path [-j count] [-W] [-e charset] [-w path] [-a path] [-m path] [-C path] [-P path]\n"
+            +"      [-f | -u] [-L] [-v] [-T format] [-Dkey=value | -Dkey]*\n"
+            +"J2S --compile-profile path [-w path] [-a path] [-Mtype=replacement]*\n"
+            +"J2S --daemon port\n"
+            +"J2S --client port [any of the above options]\n\n"
             +"    -i input-file-path\n"
             +"        if this option not used, then take input from stdin\n\n"
             +"    -o output-file-path\n"
             +"        enclosing directory must exist; if this option not used, then send output to stdout\n\n"
+            +"    -e charset\n"
+            +"        read java source in this charset, e.g. UTF-8 (default is the platform's default charset)\n\n"
             +"    -f\n"
             +"        force overwrite of existing file (default is not to overwrite)\n\n"
+            +"    -u\n"
+            +"        update existing output files only where the output has changed, leaving unchanged files and\n"
+            +"        their timestamps untouched, and replacing changed files atomically\n\n"
+            +"    -I input-directory\n"
+            +"        batch mode: convert every .java file in this directory tree\n\n"
+            +"    -O output-directory\n"
+            +"        batch mode: existing directory to which .swift files are written, mirroring the input tree\n\n"
+            +"    -j count\n"
+            +"        batch mode: number of files to convert in parallel (default is number of processors)\n\n"
+            +"    -W\n"
+            +"        batch mode: after converting, keep watching the input directory tree and reconvert each .java\n"
+            +"        file as it changes, overwriting its .swift file; deleting a .java file deletes its .swift\n"
+            +"        file; not available through --client\n\n"
             +"    -w working-directory\n"
             +"        input and output paths subsequent to this argument, can be specified relative to this\n"
             +"        preexisting directory\n\n"
@@ -95,17 +176,46 @@ public class J2S
             +"        insert arguments from this file into the argument list as if inserted at this position on\n"
             +"        the commandline; one argument per line; lines are whitespace trimmed; empty lines are\n"
             +"        ignored; hash-prefix to line-end is ignored\n\n"
+            +"    -m mapping-profile-path\n"
+            +"        map types as in this profile compiled by --compile-profile, except those mapped by -M\n\n"
+            +"    -C cache-directory\n"
+            +"        reuse output cached here when the input, options, mappings and J2S build are all unchanged;\n"
+            +"        the directory is created if need be\n\n"
+            +"    -P dfa-snapshot-path\n"
+            +"        before converting, preload the parser's prediction DFA from this file if it was saved by a run\n"
+            +"        with the same grammar; afterwards, save it back if the parser learned more; enclosing directory\n"
+            +"        must exist\n\n"
+            +"    -L\n"
+            +"        parse using only full LL prediction; the default is to try faster SLL prediction first and only\n"
+            +"        reparse with LL if SLL fails\n\n"
+            +"    -v\n"
+            +"        report on stderr how each file was parsed and how long parsing took\n\n"
+            +"    -T text | -T json\n"
+            +"        report on stderr the wall clock and cpu time of each phase of converting each file (read, lex,\n"
+            +"        parse, walk, render, write) with counts of tokens, parse tree nodes, rewrite operations and\n"
+            +"        identifiers that are Swift keywords (with how many had their context cached), as text or as a\n"
+            +"        line of JSON per file; batch mode adds a summary with files/s and tokens/s\n\n"
             +"    -Dkey[=value]\n"
-            +"        define a value for a key that the converter will use; absent value ==> value=1\n"
+            +"        define a value for a key that the converter will use; absent value ==> value=1;\n"
+            +"        -Dplainprediction parses with ANTLR's own prediction, without J2S's shortcuts (slower)\n"
             +"    -Mtype=replacement\n"
             +"        map 'type' to 'replacement' in generated Swift output\n"
+            +"    --compile-profile mapping-profile-path\n"
+            +"        instead of converting, compile the -M mappings, e.g. from an arguments file given with -a,\n"
+            +"        into a profile for -m, which loads far faster than the same mappings as arguments\n\n"
+            +"    --daemon port\n"
+            +"        stay resident, serving conversion requests from clients on this loopback port; the parser then\n"
+            +"        stays warm between requests; only clients that can read the token it writes to\n"
+            +"        ~/.j2s/daemon-<port>.token, i.e. run by the same user, are served\n\n"
+            +"    --client port\n"
+            +"        must be first; pass the remaining options to the daemon on this port to do the conversion\n\n"
             +"    -h | -help\n"
             +"        show this help\n\n";
-        System.err.println(s);
+        err.println(s);
         return 1;
     }
 
-    private static int parseArg( String arg )
+    private int parseArg( String arg )
     {
         String path = null;
         File f = null;
@@ -121,13 +231,49 @@ public class J2S
                 case "f":
                     forceOverwrite = true;
                     break;
+                case "L":
+                    fullLL = true;
+                    break;
+                case "v":
+                    verbose = true;
+                    break;
+                case "u":
+                    updateChangedOnly = true;
+                    break;
+                case "W":
+                    watch = true;
+                    break;
+                case "T":
+                    if (null == (path = nextArg()) || 0 == path.length())
+                        return oops("expected argument -T to be followed by text or json.");
+                    try
+                    {
+                        timingFormat = J2STimings.Format.valueOf(path);
+                    }
+                    catch (IllegalArgumentException ex)
+                    {
+                        return oops("expected argument -T to be followed by text or json: "+path);
+                    }
+                    break;
+                case "e":
+                    if (null == (path = nextArg()) || 0 == path.length())
+                        return oops("expected argument -e to be followed by a charset name.");
+                    try
+                    {
+                        charset = Charset.forName(path);
+                    }
+                    catch (IllegalArgumentException ex)
+                    {
+                        return oops("expected argument -e to be followed by a supported charset name: "+path);
+                    }
+                    break;
                 case "i-":
                     inputFile = null; // use stdin
                     break;
                 case "i":
                     if (null == (path = nextArg()) || 0 == path.length())
                         return oops("expected argument -i to be followed by a file path.");
-                    if (  !(f = new File(path)).isFile()
+                    if (  !(f = resolve(path)).isFile()
                        &&  (null == wd || !(f = new File(wd, path)).isFile()))
                             return oops("expected argument -i to have existing file path: "+path);
                     inputFile = f;
@@ -139,23 +285,89 @@ public class J2S
                     if (null == (path = nextArg()) || 0 == path.length())
                         return oops("expected argument -o to be followed by a file path.");
                     // check: file or its enclosing directory should exist at absolute path or wd relative path
-                    if ( !( (f = new File(path)).isFile() || f.getParentFile().isDirectory() )
+                    if ( !( (f = resolve(path)).isFile() || f.getParentFile().isDirectory() )
                       && (  null == wd
                          || !( (f = new File(wd, path)).isFile() || f.getParentFile().isDirectory() )))
                             return oops("expected argument -o to be for file in existing directory: "+path);
                     outputFile = f;
                     break;
+                case "I":
+                    if (null == (path = nextArg()) || 0 == path.length())
+                        return oops("expected argument -I to be followed by a directory path.");
+                    if (  !(f = resolve(path)).isDirectory()
+                       &&  (null == wd || !(f = new File(wd, path)).isDirectory()))
+                            return oops("expected argument -I to have existing directory path: "+path);
+                    inputRoot = f;
+                    break;
+                case "O":
+                    if (null == (path = nextArg()) || 0 == path.length())
+                        return oops("expected argument -O to be followed by a directory path.");
+                    if (  !(f = resolve(path)).isDirectory()
+                       &&  (null == wd || !(f = new File(wd, path)).isDirectory()))
+                            return oops("expected argument -O to have existing directory path: "+path);
+                    outputRoot = f;
+                    break;
+                case "j":
+                    if (null == (path = nextArg()) || 0 == path.length())
+                        return oops("expected argument -j to be followed by a count.");
+                    try
+                    {
+                        threadCount = Integer.parseInt(path);
+                    }
+                    catch (NumberFormatException ex)
+                    {
+                        return oops("expected argument -j to be followed by a count: "+path);
+                    }
+                    if (threadCount < 1)
+                        return oops("expected argument -j to be followed by a positive count: "+path);
+                    break;
+                case "C":
+                    if (null == (path = nextArg()) || 0 == path.length())
+                        return oops("expected argument -C to be followed by a directory path.");
+                    if ( (f = resolve(path)).exists() ? !f.isDirectory() : !f.mkdirs() )
+                        return oops("expected argument -C to be for a directory that exists or can be created: "+path);
+                    cache = new J2SCache(f);
+                    break;
+                case "P":
+                    if (null == (path = nextArg()) || 0 == path.length())
+                        return oops("expected argument -P to be followed by a file path.");
+                    if ( (f = resolve(path)).isDirectory() || !f.getAbsoluteFile().getParentFile().isDirectory() )
+                        return oops("expected argument -P to be for a file in an existing directory: "+path);
+                    dfaSnapshot = new J2SDFASnapshot(f);
+                    break;
                 case "w":
                     if (null == (path = nextArg()) || 0 == path.length())
                         return oops("expected argument -w to be followed by a directory path.");
-                    if ( !(f = new File(path)).isDirectory() )
+                    if ( !(f = resolve(path)).isDirectory() )
                         return oops("expected argument -w to have existing directory path: "+path);
                     wd = f;
                     break;
+                case "m":
+                    if (null == (path = nextArg()) || 0 == path.length())
+                        return oops("expected argument -m to be followed by a file path.");
+                    if ( !(f = resolve(path)).isFile() )
+                        return oops("expected argument -m to have existing file path: "+path);
+                    try
+                    {
+                        mappingProfile = J2SMappingProfile.load(f.toPath());
+                    }
+                    catch (IOException ex)
+                    {
+                        return oops("problem reading mapping profile: "+ex.getMessage());
+                    }
+                    break;
+                case "-compile-profile":
+                    if (null == (path = nextArg()) || 0 == path.length())
+                        return oops("expected argument --compile-profile to be followed by a file path.");
+                    if ( (f = resolve(path)).isDirectory() || !f.getAbsoluteFile().getParentFile().isDirectory() )
+                        return oops("expected argument --compile-profile to be for a file in an existing directory: "
+                                    +path);
+                    compileProfileFile = f;
+                    break;
                 case "a":
                     if (null == (path = nextArg()) || 0 == path.length())
                         return oops("expected argument -a to be followed by a file path.");
-                    if ( !(f = new File(path)).isFile() )
+                    if ( !(f = resolve(path)).isFile() )
                         return oops("expected argument -a to have existing file path: "+path);
                     try
                     {
@@ -172,6 +384,7 @@ public class J2S
                                 continue;
                             params.add(arg);
                         }
+                        reader.close();
                         String[] strings = new String[params.size()];
                         pushArgs( params.toArray(strings) );
                     }
@@ -200,7 +413,7 @@ public class J2S
         {
             if (null == inputFile)
             {
-                if (arg.length() > 0 && (f = new File(arg)).isFile())
+                if (arg.length() > 0 && (f = resolve(arg)).isFile())
                     inputFile = f;
                 else
                     return oops("expected this argument to be a file: "+arg);
@@ -211,66 +424,163 @@ public class J2S
         return 0;
     }
 
-    private static void convert(InputStream is, PrintStream ps) throws Exception
+    /// Run J2S with the given arguments, as if from the command line, returning the exit status. Used by main and
+    /// by the daemon on behalf of each client; clientDir, when not null, is the directory against which to resolve
+    /// relative paths. Each run keeps its options to itself, so runs can proceed concurrently.
+    static int run( String[] args, File clientDir, InputStream in, PrintStream out, PrintStream errOut )
+        throws Exception
     {
-        ANTLRInputStream input = new ANTLRInputStream( is );
+        return new J2S(clientDir, errOut).run(args, in, out);
+    }
 
-        Java8Lexer lexer = new Java8Lexer( input );
-        CommonTokenStream tokens = new CommonTokenStream( lexer );
-        Java8Parser parser = new Java8Parser( tokens );
-        ParseTree tree = parser.compilationUnit();
-    /*
-        // Fix for stubborn *.java that crash the parser
-        // From http://stackoverflow.com/a/32918434/618653
-        // But requires antlr 4.5.3-opt - we don't have it yet
-        try
+    private int run( String[] args, InputStream in, PrintStream out ) throws Exception
+    {
+        pushArgs(args);
+        for ( String arg = nextArg() ; null != arg ; arg = nextArg() )
         {
-            // First Attempt: High-speed parsing for correct documents
+            int status = parseArg(arg);
+            if ( 0 != status )
+                return status;
+        }
+        if ( null != compileProfileFile )
+            return compileProfile();
+        if ( watch && null != baseDir )
+            return oops("-W watches until stopped, so cannot be served by the daemon; run the batch with -W directly");
 
-            parser.setErrorHandler(new BailErrorStrategy());
-            parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
-            parser.getInterpreter().tail_call_preserves_sll = false;
-            tree = parser.compilationUnit();
+        int status;
+        Lock lock = null != dfaSnapshot ? dfaSnapshotLock.writeLock() : dfaSnapshotLock.readLock();
+        lock.lock();
+        try
+        {
+            status = runWithSnapshot(in, out);
         }
-        catch (ParseCancellationException e)
+        finally
         {
-            // Second Attempt: High-accuracy fallback parsing for complex and/or erroneous documents
+            lock.unlock();
+        }
+        // Watching never ends, so happens after the DFA snapshot has been saved and the lock released
+        if ( null != pendingWatch )
+            return pendingWatch.run();
+        return status;
+    }
 
-            // T O D O : reset your input stream
-            parser.setErrorHandler(new DefaultErrorStrategy());
-            parser.getInterpreter().setPredictionMode(PredictionMode.LL);
-            parser.getInterpreter().tail_call_preserves_sll = false;
-            parser.getInterpreter().enable_global_context_dfa = true;
-            tree = parser.compilationUnit();
+    private int compileProfile()
+    {
+        if ( null != mappingProfile )
+            return oops("--compile-profile compiles -M mappings; it cannot take those of another profile given by -m");
+        try
+        {
+            J2SMappingProfile.compile(typeMappings, compileProfileFile.toPath());
+        }
+        catch (IOException ex)
+        {
+            err.println("J2S: could not compile mapping profile: "+ex.getMessage());
+            return 1;
         }
-    */
-        J2SRewriter rewriter = new J2SRewriter( tree, tokens );
-        J2SConverter listener = new J2SConverter( rewriter, env, typeMappings );
-        ParseTreeWalker.DEFAULT.walk( listener, tree );
-        
-        ps.println( rewriter.getText() );
+        if (verbose)
+            err.println("J2S: compiled "+typeMappings.size()+" mappings into "+compileProfileFile.getPath());
+        return 0;
     }
 
-    public static void main( String[] args ) throws Exception
+    private int runWithSnapshot( InputStream in, PrintStream out ) throws Exception
     {
-        pushArgs(args);
-        for ( String arg = nextArg() ; null != arg ; arg = nextArg() )
+        if ( null != dfaSnapshot )
         {
-            int status = parseArg(arg);
-            if ( 0 != status )
-                System.exit(status);
+            try
+            {
+                int loaded = dfaSnapshot.load();
+                if (verbose && 0 < loaded)
+                    err.println("J2S: preloaded "+loaded+" DFA states from "+dfaSnapshot.getPath());
+            }
+            catch (IOException ex)
+            {
+                err.println("J2S: ignoring DFA snapshot that could not be read: "+ex.getMessage());
+            }
+        }
+        int status = convertRequested(in, out);
+        if ( null != dfaSnapshot )
+        {
+            try
+            {
+                if (dfaSnapshot.saveIfChanged() && verbose)
+                    err.println("J2S: saved DFA snapshot to "+dfaSnapshot.getPath());
+            }
+            catch (IOException ex)
+            {
+                err.println("J2S: could not save DFA snapshot: "+ex.getMessage());
+            }
         }
+        return status;
+    }
 
-        if ( !forceOverwrite && null != outputFile && outputFile.isFile() )
+    private int convertRequested( InputStream in, PrintStream out ) throws Exception
+    {
+        if ( null != inputRoot || null != outputRoot )
         {
-            oops("use option -f to force overwrite of existing file at: "+outputFile.getAbsolutePath());
-            System.exit(1);
+            if ( null == inputRoot || null == outputRoot )
+                return oops("batch mode needs both -I and -O");
+            if ( null != inputFile || null != outputFile )
+                return oops("use either -I and -O for batch mode, or -i and -o for a single file, but not both");
+            J2SBatch batch = new J2SBatch(newConverter(), inputRoot, outputRoot, threadCount, forceOverwrite,
+                                          updateChangedOnly, verbose, timingFormat, err);
+            int status = batch.run();
+            if (watch)
+                pendingWatch = new J2SWatch(batch, inputRoot.toPath(), verbose, err);
+            return status;
         }
-        
+        if ( watch )
+            return oops("-W watches the input directory of batch mode, which needs -I and -O");
+
+        if ( !forceOverwrite && !updateChangedOnly && null != outputFile && outputFile.isFile() )
+            return oops("use option -f or -u to overwrite existing file at: "+outputFile.getAbsolutePath());
+
         // FIXME: Generates CRLF line endings even if system property line.endings is LF
-        InputStream is = null == inputFile ? System.in : new FileInputStream( inputFile );
-        PrintStream ps = null == outputFile ? System.out : new PrintStream( outputFile );
+        J2SOutputFile file = null != outputFile && updateChangedOnly ? new J2SOutputFile( outputFile.toPath() ) : null;
+        OutputStream os = null == outputFile ? out : null != file ? file : new FileOutputStream( outputFile );
+        Writer writer = new BufferedWriter( new OutputStreamWriter( os ) );
+        Outcome outcome = new Outcome();
+        boolean changed = true;
+        try
+        {
+            if (null == inputFile)
+                newConverter().convert(in, outcome, writer);
+            else
+                newConverter().convert(inputFile.toPath(), outcome, writer);
+            outcome.timings.start();
+            writer.write( System.lineSeparator() );
+            writer.flush();
+            if (null != file)
+                changed = file.commit();
+            outcome.timings.end(J2STimings.Phase.write);
+        }
+        finally
+        {
+            if (os != out)
+                writer.close();
+            else
+                writer.flush();
+        }
+        String name = null == inputFile ? "stdin" : inputFile.getPath();
+        if (verbose)
+            err.println("J2S: "+name+": "+outcome.describe()+(changed ? "" : ", output unchanged"));
+        if (null != timingFormat)
+            err.println(outcome.timings.report(timingFormat, name, outcome.parseStrategy));
+        return 0;
+    }
 
-        convert(is, ps);
+    private Converter newConverter()
+    {
+        return new Converter(new ConversionOptions(env, typeMappings, fullLL, charset, mappingProfile), cache);
+    }
+
+    public static void main( String[] args ) throws Exception
+    {
+        if ( 0 < args.length && args[0].equals("--client") )
+            System.exit(J2SClient.run(args));
+        if ( 0 < args.length && args[0].equals("--daemon") )
+            System.exit(J2SDaemon.run(args));
+        int status = run(args, null, System.in, System.out, System.err);
+        if ( 0 != status )
+            System.exit(status);
     }
 }
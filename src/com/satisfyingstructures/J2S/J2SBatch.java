@@ -0,0 +1,197 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2016 Torsten Louland
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package com.satisfyingstructures.J2S;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/// J2SBatch converts every java file found under an input directory, writing the swift output to the same relative
+/// location under an output directory. Files are converted in parallel in the one JVM, so that all conversions share
+/// the lexer and parser ATN and the DFA cache that the parser builds up as it goes (these are static in the generated
+/// recognisers), rather than each paying the cost of warming them from cold.
+class J2SBatch
+{
+    private final Converter converter;
+    private final File inputRoot;
+    private final File outputRoot;
+    private final int threadCount;
+    private final boolean forceOverwrite;
+    private final boolean updateChangedOnly;
+    private final boolean verbose;
+    private final J2STimings.Format timingFormat;
+    private final J2STimings totalTimings = new J2STimings();
+    private final PrintStream err;
+
+    private final AtomicInteger converted = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final AtomicInteger unchanged = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicInteger[] countByParseStrategy = new AtomicInteger[J2S.ParseStrategy.values().length];
+
+    J2SBatch(Converter converter, File inputRoot, File outputRoot, int threadCount, boolean forceOverwrite,
+             boolean updateChangedOnly, boolean verbose, J2STimings.Format timingFormat, PrintStream err)
+    {
+        this.converter = converter;
+        this.inputRoot = inputRoot;
+        this.outputRoot = outputRoot;
+        this.threadCount = 0 < threadCount ? threadCount : Runtime.getRuntime().availableProcessors();
+        this.forceOverwrite = forceOverwrite;
+        this.updateChangedOnly = updateChangedOnly;
+        this.verbose = verbose;
+        this.timingFormat = timingFormat;
+        for (int i = 0; i < countByParseStrategy.length; i++)
+            countByParseStrategy[i] = new AtomicInteger();
+        this.err = err;
+    }
+
+    int run() throws IOException, InterruptedException
+    {
+        final Path inputPath = inputRoot.toPath();
+        final Path outputPath = outputRoot.toPath();
+        List<Path> javaFiles = findJavaFiles(inputPath);
+
+        long start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(threadCount);
+        List<Future<Boolean>> futures = new ArrayList<>(javaFiles.size());
+        for (Path javaFile : javaFiles)
+            futures.add(pool.submit(() -> convertOne(javaFile, outputPathFor(javaFile, inputPath, outputPath),
+                                                           forceOverwrite || updateChangedOnly)));
+        pool.shutdown();
+        for (int i = 0; i < futures.size(); i++)
+            try
+            {
+                futures.get(i).get();
+            }
+            catch (ExecutionException ex)
+            {
+                // convertOne reports exceptions itself, so this is an error, e.g. the stack overflowing on deep nesting
+                failed.incrementAndGet();
+                err.println("J2S: failed to convert "+javaFiles.get(i)+": "+ex.getCause());
+            }
+        long elapsed = System.nanoTime() - start;
+
+        StringBuilder strategies = new StringBuilder();
+        for (J2S.ParseStrategy strategy : J2S.ParseStrategy.values())
+        {
+            int count = countByParseStrategy[strategy.ordinal()].get();
+            if (0 < count)
+                strategies.append(0 == strategies.length() ? "; " : ", ").append(count).append(" ").append(strategy);
+        }
+        err.println("J2S: converted "+converted.get()+" of "+javaFiles.size()+" files"
+                          +(0 < unchanged.get() ? " ("+unchanged.get()+" unchanged)" : "")
+                          +(0 < skipped.get() ? ", skipped "+skipped.get()+" existing (use -f or -u to overwrite)" : "")
+                          +(0 < failed.get() ? ", failed "+failed.get() : "")
+                          +strategies);
+        if (null != timingFormat)
+            err.println(totalTimings.summary(timingFormat, elapsed));
+        return 0 < failed.get() ? 1 : 0;
+    }
+
+    /// Convert one java file under the input directory, overwriting its swift file; for the watcher, which by then has
+    /// converted everything once and is reconverting files that changed since.
+    boolean reconvert(Path javaFile)
+    {
+        return convertOne(javaFile, outputPathFor(javaFile, inputRoot.toPath(), outputRoot.toPath()), true);
+    }
+
+    /// Delete the swift file converted from a java file that has gone from the input directory.
+    boolean removeOutput(Path javaFile) throws IOException
+    {
+        return Files.deleteIfExists(outputPathFor(javaFile, inputRoot.toPath(), outputRoot.toPath()));
+    }
+
+    static List<Path> findJavaFiles(Path root) throws IOException
+    {
+        final List<Path> javaFiles = new ArrayList<>();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+            {
+                if (attrs.isRegularFile() && file.getFileName().toString().endsWith(".java"))
+                    javaFiles.add(file);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return javaFiles;
+    }
+
+    private static Path outputPathFor(Path javaFile, Path inputRoot, Path outputRoot)
+    {
+        Path relative = inputRoot.relativize(javaFile);
+        String name = relative.getFileName().toString();
+        name = name.substring(0, name.length() - ".java".length()) + ".swift";
+        return outputRoot.resolve(relative).resolveSibling(name);
+    }
+
+    private boolean convertOne(Path javaFile, Path swiftFile, boolean overwrite)
+    {
+        if (!overwrite && Files.isRegularFile(swiftFile))
+        {
+            skipped.incrementAndGet();
+            return false;
+        }
+        J2S.Outcome outcome = new J2S.Outcome();
+        try
+        {
+            Files.createDirectories(swiftFile.getParent());
+            boolean changed;
+            // Written aside and moved into place, so a failed conversion leaves any existing swift file as it was
+            try (J2SOutputFile file = new J2SOutputFile(swiftFile, updateChangedOnly);
+                 Writer writer = new BufferedWriter(new OutputStreamWriter(file, StandardCharsets.UTF_8)))
+            {
+                converter.convert(javaFile, outcome, writer);
+                outcome.timings.start();
+                writer.write(System.lineSeparator());
+                writer.flush();
+                changed = file.commit();
+                outcome.timings.end(J2STimings.Phase.write);
+            }
+            converted.incrementAndGet();
+            if (!changed)
+                unchanged.incrementAndGet();
+            countByParseStrategy[outcome.parseStrategy.ordinal()].incrementAndGet();
+            if (verbose)
+                err.println("J2S: "+javaFile+": "+outcome.describe()+(changed ? "" : ", output unchanged"));
+            if (null != timingFormat)
+            {
+                totalTimings.add(outcome.timings);
+                err.println(outcome.timings.report(timingFormat, javaFile.toString(), outcome.parseStrategy));
+            }
+            return true;
+        }
+        catch (Exception ex)
+        {
+            failed.incrementAndGet();
+            err.println("J2S: failed to convert "+javaFile+": "+ex);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2016 Torsten Louland
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package com.satisfyingstructures.J2S;
+
+import org.antlr.v4.runtime.RuntimeMetaData;
+
+import java.io.*;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/// J2SCache is an on-disk store of converted output, keyed by a hash of everything that determines that output: the
+/// input bytes and their charset, the -D options, the -M type mappings, any -m mapping profile and the build of J2S doing
+/// the conversion. When the key matches, the stored output can be emitted without lexing or parsing the input again.
+class J2SCache
+{
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static byte[] buildFingerprint = null;
+
+    private final Path directory;
+
+    J2SCache(File directory)
+    {
+        this.directory = directory.toPath();
+    }
+
+    /// A digest of the build of J2S doing the conversion, so that rebuilding J2S with changes that could alter its
+    /// output invalidates everything cached by the previous build. When J2S runs from a jar, that is the whole jar;
+    /// when from a directory of classes, it is every class file of this package and those below it, nested classes
+    /// included, so there is no list of classes to keep up to date. The ANTLR runtime version is included too.
+    private static synchronized byte[] buildFingerprint() throws IOException
+    {
+        if (null != buildFingerprint)
+            return buildFingerprint;
+        MessageDigest md = newDigest();
+        md.update(RuntimeMetaData.VERSION.getBytes(StandardCharsets.UTF_8));
+        md.update((byte)0);
+        Path codeSource;
+        try
+        {
+            CodeSource cs = J2SCache.class.getProtectionDomain().getCodeSource();
+            if (null == cs || null == cs.getLocation())
+                throw new IOException("cannot locate the J2S build to fingerprint it");
+            codeSource = Paths.get(cs.getLocation().toURI());
+        }
+        catch (URISyntaxException | FileSystemNotFoundException | IllegalArgumentException ex)
+        {
+            throw new IOException("cannot locate the J2S build to fingerprint it", ex);
+        }
+        if (!Files.isDirectory(codeSource))
+        {
+            update(md, codeSource);
+            return buildFingerprint = md.digest();
+        }
+        Path packageDirectory = codeSource.resolve(J2SCache.class.getPackage().getName().replace('.', '/'));
+        List<Path> classFiles;
+        try (Stream<Path> paths = Files.walk(packageDirectory))
+        {
+            classFiles = paths.filter(p -> p.getFileName().toString().endsWith(".class")).sorted()
+                              .collect(Collectors.toList());
+        }
+        if (classFiles.isEmpty())
+            throw new IOException("cannot find the J2S class files to fingerprint in "+packageDirectory);
+        for (Path classFile : classFiles)
+        {
+            md.update(packageDirectory.relativize(classFile).toString().getBytes(StandardCharsets.UTF_8));
+            md.update((byte)0);
+            update(md, classFile);
+        }
+        return buildFingerprint = md.digest();
+    }
+
+    private static void update(MessageDigest md, Path file) throws IOException
+    {
+        byte[] buffer = new byte[1 << 16];
+        int n;
+        try (InputStream is = Files.newInputStream(file))
+        {
+            while (0 < (n = is.read(buffer)))
+                md.update(buffer, 0, n);
+        }
+    }
+
+    private static MessageDigest newDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException ex)
+        {
+            throw new IllegalStateException(ex); // every JRE is required to provide SHA-256
+        }
+    }
+
+    private static void update(MessageDigest md, Map<String, String> map)
+    {
+        Map<String, String> sorted = new TreeMap<>(map);
+        md.update(Integer.toString(sorted.size()).getBytes(StandardCharsets.UTF_8));
+        for (Map.Entry<String, String> entry : sorted.entrySet())
+        {
+            md.update((byte)0);
+            md.update(entry.getKey().getBytes(StandardCharsets.UTF_8));
+            md.update((byte)0);
+            md.update(entry.getValue().getBytes(StandardCharsets.UTF_8));
+        }
+        md.update((byte)0);
+    }
+
+    String keyFor(ByteBuffer input, Charset charset, Map<String, String> options, Map<String, String> typeMappings,
+                  J2SMappingProfile mappingProfile)
+        throws IOException
+    {
+        MessageDigest md = newDigest();
+        md.update(buildFingerprint());
+        md.update(charset.name().getBytes(StandardCharsets.UTF_8));
+        md.update((byte)0);
+        update(md, options);
+        update(md, typeMappings);
+        if (null != mappingProfile)
+            md.update(mappingProfile.fingerprint());
+        md.update(input);
+        byte[] digest = md.digest();
+        char[] key = new char[2 * digest.length];
+        for (int i = 0; i < digest.length; i++)
+        {
+            key[2*i] = HEX[(digest[i] >> 4) & 0xF];
+            key[2*i+1] = HEX[digest[i] & 0xF];
+        }
+        return new String(key);
+    }
+
+    private Path pathFor(String key)
+    {
+        return directory.resolve(key.substring(0, 2)).resolve(key.substring(2) + ".swift");
+    }
+
+    /// Returns the output stored for key, or null if there is none.
+    String get(String key)
+    {
+        try
+        {
+            return new String(Files.readAllBytes(pathFor(key)), StandardCharsets.UTF_8);
+        }
+        catch (IOException ex)
+        {
+            return null; // absent or unreadable are both a miss
+        }
+    }
+
+    void put(String key, String output) throws IOException
+    {
+        // Write to a temporary file and move into place, so that concurrent conversions (batch mode, daemon) of the
+        // same input never see a partially written entry.
+        Path path = pathFor(key);
+        Files.createDirectories(path.getParent());
+        Path temp = Files.createTempFile(path.getParent(), key.substring(2, 10), ".tmp");
+        try
+        {
+            Files.write(temp, output.getBytes(StandardCharsets.UTF_8));
+            try
+            {
+                Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (AtomicMoveNotSupportedException ex)
+            {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        finally
+        {
+            Files.deleteIfExists(temp);
+        }
+    }
+}
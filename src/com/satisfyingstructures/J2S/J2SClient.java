@@ -0,0 +1,117 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2016 Torsten Louland
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package com.satisfyingstructures.J2S;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/// J2SClient is the thin end of J2SDaemon: it passes its arguments and working directory to the daemon, relays the
+/// daemon's output to stdout and stderr, supplies stdin if the daemon asks for it, and returns the daemon's exit
+/// status. It never touches the parser, so pays none of its start up cost. It first sends the token the daemon wrote
+/// for its port, which only the user running the daemon can read.
+class J2SClient
+{
+    static int run(String[] args)
+    {
+        int port;
+        try
+        {
+            port = Integer.parseInt(2 <= args.length ? args[1] : "");
+        }
+        catch (NumberFormatException ex)
+        {
+            System.err.println("Oops: expected --client to be followed by a port number.");
+            return 1;
+        }
+        String token;
+        try
+        {
+            token = J2SDaemon.readToken(port);
+        }
+        catch (IOException ex)
+        {
+            System.err.println("Oops: no daemon token at "+J2SDaemon.tokenFile(port)
+                +"; is a daemon running as you on port "+port+"?");
+            return 1;
+        }
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port))
+        {
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            dos.writeUTF(token);
+            dos.writeUTF(new File("").getAbsolutePath());
+            dos.writeInt(args.length - 2);
+            for (int i = 2; i < args.length; i++)
+                dos.writeUTF(args[i]);
+            dos.flush();
+
+            byte[] buffer = new byte[1 << 16];
+            int n;
+            while (true)
+            {
+                switch (dis.readUnsignedByte())
+                {
+                    case J2SDaemon.FRAME_OUT:
+                        copy(dis, dis.readInt(), System.out, buffer);
+                        break;
+                    case J2SDaemon.FRAME_ERR:
+                        copy(dis, dis.readInt(), System.err, buffer);
+                        break;
+                    case J2SDaemon.FRAME_IN:
+                        while (0 < (n = System.in.read(buffer)))
+                        {
+                            dos.writeInt(n);
+                            dos.write(buffer, 0, n);
+                        }
+                        dos.writeInt(0);
+                        dos.flush();
+                        break;
+                    case J2SDaemon.FRAME_EXIT:
+                        System.out.flush();
+                        return dis.readInt();
+                    default:
+                        System.err.println("Oops: unexpected reply from daemon on port "+port);
+                        return 1;
+                }
+            }
+        }
+        catch (IOException ex)
+        {
+            System.err.println("Oops: problem talking to daemon on port "+port+": "+ex);
+            return 1;
+        }
+    }
+
+    private static void copy(DataInputStream dis, int len, PrintStream ps, byte[] buffer) throws IOException
+    {
+        while (0 < len)
+        {
+            int n = Math.min(len, buffer.length);
+            dis.readFully(buffer, 0, n);
+            ps.write(buffer, 0, n);
+            len -= n;
+        }
+    }
+}
@@ -33,7 +33,7 @@ import org.antlr.v4.runtime.misc.Interval;
 
 import java.util.*;
 
-class J2SConverter extends Java8BaseListener {
+class J2SConverter extends Java8BaseListener implements J2SParseTreeWalker.TerminalTypes {
 
     // ---------------------------------------------------------------------------------------------
     // Setup.
@@ -42,8 +42,13 @@ class J2SConverter extends Java8BaseListener {
     private J2SStringMapper types;
     private J2SStringMapper modifiers;
     private J2SStringMapper annotationMapper;
+    private Map<String, String> userTypeMappings;
+    private J2SMappingProfile mappingProfile;
+    private boolean importedTypesPushed = false;
+    final J2SGrammarUtils.IdentifierContextCache identifierContexts = new J2SGrammarUtils.IdentifierContextCache();
 
-    J2SConverter(J2SRewriter rewriter, Map<String, String> options, Map<String, String> moreTypeMappings) {
+    J2SConverter(J2SRewriter rewriter, Map<String, String> options, Map<String, String> moreTypeMappings,
+                 J2SMappingProfile mappingProfile) {
         this.options = options;
         this.rewriter = rewriter;
 
@@ -73,7 +78,8 @@ class J2SConverter extends Java8BaseListener {
         );
 
         types = new J2SStringMapper();
-        types.addPairs(
+        types.setProfile(mappingProfile); // consulted for types that no level maps
+        types.addPairs(overriddenBy(mappingProfile,
                 // primitives
                 "boolean",  "Bool",
                 "byte",     "Int8",
@@ -94,37 +100,59 @@ class J2SConverter extends Java8BaseListener {
                 "Double",   "Double",
                 // java.lang
                 "Object",   "AnyObject",
-                // some common java.util types (ought to add these when we see relevant import statements)
-                "List",     "Array",
-                "ArrayList","Array",
-                "Map",      "Dictionary",
-                "HashMap",  "Dictionary",
-                "Set",      "Set",
-                "HashSet",  "Set",
-            //  "Vector",   "Array",
-            //  to do: need to add warning where mapping vector to array to ensure sync access with vars of this type
+                // types from other packages are added from J2SMappingPacks when we see relevant import statements
 
                 "",""
-        );
+        ));
         if (null != moreTypeMappings)
             types.addMap(moreTypeMappings);
+        userTypeMappings = null != moreTypeMappings ? moreTypeMappings : Collections.<String, String>emptyMap();
+        this.mappingProfile = mappingProfile;
     }
 
-    private boolean option(String key)
+    private static String[] overriddenBy(J2SMappingProfile profile, String... pairs)
+    {
+        // A profile's mappings are the user's, so take precedence over those built in
+        if (null != profile)
+            for (int i = 0, n = pairs.length & ~1; i < n; i += 2)
+            {
+                String to = profile.get(pairs[i]);
+                if (null != to)
+                    pairs[i+1] = to;
+            }
+        return pairs;
+    }
+
+    private boolean isMappedByUser(String type)
     {
-        String value = options.get(key);
-        if (null != value)
-        switch (value)
+        return userTypeMappings.containsKey(type) || null != mappingProfile && null != mappingProfile.get(type);
+    }
+
+    private void addImportedTypeMappings(Map<String, String> pack, String onlyType)
+    {
+        if (pack.isEmpty())
+            return;
+        if (!importedTypesPushed)
         {
-            case "": // key was just defined
-            case "1":
-            case "Y":
-            case "YES":
-            case "true":
-            case "TRUE":
-                return true;
+            types.push(); // imported mappings go in a level of their own, the first add creating it
+            importedTypesPushed = true;
         }
-        return false;
+        // Mappings from the command line or a profile take precedence over those of a pack
+        if (null != onlyType)
+        {
+            String to = pack.get(onlyType);
+            if (null != to && !isMappedByUser(onlyType))
+                types.addOne(onlyType, to);
+        }
+        else
+        for (Map.Entry<String, String> entry : pack.entrySet())
+            if (!isMappedByUser(entry.getKey()))
+                types.addOne(entry.getKey(), entry.getValue());
+    }
+
+    private boolean option(String key)
+    {
+        return ConversionOptions.option(options, key);
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -234,6 +262,14 @@ class J2SConverter extends Java8BaseListener {
     @Override public void enterEveryRule(ParserRuleContext ctx) {}
     @Override public void exitEveryRule(ParserRuleContext ctx) {}
     */
+    // The token types that visitTerminal acts on, so the walker need not call it for the rest. Keep in step with it.
+    private static final int[] visitedTerminalTypes = { Java8Parser.SEMI, Java8Parser.Identifier };
+
+    @Override public int[] visitedTerminalTypes()
+    {
+        return visitedTerminalTypes;
+    }
+
     @Override public void visitTerminal(TerminalNode node)
     {
         // Some tokens have simple transforms wherever they appear, so are easier to deal with here.
@@ -307,22 +343,16 @@ class J2SConverter extends Java8BaseListener {
             case Java8Parser.SEMI:
                 // Switch allows elimination of semicolons if they aren't serving the purpose of separating statements
                 // (and is preferred Swift style). (Problem if a later reorganisation inserts a statement after semicolon)
-                scan: for (Token t = rewriter.getTokenFollowing(token); null != t; t = rewriter.getTokenFollowing(t))
-                {
+                Token t = rewriter.getNonBlankTokenFollowing(token); // skipping WS and COMMENT
+                if (null != t)
                     switch (t.getType())
                     {
-                        case Java8Parser.WS:
-                        case Java8Parser.COMMENT:
-                            continue; // keep scanning
                         case Java8Parser.LB: // end of line, no following statement
                         case Java8Parser.LINE_COMMENT: // comment continues to line end, implying no following statement
                         case Java8Parser.RBRACE: // end of block scope, no following statement
                             rewriter.delete(token);
-                            break scan;
-                        default:
-                            break scan;
+                            break;
                     }
-                }
                 break;
         //  case Java8Parser.COMMA:
         //  case Java8Parser.DOT:
@@ -363,8 +393,11 @@ class J2SConverter extends Java8BaseListener {
         //  case Java8Parser.RSHIFT_ASSIGN:
         //  case Java8Parser.URSHIFT_ASSIGN:
             case Java8Parser.Identifier:
-                String identifier = J2SGrammarUtils.replacementForIdentifier(node);
-                if (null != identifier)
+                String identifier = token.getText();
+                int restrictions = J2SGrammarUtils.swiftKeywordRestrictions(identifier); // 0 for non keyword
+                if (0 != restrictions
+                 && null != (identifier = J2SGrammarUtils.replacementForIdentifier(node, identifier, restrictions,
+                                                                                identifierContexts)))
                     rewriter.replace(node, identifier);
                 break;
         //  case Java8Parser.AT:
@@ -835,7 +868,19 @@ class J2SConverter extends Java8BaseListener {
     */
     @Override public void exitImportDeclaration( Java8Parser.ImportDeclarationContext ctx )
     {
-        // Future: add type and method mappings based on imported packages
+        // Future: add method mappings based on imported packages
+        Java8Parser.SingleTypeImportDeclarationContext singleTypeCtx;
+        Java8Parser.TypeImportOnDemandDeclarationContext onDemandCtx;
+        if (null != (singleTypeCtx = ctx.singleTypeImportDeclaration()))
+        {
+            String typeName = singleTypeCtx.typeName().getText();
+            int dot = typeName.lastIndexOf('.');
+            if (0 < dot)
+                addImportedTypeMappings(J2SMappingPacks.forPackage(typeName.substring(0, dot)),
+                                        typeName.substring(dot + 1));
+        }
+        else if (null != (onDemandCtx = ctx.typeImportOnDemandDeclaration()))
+            addImportedTypeMappings(J2SMappingPacks.forPackage(onDemandCtx.packageOrTypeName().getText()), null);
         rewriter.insertBefore(ctx, "/* ");
         rewriter.insertAfter(ctx, " */");
     }
@@ -2461,8 +2506,11 @@ class J2SConverter extends Java8BaseListener {
     */
     @Override public void exitSwitchBlockStatementGroup( Java8Parser.SwitchBlockStatementGroupContext ctx )
     {
-        // Append explicit 'fallthrough' if there is a path without a break (only simplest cases)
-        if (!statementEndsWithSwitchExit(ctx.blockStatements()))
+        // Append explicit 'fallthrough' if there is a path without a break (only simplest cases). Not in the last group:
+        // falling off its end leaves the switch, as in Java, and Swift rejects a fallthrough with no case to follow.
+        ParserRuleContext switchBlockCtx = ctx.getParent();
+        boolean lastInSwitch = switchBlockCtx.getChild(switchBlockCtx.getChildCount() - 2) == ctx;
+        if (!lastInSwitch && !statementEndsWithSwitchExit(ctx.blockStatements()))
         {
             String append = rewriter.lineBreak
                           + rewriter.getTokenPreceding(ctx.start).getText() // indent
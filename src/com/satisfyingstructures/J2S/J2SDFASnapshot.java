@@ -0,0 +1,660 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2016 Torsten Louland
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package com.satisfyingstructures.J2S;
+
+import com.satisfyingstructures.J2S.antlr.Java8Parser;
+
+import org.antlr.v4.runtime.RuntimeMetaData;
+import org.antlr.v4.runtime.atn.*;
+import org.antlr.v4.runtime.dfa.DFA;
+import org.antlr.v4.runtime.dfa.DFAState;
+
+import java.io.*;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+/// J2SDFASnapshot saves the prediction DFA that the Java8Parser learns while parsing, together with the prediction
+/// contexts it references, and loads it again into a fresh JVM. The DFA is static and shared by all parser instances,
+/// and most of the time spent parsing the first few files of a run goes into building it; preloading a snapshot left
+/// by an earlier run lets a cold run start with a warm predictor.
+///
+/// A snapshot records the ANTLR runtime version and a digest of the parser's serialized ATN, and is ignored if either
+/// differs, so regenerating the parser from a changed grammar invalidates it automatically.
+class J2SDFASnapshot
+{
+    private static final String MAGIC = "J2S DFA snapshot";
+    private static final int FORMAT = 1;
+
+    // Tags for prediction contexts
+    private static final byte CONTEXT_EMPTY = 0;
+    private static final byte CONTEXT_SINGLETON = 1;
+    private static final byte CONTEXT_ARRAY = 2;
+
+    // Tags for semantic contexts
+    private static final byte SEMANTIC_NONE = 0;
+    private static final byte SEMANTIC_PREDICATE = 1;
+    private static final byte SEMANTIC_PRECEDENCE = 2;
+    private static final byte SEMANTIC_AND = 3;
+    private static final byte SEMANTIC_OR = 4;
+
+    private static final int ERROR_STATE = -1;
+    private static final int NO_STATE = -2;
+
+    private final Path path;
+    private boolean current = false;    // file holds a valid snapshot of what is in the DFA as of the last load or save
+    private int stateCount = 0;         // number of DFA states as of the last load or save
+
+    J2SDFASnapshot(File file)
+    {
+        this.path = file.toPath();
+    }
+
+    String getPath()
+    {
+        return path.toString();
+    }
+
+    private static ParserATNSimulator interpreter()
+    {
+        // Any parser instance gives access to the static DFA and context cache shared by all instances.
+        return new Java8Parser(null).getInterpreter();
+    }
+
+    private static int countStates(DFA[] decisionToDFA)
+    {
+        int n = 0;
+        for (DFA dfa : decisionToDFA)
+            n += dfa.states.size();
+        return n;
+    }
+
+    private static byte[] atnDigest()
+    {
+        try
+        {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(RuntimeMetaData.VERSION.getBytes(StandardCharsets.UTF_8));
+            md.update((byte)0);
+            md.update(Java8Parser._serializedATN.getBytes(StandardCharsets.UTF_8));
+            return md.digest();
+        }
+        catch (NoSuchAlgorithmException ex)
+        {
+            throw new IllegalStateException(ex); // every JRE is required to provide SHA-256
+        }
+    }
+
+    private static Field conflictingAltsField()
+    {
+        // ATNConfigSet.conflictingAlts is protected, but the simulator consults it when a state requires full context,
+        // so it must survive the round trip.
+        try
+        {
+            Field f = ATNConfigSet.class.getDeclaredField("conflictingAlts");
+            f.setAccessible(true);
+            return f;
+        }
+        catch (ReflectiveOperationException | SecurityException ex)
+        {
+            throw new IllegalStateException("cannot access ATNConfigSet.conflictingAlts", ex);
+        }
+    }
+
+    /// Load the snapshot into the parser's DFA, provided the file exists, matches this grammar and runtime, and the
+    /// DFA has not yet learned anything in this JVM (as happens when the daemon serves a second request). Returns the
+    /// number of DFA states loaded; zero when nothing was loaded.
+    int load() throws IOException
+    {
+        ParserATNSimulator interp = interpreter();
+        DFA[] decisionToDFA = interp.decisionToDFA;
+        int existing = countStates(decisionToDFA);
+        current = false;
+        stateCount = existing;
+        if (!Files.isRegularFile(path))
+            return 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(
+            Files.newInputStream(path)))))
+        {
+            if (!MAGIC.equals(in.readUTF()) || FORMAT != in.readInt())
+                return 0;
+            byte[] digest = new byte[in.readInt()];
+            in.readFully(digest);
+            if (!Arrays.equals(digest, atnDigest()) || decisionToDFA.length != in.readInt())
+                return 0;
+            if (0 != existing)
+                return 0;
+            int loaded;
+            try
+            {
+                loaded = new Reader(in, interp).read();
+            }
+            catch (IOException ex)
+            {
+                // Take out anything partially loaded, so that parsing starts from an empty but consistent DFA.
+                for (DFA dfa : decisionToDFA)
+                    clear(dfa);
+                throw ex;
+            }
+            current = true;
+            stateCount = countStates(decisionToDFA);
+            return loaded;
+        }
+        catch (ZipException ex)
+        {
+            throw new IOException("not a DFA snapshot: "+path, ex);
+        }
+    }
+
+    private static void clear(DFA dfa)
+    {
+        dfa.states.clear();
+        if (dfa.isPrecedenceDfa())
+            dfa.s0.edges = new DFAState[0];
+        else
+            dfa.s0 = null;
+    }
+
+    /// Save the parser's DFA if it has learned states since the last load or save, or if the file does not hold a
+    /// current snapshot. Returns whether the file was written.
+    boolean saveIfChanged() throws IOException
+    {
+        ParserATNSimulator interp = interpreter();
+        DFA[] decisionToDFA = interp.decisionToDFA;
+        int n = countStates(decisionToDFA);
+        if (0 == n || (current && n == stateCount))
+            return false;
+
+        // Write to a temporary file and move into place, so that a concurrent run never loads a partial snapshot.
+        Path directory = path.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(directory, path.getFileName().toString(), ".tmp");
+        try
+        {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(
+                Files.newOutputStream(temp)))))
+            {
+                out.writeUTF(MAGIC);
+                out.writeInt(FORMAT);
+                byte[] digest = atnDigest();
+                out.writeInt(digest.length);
+                out.write(digest);
+                out.writeInt(decisionToDFA.length);
+                new Writer(out).write(decisionToDFA);
+            }
+            try
+            {
+                Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            catch (AtomicMoveNotSupportedException ex)
+            {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        finally
+        {
+            Files.deleteIfExists(temp);
+        }
+        current = true;
+        stateCount = n;
+        return true;
+    }
+
+    /// Writes the states of every decision's DFA. Prediction contexts are shared between configurations and form a
+    /// graph through their parents, so they are written once each, parents before children, in a table that
+    /// precedes the states, and referred to by index.
+    private static class Writer
+    {
+        private final DataOutputStream out;
+        private final Field conflictingAlts = conflictingAltsField();
+        private final Map<PredictionContext, Integer> contextIds = new IdentityHashMap<>();
+        private final List<PredictionContext> contexts = new ArrayList<>();
+
+        Writer(DataOutputStream out)
+        {
+            this.out = out;
+        }
+
+        void write(DFA[] decisionToDFA) throws IOException
+        {
+            List<List<DFAState>> statesByDecision = new ArrayList<>(decisionToDFA.length);
+            for (DFA dfa : decisionToDFA)
+            {
+                List<DFAState> states = new ArrayList<>(dfa.states.values());
+                for (DFAState state : states)
+                    for (ATNConfig config : state.configs)
+                        collectContext(config.context);
+                statesByDecision.add(states);
+            }
+            writeContexts();
+            for (int d = 0; d < decisionToDFA.length; d++)
+                writeDFA(decisionToDFA[d], statesByDecision.get(d));
+        }
+
+        private void collectContext(PredictionContext context)
+        {
+            if (null == context || contextIds.containsKey(context))
+                return;
+            // Contexts are acyclic, but can be deep, so walk them with an explicit stack rather than recursion.
+            Deque<PredictionContext> stack = new ArrayDeque<>();
+            stack.push(context);
+            while (!stack.isEmpty())
+            {
+                PredictionContext top = stack.peek();
+                if (contextIds.containsKey(top))
+                {
+                    stack.pop();
+                    continue;
+                }
+                boolean parentsDone = true;
+                for (int i = 0; i < top.size(); i++)
+                {
+                    PredictionContext parent = top.getParent(i);
+                    if (null != parent && !contextIds.containsKey(parent))
+                    {
+                        stack.push(parent);
+                        parentsDone = false;
+                    }
+                }
+                if (parentsDone)
+                {
+                    stack.pop();
+                    contextIds.put(top, contexts.size());
+                    contexts.add(top);
+                }
+            }
+        }
+
+        private int contextId(PredictionContext context)
+        {
+            return null == context ? -1 : contextIds.get(context);
+        }
+
+        private void writeContexts() throws IOException
+        {
+            out.writeInt(contexts.size());
+            for (PredictionContext context : contexts)
+            {
+                if (context == PredictionContext.EMPTY)
+                    out.writeByte(CONTEXT_EMPTY);
+                else if (context instanceof SingletonPredictionContext)
+                {
+                    out.writeByte(CONTEXT_SINGLETON);
+                    out.writeInt(contextId(context.getParent(0)));
+                    out.writeInt(context.getReturnState(0));
+                }
+                else
+                {
+                    out.writeByte(CONTEXT_ARRAY);
+                    out.writeInt(context.size());
+                    for (int i = 0; i < context.size(); i++)
+                    {
+                        out.writeInt(contextId(context.getParent(i)));
+                        out.writeInt(context.getReturnState(i));
+                    }
+                }
+            }
+        }
+
+        private void writeSemanticContext(SemanticContext sc) throws IOException
+        {
+            if (sc == SemanticContext.NONE)
+                out.writeByte(SEMANTIC_NONE);
+            else if (sc instanceof SemanticContext.Predicate)
+            {
+                SemanticContext.Predicate p = (SemanticContext.Predicate)sc;
+                out.writeByte(SEMANTIC_PREDICATE);
+                out.writeInt(p.ruleIndex);
+                out.writeInt(p.predIndex);
+                out.writeBoolean(p.isCtxDependent);
+            }
+            else if (sc instanceof SemanticContext.PrecedencePredicate)
+            {
+                out.writeByte(SEMANTIC_PRECEDENCE);
+                out.writeInt(((SemanticContext.PrecedencePredicate)sc).precedence);
+            }
+            else
+            {
+                boolean and = sc instanceof SemanticContext.AND;
+                SemanticContext[] operands = and ? ((SemanticContext.AND)sc).opnds : ((SemanticContext.OR)sc).opnds;
+                out.writeByte(and ? SEMANTIC_AND : SEMANTIC_OR);
+                out.writeInt(operands.length);
+                for (SemanticContext operand : operands)
+                    writeSemanticContext(operand);
+            }
+        }
+
+        private void writeStateRef(Map<DFAState, Integer> stateIds, DFAState state) throws IOException
+        {
+            Integer id;
+            if (state == ATNSimulator.ERROR)
+                out.writeInt(ERROR_STATE);
+            else if (null == state || null == (id = stateIds.get(state)))
+                out.writeInt(NO_STATE);
+            else
+                out.writeInt(id);
+        }
+
+        private void writeEdges(Map<DFAState, Integer> stateIds, DFAState[] edges) throws IOException
+        {
+            if (null == edges)
+            {
+                out.writeInt(-1);
+                return;
+            }
+            int n = 0;
+            for (DFAState target : edges)
+                if (null != target)
+                    n++;
+            out.writeInt(edges.length);
+            out.writeInt(n);
+            for (int i = 0; i < edges.length; i++)
+                if (null != edges[i])
+                {
+                    out.writeInt(i);
+                    writeStateRef(stateIds, edges[i]);
+                }
+        }
+
+        private void writeDFA(DFA dfa, List<DFAState> states) throws IOException
+        {
+            Map<DFAState, Integer> stateIds = new IdentityHashMap<>();
+            for (DFAState state : states)
+                stateIds.put(state, stateIds.size());
+
+            out.writeInt(states.size());
+            for (DFAState state : states)
+            {
+                ATNConfigSet configs = state.configs;
+                out.writeBoolean(configs.fullCtx);
+                out.writeInt(configs.uniqueAlt);
+                BitSet conflicting;
+                try
+                {
+                    conflicting = (BitSet)conflictingAlts.get(configs);
+                }
+                catch (IllegalAccessException ex)
+                {
+                    throw new IllegalStateException(ex);
+                }
+                if (null == conflicting)
+                    out.writeInt(-1);
+                else
+                {
+                    long[] words = conflicting.toLongArray();
+                    out.writeInt(words.length);
+                    for (long word : words)
+                        out.writeLong(word);
+                }
+                out.writeBoolean(configs.hasSemanticContext);
+                out.writeBoolean(configs.dipsIntoOuterContext);
+                out.writeInt(configs.size());
+                for (ATNConfig config : configs)
+                {
+                    out.writeInt(config.state.stateNumber);
+                    out.writeInt(config.alt);
+                    out.writeInt(contextId(config.context));
+                    writeSemanticContext(config.semanticContext);
+                    out.writeInt(config.reachesIntoOuterContext);
+                }
+
+                out.writeBoolean(state.isAcceptState);
+                out.writeInt(state.prediction);
+                out.writeBoolean(state.requiresFullContext);
+                if (null == state.predicates)
+                    out.writeInt(-1);
+                else
+                {
+                    out.writeInt(state.predicates.length);
+                    for (DFAState.PredPrediction pp : state.predicates)
+                    {
+                        writeSemanticContext(pp.pred);
+                        out.writeInt(pp.alt);
+                    }
+                }
+            }
+            for (DFAState state : states)
+                writeEdges(stateIds, state.edges);
+
+            // The start state; a precedence DFA instead has a placeholder whose edges lead to the start state for
+            // each precedence level.
+            if (dfa.isPrecedenceDfa())
+                writeEdges(stateIds, null == dfa.s0 ? null : dfa.s0.edges);
+            else
+                writeStateRef(stateIds, dfa.s0);
+        }
+    }
+
+    /// Reads what Writer wrote, interning prediction contexts in the parser's shared context cache and adding the
+    /// states to each decision's DFA just as the simulator itself would.
+    private static class Reader
+    {
+        private final DataInputStream in;
+        private final ATN atn;
+        private final DFA[] decisionToDFA;
+        private final PredictionContextCache contextCache;
+        private final Field conflictingAlts = conflictingAltsField();
+        private PredictionContext[] contexts;
+
+        Reader(DataInputStream in, ParserATNSimulator interp)
+        {
+            this.in = in;
+            this.atn = interp.atn;
+            this.decisionToDFA = interp.decisionToDFA;
+            this.contextCache = interp.getSharedContextCache();
+        }
+
+        int read() throws IOException
+        {
+            readContexts();
+            int loaded = 0;
+            for (DFA dfa : decisionToDFA)
+                loaded += readDFA(dfa);
+            return loaded;
+        }
+
+        private PredictionContext contextFor(int id) throws IOException
+        {
+            if (-1 == id)
+                return null;
+            if (id < 0 || id >= contexts.length || null == contexts[id])
+                throw new StreamCorruptedException("bad prediction context reference "+id);
+            return contexts[id];
+        }
+
+        private void readContexts() throws IOException
+        {
+            contexts = new PredictionContext[in.readInt()];
+            for (int i = 0; i < contexts.length; i++)
+            {
+                PredictionContext context;
+                byte tag = in.readByte();
+                switch (tag)
+                {
+                    case CONTEXT_EMPTY:
+                        context = PredictionContext.EMPTY;
+                        break;
+                    case CONTEXT_SINGLETON:
+                        PredictionContext parent = contextFor(in.readInt());
+                        context = SingletonPredictionContext.create(parent, in.readInt());
+                        break;
+                    case CONTEXT_ARRAY:
+                        int n = in.readInt();
+                        PredictionContext[] parents = new PredictionContext[n];
+                        int[] returnStates = new int[n];
+                        for (int j = 0; j < n; j++)
+                        {
+                            parents[j] = contextFor(in.readInt());
+                            returnStates[j] = in.readInt();
+                        }
+                        context = new ArrayPredictionContext(parents, returnStates);
+                        break;
+                    default:
+                        throw new StreamCorruptedException("bad prediction context tag "+tag);
+                }
+                contexts[i] = contextCache.add(context);
+            }
+        }
+
+        private SemanticContext readSemanticContext() throws IOException
+        {
+            byte tag = in.readByte();
+            switch (tag)
+            {
+                case SEMANTIC_NONE:
+                    return SemanticContext.NONE;
+                case SEMANTIC_PREDICATE:
+                    int ruleIndex = in.readInt();
+                    int predIndex = in.readInt();
+                    return new SemanticContext.Predicate(ruleIndex, predIndex, in.readBoolean());
+                case SEMANTIC_PRECEDENCE:
+                    return new SemanticContext.PrecedencePredicate(in.readInt());
+                case SEMANTIC_AND:
+                case SEMANTIC_OR:
+                    int n = in.readInt();
+                    SemanticContext sc = readSemanticContext();
+                    for (int i = 1; i < n; i++)
+                        sc = SEMANTIC_AND == tag ? SemanticContext.and(sc, readSemanticContext())
+                                                 : SemanticContext.or(sc, readSemanticContext());
+                    return sc;
+                default:
+                    throw new StreamCorruptedException("bad semantic context tag "+tag);
+            }
+        }
+
+        private DFAState stateFor(DFAState[] states, int id) throws IOException
+        {
+            if (ERROR_STATE == id)
+                return ATNSimulator.ERROR;
+            if (NO_STATE == id)
+                return null;
+            if (id < 0 || id >= states.length)
+                throw new StreamCorruptedException("bad DFA state reference "+id);
+            return states[id];
+        }
+
+        private DFAState[] readEdges(DFAState[] states) throws IOException
+        {
+            int length = in.readInt();
+            if (-1 == length)
+                return null;
+            DFAState[] edges = new DFAState[length];
+            for (int n = in.readInt(); n > 0; n--)
+            {
+                int i = in.readInt();
+                if (i < 0 || i >= length)
+                    throw new StreamCorruptedException("bad DFA edge index "+i);
+                edges[i] = stateFor(states, in.readInt());
+            }
+            return edges;
+        }
+
+        private int readDFA(DFA dfa) throws IOException
+        {
+            DFAState[] states = new DFAState[in.readInt()];
+            for (int s = 0; s < states.length; s++)
+            {
+                ATNConfigSet configs = new ATNConfigSet(in.readBoolean());
+                int uniqueAlt = in.readInt();
+                BitSet conflicting = null;
+                int words = in.readInt();
+                if (-1 != words)
+                {
+                    long[] bits = new long[words];
+                    for (int i = 0; i < words; i++)
+                        bits[i] = in.readLong();
+                    conflicting = BitSet.valueOf(bits);
+                }
+                boolean hasSemanticContext = in.readBoolean();
+                boolean dipsIntoOuterContext = in.readBoolean();
+                for (int n = in.readInt(); n > 0; n--)
+                {
+                    int stateNumber = in.readInt();
+                    if (stateNumber < 0 || stateNumber >= atn.states.size())
+                        throw new StreamCorruptedException("bad ATN state reference "+stateNumber);
+                    int alt = in.readInt();
+                    PredictionContext context = contextFor(in.readInt());
+                    ATNConfig config = new ATNConfig(atn.states.get(stateNumber), alt, context, readSemanticContext());
+                    config.reachesIntoOuterContext = in.readInt();
+                    configs.add(config);
+                }
+                configs.uniqueAlt = uniqueAlt;
+                configs.hasSemanticContext = hasSemanticContext;
+                configs.dipsIntoOuterContext = dipsIntoOuterContext;
+                try
+                {
+                    conflictingAlts.set(configs, conflicting);
+                }
+                catch (IllegalAccessException ex)
+                {
+                    throw new IllegalStateException(ex);
+                }
+                configs.setReadonly(true);
+
+                DFAState state = new DFAState(configs);
+                state.isAcceptState = in.readBoolean();
+                state.prediction = in.readInt();
+                state.requiresFullContext = in.readBoolean();
+                int predicates = in.readInt();
+                if (-1 != predicates)
+                {
+                    state.predicates = new DFAState.PredPrediction[predicates];
+                    for (int i = 0; i < predicates; i++)
+                    {
+                        SemanticContext pred = readSemanticContext();
+                        state.predicates[i] = new DFAState.PredPrediction(pred, in.readInt());
+                    }
+                }
+                states[s] = state;
+            }
+            for (DFAState state : states)
+                state.edges = readEdges(states);
+
+            synchronized (dfa.states)
+            {
+                for (DFAState state : states)
+                {
+                    state.stateNumber = dfa.states.size();
+                    dfa.states.put(state, state);
+                }
+            }
+            if (dfa.isPrecedenceDfa())
+            {
+                DFAState[] starts = readEdges(states);
+                if (null != starts)
+                    for (int precedence = 0; precedence < starts.length; precedence++)
+                        if (null != starts[precedence])
+                            dfa.setPrecedenceStartState(precedence, starts[precedence]);
+            }
+            else
+                dfa.s0 = stateFor(states, in.readInt());
+            return states.length;
+        }
+    }
+}
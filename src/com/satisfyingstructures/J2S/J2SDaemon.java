@@ -0,0 +1,293 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2016 Torsten Louland
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package com.satisfyingstructures.J2S;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+/// J2SDaemon keeps J2S resident, serving conversion requests from J2SClient over a loopback port, so that the cost of
+/// starting the JVM and of deserialising the parser's ATN and warming its DFA cache is paid once rather than on every
+/// invocation. Each client is served on its own thread, so one slow conversion does not hold up the others.
+///
+/// Any local user can connect to a loopback port, so the daemon only serves clients that can read its token: a random
+/// string it writes on starting to ~/.j2s/daemon-<port>.token, readable only by the user running it.
+///
+/// Protocol: the client connects and sends the token, then its working directory, then its argument count and
+/// arguments (all strings as DataOutput.writeUTF). The daemon runs J2S with those arguments, resolving relative paths
+/// against the client's working directory, and replies with a sequence of frames, each a tag byte followed by tag
+/// specific data, ending with an exit frame. A client sending the wrong token gets just an error and an exit frame.
+class J2SDaemon
+{
+    static final int FRAME_OUT = 'o';   // int length, bytes: data for the client's stdout
+    static final int FRAME_ERR = 'e';   // int length, bytes: data for the client's stderr
+    static final int FRAME_IN = 'i';    // request for the client's stdin, which the client then sends as a sequence of
+                                        // int length, bytes, ending with length 0 at end of input
+    static final int FRAME_EXIT = 'x';  // int status: the request is complete
+
+    private static final int TOKEN_TIMEOUT_MS = 10_000;
+
+    static File tokenFile(int port)
+    {
+        return new File(new File(System.getProperty("user.home"), ".j2s"), "daemon-"+port+".token");
+    }
+
+    /// Writes a fresh token for the port, replacing any left by an earlier daemon, with the file and its directory
+    /// accessible only to the current user.
+    private static String writeToken(int port) throws IOException
+    {
+        byte[] random = new byte[32];
+        new SecureRandom().nextBytes(random);
+        StringBuilder sb = new StringBuilder();
+        for (byte b : random)
+            sb.append(String.format("%02x", b & 0xff));
+        String token = sb.toString();
+
+        Path file = tokenFile(port).toPath();
+        Path dir = file.getParent();
+        if (!Files.isDirectory(dir))
+            Files.createDirectories(dir, ownerOnly("rwx------"));
+        Path temp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp", ownerOnly("rw-------"));
+        try
+        {
+            Files.write(temp, token.getBytes(StandardCharsets.US_ASCII));
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally
+        {
+            Files.deleteIfExists(temp);
+        }
+        file.toFile().deleteOnExit();
+        return token;
+    }
+
+    /// The permissions to create a file with, where the file system has POSIX permissions; elsewhere, none.
+    private static FileAttribute<?>[] ownerOnly(String permissions)
+    {
+        if (!FileSystems.getDefault().supportedFileAttributeViews().contains("posix"))
+            return new FileAttribute<?>[0];
+        return new FileAttribute<?>[]{
+            PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString(permissions))
+        };
+    }
+
+    static String readToken(int port) throws IOException
+    {
+        return new String(Files.readAllBytes(tokenFile(port).toPath()), StandardCharsets.US_ASCII).trim();
+    }
+
+    static int run(String[] args)
+    {
+        int port;
+        try
+        {
+            port = Integer.parseInt(2 == args.length ? args[1] : "");
+        }
+        catch (NumberFormatException ex)
+        {
+            System.err.println("Oops: expected --daemon to be followed by a port number and nothing else.");
+            return 1;
+        }
+        try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress()))
+        {
+            String token = writeToken(server.getLocalPort());
+            System.err.println("J2S: daemon listening on "+server.getLocalSocketAddress()
+                +", token in "+tokenFile(server.getLocalPort()));
+            while (true)
+            {
+                Socket socket;
+                try
+                {
+                    socket = server.accept();
+                }
+                catch (IOException ex)
+                {
+                    System.err.println("J2S: daemon lost client: "+ex);
+                    continue;
+                }
+                Thread thread = new Thread(() -> serveAndClose(socket, token), "J2S client "+socket.getPort());
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+        catch (IOException ex)
+        {
+            System.err.println("Oops: daemon could not listen on port "+port+": "+ex);
+            return 1;
+        }
+    }
+
+    private static void serveAndClose(Socket socket, String token)
+    {
+        try (Socket s = socket)
+        {
+            serve(s, token);
+        }
+        catch (IOException ex)
+        {
+            System.err.println("J2S: daemon lost client: "+ex);
+        }
+    }
+
+    private static void serve(Socket socket, String token) throws IOException
+    {
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        // Don't let a client that never sends its token hold a thread.
+        socket.setSoTimeout(TOKEN_TIMEOUT_MS);
+        byte[] sent = dis.readUTF().getBytes(StandardCharsets.US_ASCII);
+        if (!MessageDigest.isEqual(sent, token.getBytes(StandardCharsets.US_ASCII)))
+        {
+            System.err.println("J2S: daemon refused client with wrong token from port "+socket.getPort());
+            byte[] message = "Oops: daemon refused the request: wrong token\n".getBytes(StandardCharsets.UTF_8);
+            dos.writeByte(FRAME_ERR);
+            dos.writeInt(message.length);
+            dos.write(message);
+            dos.writeByte(FRAME_EXIT);
+            dos.writeInt(1);
+            dos.flush();
+            return;
+        }
+        socket.setSoTimeout(0);
+        File clientDir = new File(dis.readUTF());
+        String[] args = new String[dis.readInt()];
+        for (int i = 0; i < args.length; i++)
+            args[i] = dis.readUTF();
+
+        PrintStream out = new PrintStream(new BufferedOutputStream(new FrameOutputStream(dos, FRAME_OUT), 1 << 16));
+        PrintStream err = new PrintStream(new FrameOutputStream(dos, FRAME_ERR), true);
+        InputStream in = new FrameInputStream(dis, dos);
+        int status;
+        try
+        {
+            status = J2S.run(args, clientDir, in, out, err);
+        }
+        catch (Exception ex)
+        {
+            err.println("J2S: "+ex);
+            status = 1;
+        }
+        out.flush();
+        err.flush();
+        synchronized (dos)
+        {
+            dos.writeByte(FRAME_EXIT);
+            dos.writeInt(status);
+            dos.flush();
+        }
+    }
+
+    /// Sends everything written to it to the client as frames with the given tag. Frames for stdout and stderr can
+    /// be written from several threads (e.g. in batch mode), so each frame is written whole while holding the lock on
+    /// the underlying stream.
+    private static class FrameOutputStream extends OutputStream
+    {
+        private final DataOutputStream dos;
+        private final int tag;
+
+        FrameOutputStream(DataOutputStream dos, int tag) { this.dos = dos; this.tag = tag; }
+
+        @Override public void write(int b) throws IOException
+        {
+            write(new byte[]{(byte)b}, 0, 1);
+        }
+
+        @Override public void write(byte[] b, int off, int len) throws IOException
+        {
+            if (0 == len)
+                return;
+            synchronized (dos)
+            {
+                dos.writeByte(tag);
+                dos.writeInt(len);
+                dos.write(b, off, len);
+            }
+        }
+
+        @Override public void flush() throws IOException
+        {
+            synchronized (dos)
+            {
+                dos.flush();
+            }
+        }
+    }
+
+    /// Reads the client's stdin, asking the client for it only if and when it is first needed.
+    private static class FrameInputStream extends InputStream
+    {
+        private final DataInputStream dis;
+        private final DataOutputStream dos;
+        private boolean requested = false;
+        private boolean ended = false;
+        private int remaining = 0;
+
+        FrameInputStream(DataInputStream dis, DataOutputStream dos) { this.dis = dis; this.dos = dos; }
+
+        private boolean available(int wanted) throws IOException
+        {
+            if (!requested)
+            {
+                requested = true;
+                synchronized (dos)
+                {
+                    dos.writeByte(FRAME_IN);
+                    dos.flush();
+                }
+            }
+            while (!ended && 0 == remaining)
+                if (0 >= (remaining = dis.readInt()))
+                    ended = true;
+            return !ended;
+        }
+
+        @Override public int read() throws IOException
+        {
+            if (!available(1))
+                return -1;
+            remaining--;
+            return dis.readUnsignedByte();
+        }
+
+        @Override public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (0 == len)
+                return 0;
+            if (!available(len))
+                return -1;
+            int n = dis.read(b, off, Math.min(len, remaining));
+            if (n < 0)
+                throw new EOFException("client closed stdin mid frame");
+            remaining -= n;
+            return n;
+        }
+    }
+}
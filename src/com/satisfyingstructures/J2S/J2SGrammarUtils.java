@@ -93,9 +93,12 @@ public class J2SGrammarUtils
         static int count() {return 4;}
     }
 
-    private static HashMap<String, HashSet<String>> swiftKeywordSetsByRestrictionString = new HashMap<>();
-    private static HashSet<String> swiftKeywords = new HashSet<>();
-    private static ArrayList<HashSet<String>> swiftKeywordSetsByRestrictionOrdinal = new ArrayList<>(KeywordRestriction.count());
+    // Swift keywords bucketed by length and first character, with the restrictions on each as a mask of
+    // 1 << KeywordRestriction.ordinal(), so that classifying an identifier is an array lookup and a comparison with
+    // one or two candidates, without hashing it
+    private static final int MAX_KEYWORD_LENGTH = 31;
+    private static final String[][] swiftKeywordsByBucket = new String[(MAX_KEYWORD_LENGTH + 1) << 7][];
+    private static final int[][] swiftKeywordRestrictionsByBucket = new int[(MAX_KEYWORD_LENGTH + 1) << 7][];
     static
     {
         String[] swiftKeywordRestrictions =
@@ -211,29 +214,51 @@ public class J2SGrammarUtils
             "this", "throw", "throws", "transient", "true", "try", "void", "volatile", "while"
         */
         };
-        HashSet<String> keywords;
-        swiftKeywordSetsByRestrictionString.put("all", swiftKeywords);
         for (int i = 0, n = swiftKeywordRestrictions.length & ~1; i < n; i += 2)
         {
             String keyword = swiftKeywordRestrictions[i];
-            swiftKeywords.add(keyword);
             String restrictions = swiftKeywordRestrictions[i+1];
-            int j = restrictions.length();
-            do // once for "" (=unrestricted) if restrictions empty, else once for each single char
-            {
-                String restriction = j > 0 ? restrictions.substring(j-1, j) : "";
-                if (null == (keywords = swiftKeywordSetsByRestrictionString.get(restriction)))
-                    swiftKeywordSetsByRestrictionString.put(restriction, keywords = new HashSet<>());
-                keywords.add(keyword);
-            }
-            while (--j > 0);
+            int mask = 0;
+            if (restrictions.isEmpty())
+                mask = 1 << KeywordRestriction.not_restricted.ordinal();
+            if (-1 != restrictions.indexOf('f'))
+                mask |= 1 << KeywordRestriction.not_in_function.ordinal();
+            if (-1 != restrictions.indexOf('t'))
+                mask |= 1 << KeywordRestriction.not_in_type.ordinal();
+            if (-1 != restrictions.indexOf('v'))
+                mask |= 1 << KeywordRestriction.not_in_variable.ordinal();
+            if (keyword.length() > MAX_KEYWORD_LENGTH || keyword.charAt(0) > 0x7F)
+                throw new IllegalStateException("swift keyword does not fit keyword buckets: " + keyword);
+            int bucket = keywordBucket(keyword);
+            String[] keywords = swiftKeywordsByBucket[bucket];
+            int[] masks = swiftKeywordRestrictionsByBucket[bucket];
+            int count = null == keywords ? 0 : keywords.length;
+            swiftKeywordsByBucket[bucket] = keywords = null == keywords ? new String[1] : Arrays.copyOf(keywords, count + 1);
+            swiftKeywordRestrictionsByBucket[bucket] = masks = null == masks ? new int[1] : Arrays.copyOf(masks, count + 1);
+            keywords[count] = keyword;
+            masks[count] = mask;
         }
-        for (int i = 0; i < KeywordRestriction.count(); i++)
-            swiftKeywordSetsByRestrictionOrdinal.add(null);
-        swiftKeywordSetsByRestrictionOrdinal.set(KeywordRestriction.not_restricted.ordinal(), swiftKeywordSetsByRestrictionString.get(""));
-        swiftKeywordSetsByRestrictionOrdinal.set(KeywordRestriction.not_in_function.ordinal(), swiftKeywordSetsByRestrictionString.get("f"));
-        swiftKeywordSetsByRestrictionOrdinal.set(KeywordRestriction.not_in_type.ordinal(), swiftKeywordSetsByRestrictionString.get("t"));
-        swiftKeywordSetsByRestrictionOrdinal.set(KeywordRestriction.not_in_variable.ordinal(), swiftKeywordSetsByRestrictionString.get("v"));
+    }
+
+    private static int keywordBucket(String identifier)
+    {
+        return identifier.length() << 7 | identifier.charAt(0);
+    }
+
+    /// The restrictions on using identifier in Swift, as a mask of 1 << KeywordRestriction.ordinal(), or 0 if it is
+    /// not a Swift keyword.
+    static public int swiftKeywordRestrictions(String identifier)
+    {
+        int length = identifier.length();
+        if (0 == length || length > MAX_KEYWORD_LENGTH || identifier.charAt(0) > 0x7F)
+            return 0;
+        int bucket = keywordBucket(identifier);
+        String[] keywords = swiftKeywordsByBucket[bucket];
+        if (null != keywords)
+            for (int i = 0; i < keywords.length; i++)
+                if (keywords[i].equals(identifier))
+                    return swiftKeywordRestrictionsByBucket[bucket][i];
+        return 0;
     }
 
     public enum IdentifierContext {
@@ -243,14 +268,53 @@ public class J2SGrammarUtils
         variable_name;
     }
 
+    /// Remembers, for one conversion, what each context climbed through while classifying the use of a keyword
+    /// identifier said about that use, so that classifying the next one can stop at the first ancestor already seen.
+    /// What a context and those above it say is the same whichever identifier below is asking, so the answers are
+    /// exact. Counts lookups and hits, for reporting the hit rate.
+    public static class IdentifierContextCache
+    {
+        private final Map<RuleContext, IdentifierContext> usedForByContext = new IdentityHashMap<>(); // null ==> leave
+        int lookups = 0;
+        int hits = 0;
+    }
+
     static public String replacementForIdentifier(TerminalNode node)
     {
         String identifier = node.getText();
-        if (!swiftKeywords.contains(identifier))
+        return replacementForIdentifier(node, identifier, swiftKeywordRestrictions(identifier), null);
+    }
+
+    /// As above, for the caller that has already found the identifier's keyword restrictions, and that may have a
+    /// cache of identifier contexts for the conversion.
+    static public String replacementForIdentifier(TerminalNode node, String identifier, int restrictions,
+                                                  IdentifierContextCache cache)
+    {
+        if (0 == restrictions)
             return null;
+        IdentifierContext usedFor = identifierContext((RuleContext)node.getParent(), cache);
+        return null != usedFor ? replacementForIdentifierInContext(identifier, restrictions, usedFor) : null;
+    }
+
+    /// How an identifier whose parent is from is used, or null if it should be left untouched.
+    private static IdentifierContext identifierContext(RuleContext from, IdentifierContextCache cache)
+    {
         IdentifierContext usedFor = IdentifierContext.other;
-        outer: for (RuleContext rc = (RuleContext)node.getParent(); null != rc; rc = rc.getParent())
+        RuleContext rc;
+        if (null != cache)
+            cache.lookups++;
+        outer: for (rc = from; null != rc; rc = rc.getParent())
         {
+            if (null != cache)
+            {
+                IdentifierContext cached = cache.usedForByContext.get(rc);
+                if (null != cached || cache.usedForByContext.containsKey(rc))
+                {
+                    cache.hits++;
+                    usedFor = cached;
+                    break;
+                }
+            }
             switch (rc.getRuleIndex())
             {
                 case Java8Parser.RULE_typeVariable:
@@ -310,7 +374,8 @@ public class J2SGrammarUtils
                 case Java8Parser.RULE_annotationTypeDeclaration:
                 case Java8Parser.RULE_annotationTypeElementDeclaration:
                 case Java8Parser.RULE_elementValuePair:
-                    return null; // package names need manual attention - leave untouched
+                    usedFor = null; // package names need manual attention - leave untouched
+                    break outer;
 
                 case Java8Parser.RULE_block:
                 case Java8Parser.RULE_switchBlock:
@@ -321,17 +386,26 @@ public class J2SGrammarUtils
                 case Java8Parser.RULE_annotationTypeBody:
                 case Java8Parser.RULE_elementValueArrayInitializer:
                 case Java8Parser.RULE_arrayInitializer:
-                    return null; // stepping out of a scope without knowing what type of identifier -> ignore
+                    usedFor = null; // stepping out of a scope without knowing what type of identifier -> ignore
+                    break outer;
             }
         }
-        identifier = replacementForIdentifierInContext(identifier, usedFor);
-        return identifier;
+        if (null != cache)
+            for (RuleContext climbed = from; climbed != rc; climbed = climbed.getParent())
+                cache.usedForByContext.put(climbed, usedFor);
+        return usedFor;
     }
 
     static public String replacementForIdentifierInContext(String identifier, IdentifierContext usedFor)
     {
         if (null == identifier)
             return null;
+        return replacementForIdentifierInContext(identifier, swiftKeywordRestrictions(identifier), usedFor);
+    }
+
+    private static String replacementForIdentifierInContext(String identifier, int restrictions,
+                                                            IdentifierContext usedFor)
+    {
         KeywordRestriction kr = KeywordRestriction.not_restricted;
         switch (usedFor)
         {
@@ -339,8 +413,7 @@ public class J2SGrammarUtils
             case type_name:     kr = KeywordRestriction.not_in_type;        break;
             case variable_name: kr = KeywordRestriction.not_in_variable;    break;
         }
-        HashSet<String> keywords = swiftKeywordSetsByRestrictionOrdinal.get(kr.ordinal());
-        if (null != keywords && keywords.contains(identifier))
+        if (0 != (restrictions & 1 << kr.ordinal()))
         {
             identifier = "`" + identifier + "`";
             return identifier;
@@ -0,0 +1,74 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2016 Torsten Louland
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package com.satisfyingstructures.J2S;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/// J2SMappingPacks holds type mappings that only apply to a source file that imports their java package, so that a
+/// file that doesn't use them doesn't pay for looking them up, and packs can grow without slowing every conversion.
+/// J2SConverter adds a pack's mappings, or the one mapping for a single type import, as it sees each import. The packs'
+/// maps are made once and shared; imports of packages without a pack leave nothing behind.
+class J2SMappingPacks
+{
+    private static final Map<String, Map<String, String>> mapsByPackage = new HashMap<>();
+    private static final Map<String, String> none = Collections.emptyMap();
+    static
+    {
+        Map<String, String[]> pairsByPackage = new HashMap<>();
+        pairsByPackage.put("java.util", new String[]{
+                "List",     "Array",
+                "ArrayList","Array",
+                "Map",      "Dictionary",
+                "HashMap",  "Dictionary",
+                "Set",      "Set",
+                "HashSet",  "Set",
+            //  "Vector",   "Array",
+            //  to do: need to add warning where mapping vector to array to ensure sync access with vars of this type
+        });
+        pairsByPackage.put("java.util.concurrent", new String[]{
+                "ConcurrentHashMap",    "Dictionary",
+                "CopyOnWriteArrayList", "Array",
+        });
+        pairsByPackage.put("android.graphics", new String[]{
+                "PointF",   "CGPoint",
+                "RectF",    "CGRect",
+        });
+        for (Map.Entry<String, String[]> entry : pairsByPackage.entrySet())
+        {
+            String[] pairs = entry.getValue();
+            Map<String, String> map = new HashMap<>();
+            for (int i = 0, n = pairs.length & ~1; i < n; i += 2)
+                map.put(pairs[i], pairs[i+1]);
+            mapsByPackage.put(entry.getKey(), Collections.unmodifiableMap(map));
+        }
+    }
+
+    /// The type mappings for the named package, empty if there is no pack for it.
+    static Map<String, String> forPackage(String packageName)
+    {
+        return mapsByPackage.getOrDefault(packageName, none);
+    }
+}
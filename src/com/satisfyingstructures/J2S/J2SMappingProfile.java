@@ -0,0 +1,295 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2016 Torsten Louland
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package com.satisfyingstructures.J2S;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/// J2SMappingProfile is a set of type mappings compiled into a file that can be memory mapped and consulted as it is,
+/// so that thousands of mappings cost next to nothing to load, instead of being read, trimmed, split and hashed from
+/// `-M` arguments on every run. `--compile-profile` writes one and `-m` loads it.
+///
+/// The file holds a header, a minimal perfect hash index and a table of the mappings sorted by type name:
+///
+///     int magic, int format, int count, int bucketCount
+///     int[bucketCount] seeds      per bucket, the seed that sends each of its names to a slot of its own
+///     int[count] hashes           per slot, the folded 64 bit hash of the name there, to reject most misses early
+///     int[count] offsets          per slot, the offset of its mapping within the table
+///     table                       per mapping, int length, chars of the name, int length, chars of the replacement
+///
+/// A name hashes to a bucket, and the bucket's seed then hashes it to its slot, so a lookup reads a seed, a hash and
+/// at most one name, whatever the number of mappings.
+public final class J2SMappingProfile
+{
+    private static final int MAGIC = 0x4A32534D; // "J2SM"
+    private static final int FORMAT = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int MAX_SEED = 1 << 24;
+
+    private final Path path;
+    private final ByteBuffer buffer;
+    private final int count;
+    private final int bucketCount;
+    private final int hashesAt;
+    private final int offsetsAt;
+    private final int tableAt;
+    private final String[] replacements;    // by slot, decoded on first use
+    private byte[] fingerprint = null;
+
+    private J2SMappingProfile(Path path, ByteBuffer buffer) throws IOException
+    {
+        this.path = path;
+        this.buffer = buffer;
+        if (buffer.limit() < HEADER_SIZE || MAGIC != buffer.getInt(0))
+            throw new IOException("not a J2S mapping profile: "+path);
+        if (FORMAT != buffer.getInt(4))
+            throw new IOException("mapping profile is from a different version of J2S, compile it again: "+path);
+        count = buffer.getInt(8);
+        bucketCount = buffer.getInt(12);
+        hashesAt = HEADER_SIZE + 4 * bucketCount;
+        offsetsAt = hashesAt + 4 * count;
+        tableAt = offsetsAt + 4 * count;
+        if (count < 0 || bucketCount < 1 || tableAt < 0 || buffer.limit() < tableAt)
+            throw new IOException("mapping profile is truncated or corrupt: "+path);
+        replacements = new String[count];
+    }
+
+    /// Map the profile in the file at path.
+    public static J2SMappingProfile load(Path path) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            return new J2SMappingProfile(path, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    public String getPath()
+    {
+        return path.toString();
+    }
+
+    /// The number of mappings in the profile.
+    public int size()
+    {
+        return count;
+    }
+
+    /// The replacement to which the profile maps name, or null if it has no mapping for name.
+    public String get(String name)
+    {
+        if (0 == count || null == name)
+            return null;
+        long hash = hash(name);
+        int slot = slot(hash, buffer.getInt(HEADER_SIZE + 4 * bucket(hash, bucketCount)), count);
+        if (buffer.getInt(hashesAt + 4 * slot) != fold(hash))
+            return null;
+        int at = tableAt + buffer.getInt(offsetsAt + 4 * slot);
+        int length = buffer.getInt(at);
+        if (length != name.length())
+            return null;
+        at += 4;
+        for (int i = 0; i < length; i++, at += 2)
+            if (buffer.getChar(at) != name.charAt(i))
+                return null;
+        String replacement = replacements[slot];
+        if (null == replacement)
+        {
+            char[] chars = new char[buffer.getInt(at)];
+            at += 4;
+            for (int i = 0; i < chars.length; i++, at += 2)
+                chars[i] = buffer.getChar(at);
+            replacements[slot] = replacement = new String(chars);
+        }
+        return replacement;
+    }
+
+    /// A digest of the profile's contents, for keys of cached output that depends on them.
+    synchronized byte[] fingerprint()
+    {
+        if (null == fingerprint)
+        {
+            try
+            {
+                MessageDigest md = MessageDigest.getInstance("SHA-256");
+                md.update(buffer.duplicate());
+                fingerprint = md.digest();
+            }
+            catch (NoSuchAlgorithmException ex)
+            {
+                throw new IllegalStateException(ex); // every JRE is required to provide SHA-256
+            }
+        }
+        return fingerprint;
+    }
+
+    // hashing
+
+    private static long hash(String s)
+    {
+        long h = 0xcbf29ce484222325L; // FNV-1a, over chars
+        for (int i = 0, n = s.length(); i < n; i++)
+        {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    private static int fold(long hash)
+    {
+        return (int)(hash ^ (hash >>> 32));
+    }
+
+    private static int mix(long hash, int seed)
+    {
+        long h = hash ^ (seed * 0x9E3779B97F4A7C15L);
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int)h & 0x7fffffff;
+    }
+
+    private static int bucket(long hash, int bucketCount)
+    {
+        return mix(hash, 0) % bucketCount;
+    }
+
+    private static int slot(long hash, int seed, int count)
+    {
+        return mix(hash, seed) % count;
+    }
+
+    // compiling
+
+    /// Compile mappings into a profile file at path, replacing any file already there.
+    public static void compile(Map<String, String> mappings, Path path) throws IOException
+    {
+        List<Map.Entry<String, String>> entries = new ArrayList<>(new TreeMap<>(mappings).entrySet());
+        int count = entries.size();
+        int bucketCount = Math.max(1, (count + 3) / 4);
+        long[] hashes = new long[count];
+        Set<Long> distinct = new HashSet<>();
+        List<List<Integer>> buckets = new ArrayList<>(bucketCount);
+        for (int b = 0; b < bucketCount; b++)
+            buckets.add(new ArrayList<>());
+        for (int e = 0; e < count; e++)
+        {
+            String name = entries.get(e).getKey();
+            if (!distinct.add(hashes[e] = hash(name)))
+                throw new IOException("cannot compile a mapping profile with two names of the same hash, e.g. "+name);
+            buckets.get(bucket(hashes[e], bucketCount)).add(e);
+        }
+
+        // Place the largest buckets first, while there are most free slots, searching for a seed for each that sends
+        // all its names to distinct free slots
+        Integer[] order = new Integer[bucketCount];
+        for (int b = 0; b < bucketCount; b++)
+            order[b] = b;
+        Arrays.sort(order, (a, b) -> buckets.get(b).size() - buckets.get(a).size());
+        int[] seeds = new int[bucketCount];
+        int[] entryInSlot = new int[count];
+        boolean[] taken = new boolean[count];
+        int[] slots = new int[4];
+        for (int b : order)
+        {
+            List<Integer> bucket = buckets.get(b);
+            if (bucket.isEmpty())
+                break;
+            if (slots.length < bucket.size())
+                slots = new int[bucket.size()];
+            int seed = 1;
+            search: for (;; seed++)
+            {
+                if (MAX_SEED < seed)
+                    throw new IOException("could not find a perfect hash for the mappings");
+                for (int i = 0; i < bucket.size(); i++)
+                {
+                    int slot = slots[i] = slot(hashes[bucket.get(i)], seed, count);
+                    if (taken[slot])
+                        continue search;
+                    for (int j = 0; j < i; j++)
+                        if (slots[j] == slot)
+                            continue search;
+                }
+                break;
+            }
+            seeds[b] = seed;
+            for (int i = 0; i < bucket.size(); i++)
+            {
+                taken[slots[i]] = true;
+                entryInSlot[slots[i]] = bucket.get(i);
+            }
+        }
+
+        // Lay out the table of mappings in sorted order
+        int[] offsets = new int[count];
+        int tableSize = 0;
+        for (int e = 0; e < count; e++)
+        {
+            offsets[e] = tableSize;
+            tableSize += 8 + 2 * (entries.get(e).getKey().length() + entries.get(e).getValue().length());
+        }
+        ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + 4 * (bucketCount + 2 * count) + tableSize);
+        out.putInt(MAGIC).putInt(FORMAT).putInt(count).putInt(bucketCount);
+        for (int seed : seeds)
+            out.putInt(seed);
+        for (int slot = 0; slot < count; slot++)
+            out.putInt(fold(hashes[entryInSlot[slot]]));
+        for (int slot = 0; slot < count; slot++)
+            out.putInt(offsets[entryInSlot[slot]]);
+        for (Map.Entry<String, String> entry : entries)
+        {
+            out.putInt(entry.getKey().length());
+            for (char c : entry.getKey().toCharArray())
+                out.putChar(c);
+            out.putInt(entry.getValue().length());
+            for (char c : entry.getValue().toCharArray())
+                out.putChar(c);
+        }
+        Path temp = Files.createTempFile(path.toAbsolutePath().getParent(), "."+path.getFileName(), ".tmp");
+        try
+        {
+            Files.write(temp, out.array());
+            try
+            {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (AtomicMoveNotSupportedException ex)
+            {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        finally
+        {
+            Files.deleteIfExists(temp);
+        }
+    }
+}
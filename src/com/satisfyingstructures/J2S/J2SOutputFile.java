@@ -0,0 +1,174 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2016 Torsten Louland
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package com.satisfyingstructures.J2S;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+/// J2SOutputFile writes a converted file so that it only changes on disk if its content changes. Bytes written are
+/// compared with the existing file as they arrive, and while they match nothing is written. At the first difference,
+/// the output is diverted to a temporary file beside the original, primed with the prefix that matched, and commit()
+/// renames it over the original in one step. Build tools that rebuild anything with a newer timestamp, like Xcode,
+/// then see only the files whose swift really changed, and nothing ever sees a half written file.
+///
+/// Created to replace the file whether or not its content changes, it writes straight to the temporary file, and
+/// commit() always renames it over the original. Either way, closing without committing abandons the output and leaves
+/// the original as it was, e.g. when conversion fails part way.
+class J2SOutputFile extends OutputStream
+{
+    private final Path path;
+    private InputStream existing;   // the rest of the existing file, while the output so far matches it
+    private long matched = 0;       // length of the output that matched the existing file
+    private Path tempPath;          // once the output differs, where it goes instead
+    private OutputStream temp;
+    private byte[] scratch = new byte[0];
+    private boolean committed = false;
+
+    J2SOutputFile(Path path) throws IOException
+    {
+        this(path, true);
+    }
+
+    J2SOutputFile(Path path, boolean onlyIfChanged) throws IOException
+    {
+        this.path = path;
+        if (onlyIfChanged && Files.isRegularFile(path))
+            existing = new BufferedInputStream(Files.newInputStream(path));
+        else
+            diverge();
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+        if (null != existing)
+        {
+            if (existing.read() == (b & 0xff))
+            {
+                matched++;
+                return;
+            }
+            diverge();
+        }
+        temp.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        if (null != existing)
+        {
+            if (scratch.length < len)
+                scratch = new byte[Math.max(len, 8192)];
+            int got = 0, n;
+            while (got < len && 0 < (n = existing.read(scratch, got, len - got)))
+                got += n;
+            int same = 0;
+            while (same < got && scratch[same] == b[off + same])
+                same++;
+            matched += same;
+            if (same == len)
+                return;
+            diverge();
+            off += same;
+            len -= same;
+        }
+        temp.write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        if (null != temp)
+            temp.flush();
+    }
+
+    /// Finish the output, replacing the original file if the output differs from it. Returns whether it did.
+    boolean commit() throws IOException
+    {
+        if (null != existing)
+        {
+            if (-1 == existing.read())
+            {
+                existing.close();
+                existing = null;
+                committed = true;
+                return false;
+            }
+            diverge(); // the existing file is longer
+        }
+        temp.close();
+        try
+        {
+            Files.move(tempPath, path, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException ex)
+        {
+            Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+        committed = true;
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (null != existing)
+            existing.close();
+        if (null != temp)
+        {
+            temp.close();
+            if (!committed)
+                Files.deleteIfExists(tempPath);
+        }
+    }
+
+    // Stop comparing and start writing to a temporary file, beginning with the part of the original that matched.
+    private void diverge() throws IOException
+    {
+        if (null != existing)
+        {
+            existing.close();
+            existing = null;
+        }
+        String name = "."+path.getFileName()+"."+Long.toHexString(ThreadLocalRandom.current().nextLong())+".tmp";
+        tempPath = path.resolveSibling(name);
+        temp = new BufferedOutputStream(Files.newOutputStream(tempPath, StandardOpenOption.CREATE_NEW,
+                                                                         StandardOpenOption.WRITE));
+        if (0 < matched)
+            try (InputStream original = new BufferedInputStream(Files.newInputStream(path)))
+            {
+                byte[] buffer = new byte[8192];
+                long remaining = matched;
+                int n;
+                while (0 < remaining
+                       && 0 < (n = original.read(buffer, 0, (int)Math.min(buffer.length, remaining))))
+                {
+                    temp.write(buffer, 0, n);
+                    remaining -= n;
+                }
+            }
+    }
+}
@@ -0,0 +1,218 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2016 Torsten Louland
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package com.satisfyingstructures.J2S;
+
+import com.satisfyingstructures.J2S.antlr.Java8BaseListener;
+import com.satisfyingstructures.J2S.antlr.Java8Parser;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.*;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/// J2SParseTreeWalker walks a parse tree just as ParseTreeWalker does, firing the same listener events in the same
+/// order, but keeps its own stack of the rules it is inside instead of recursing once per level of the tree. Every
+/// java expression is a chain of a dozen or more nested precedence rules, and a left recursive rule such as
+/// additiveExpression nests once more per operator, so a long string concatenation makes a tree deep enough to
+/// overflow the thread's stack when walked recursively. Here the java stack depth is the same whatever the tree.
+///
+/// It also skips the events a listener ignores. For a listener derived from Java8BaseListener, the first walk with a
+/// listener of its class finds which of the base class's do-nothing methods that class overrides, and from then on
+/// the walker only calls into rules it has enter or exit methods for, and only calls enterEveryRule and the like if
+/// they are overridden. A listener can narrow down the terminals it visits by implementing TerminalTypes.
+class J2SParseTreeWalker extends ParseTreeWalker
+{
+    static final J2SParseTreeWalker DEFAULT = new J2SParseTreeWalker();
+
+    /// Implemented by listeners whose visitTerminal acts on only a few token types, listed by visitedTerminalTypes,
+    /// which must return the same for every instance of a class. The walker then only calls visitTerminal for those.
+    interface TerminalTypes
+    {
+        int[] visitedTerminalTypes();
+    }
+
+    /// Which events a class of listener wants.
+    private static class Dispatch
+    {
+        final boolean everyRule;        // whether it overrides enterEveryRule or exitEveryRule
+        final boolean[] entersRule;     // by rule index, whether it overrides the rule's enter method; null for all
+        final boolean[] exitsRule;      // likewise for exit
+        final boolean terminals;        // whether it overrides visitTerminal
+        final boolean errorNodes;       // whether it overrides visitErrorNode
+        final boolean[] terminalTypes;  // by token type + 1 (for EOF), the terminals it visits; null for all
+
+        /// Found by looking at which methods the listener's class overrides; the first listener of a class is asked
+        /// for the terminals it visits, on behalf of all of them.
+        Dispatch(ParseTreeListener listener)
+        {
+            boolean everyRule = false, terminals = false, errorNodes = false, all = true;
+            boolean[] entersRule = new boolean[Java8Parser.ruleNames.length];
+            boolean[] exitsRule = new boolean[Java8Parser.ruleNames.length];
+            if (listener instanceof Java8BaseListener)
+            {
+                all = false;
+                List<String> ruleNames = Arrays.asList(Java8Parser.ruleNames);
+                for (Class<?> c = listener.getClass(); c != Java8BaseListener.class; c = c.getSuperclass())
+                    for (Method method : c.getDeclaredMethods())
+                    {
+                        if (method.isSynthetic() || Modifier.isStatic(method.getModifiers())
+                         || 1 != method.getParameterCount())
+                            continue;
+                        String name = method.getName();
+                        if (name.equals("enterEveryRule") || name.equals("exitEveryRule"))
+                            everyRule = true;
+                        else if (name.equals("visitTerminal"))
+                            terminals = true;
+                        else if (name.equals("visitErrorNode"))
+                            errorNodes = true;
+                        else if (ParserRuleContext.class.isAssignableFrom(method.getParameterTypes()[0])
+                              && (name.startsWith("enter") || name.startsWith("exit")))
+                        {
+                            boolean enter = name.startsWith("enter");
+                            String rule = name.substring(enter ? 5 : 4);
+                            int ruleIndex = rule.isEmpty() ? -1
+                                          : ruleNames.indexOf(Character.toLowerCase(rule.charAt(0))+rule.substring(1));
+                            if (-1 == ruleIndex)
+                                all = true; // ...not a method we know how to reach, so take no chances
+                            else
+                                (enter ? entersRule : exitsRule)[ruleIndex] = true;
+                        }
+                    }
+            }
+            this.everyRule = all || everyRule;
+            this.entersRule = all ? null : entersRule;
+            this.exitsRule = all ? null : exitsRule;
+            this.terminals = all || terminals;
+            this.errorNodes = all || errorNodes;
+            if (listener instanceof TerminalTypes)
+            {
+                int[] types = ((TerminalTypes)listener).visitedTerminalTypes();
+                int max = Token.EOF;
+                for (int type : types)
+                    max = Math.max(max, type);
+                this.terminalTypes = new boolean[max + 2];
+                for (int type : types)
+                    this.terminalTypes[type + 1] = true;
+            }
+            else
+                this.terminalTypes = null;
+        }
+
+        boolean visitsTerminal(int type)
+        {
+            return null == terminalTypes || (type + 1 < terminalTypes.length && terminalTypes[type + 1]);
+        }
+    }
+
+    private static final Map<Class<?>, Dispatch> dispatchByClass = new ConcurrentHashMap<>();
+
+    @Override
+    public void walk(ParseTreeListener listener, ParseTree t)
+    {
+        walkCountingNodes(listener, t);
+    }
+
+    /// Walk as walk does, returning the number of nodes in the tree as walked, which saves going over the tree again
+    /// to count them.
+    long walkCountingNodes(ParseTreeListener listener, ParseTree t)
+    {
+        Dispatch dispatch = dispatchByClass.computeIfAbsent(listener.getClass(), c -> new Dispatch(listener));
+        if (!(t instanceof ParserRuleContext))
+        {
+            super.walk(listener, t); // ...a terminal, which does not recurse
+            return 1;
+        }
+        long nodeCount = 0;
+        // The rules entered and not yet exited, and for each, its index and the index of the next child to visit
+        ParserRuleContext[] rules = new ParserRuleContext[64];
+        int[] ruleIndexes = new int[64];
+        int[] nextChild = new int[64];
+        int depth = 0;
+        ParserRuleContext rule = (ParserRuleContext)t;
+        for (;;)
+        {
+            if (null != rule)
+            {
+                nodeCount++;
+                int ruleIndex = null != dispatch.entersRule ? rule.getRuleIndex() : -1;
+                if (dispatch.everyRule)
+                    listener.enterEveryRule(rule);
+                if (-1 == ruleIndex || dispatch.entersRule[ruleIndex])
+                    rule.enterRule(listener);
+                if (depth == rules.length)
+                {
+                    rules = Arrays.copyOf(rules, 2 * depth);
+                    ruleIndexes = Arrays.copyOf(ruleIndexes, 2 * depth);
+                    nextChild = Arrays.copyOf(nextChild, 2 * depth);
+                }
+                rules[depth] = rule;
+                ruleIndexes[depth] = ruleIndex;
+                nextChild[depth++] = 0;
+            }
+            ParserRuleContext parent = rules[depth-1];
+            List<ParseTree> children = parent.children;
+            int i = nextChild[depth-1];
+            // The child count is read afresh each time round, as ParseTreeWalker does, in case a listener changed it
+            if (null == children || i >= children.size())
+            {
+                int ruleIndex = ruleIndexes[depth-1];
+                if (-1 == ruleIndex || dispatch.exitsRule[ruleIndex])
+                    parent.exitRule(listener);
+                if (dispatch.everyRule)
+                    listener.exitEveryRule(parent);
+                rules[--depth] = null;
+                if (0 == depth)
+                    return nodeCount;
+                rule = null;
+                continue;
+            }
+            nextChild[depth-1] = i + 1;
+            ParseTree child = children.get(i);
+            rule = null;
+            if (child instanceof ParserRuleContext)
+            {
+                rule = (ParserRuleContext)child; // ...counted as it is entered
+                continue;
+            }
+            nodeCount++;
+            if (child instanceof ErrorNode)
+            {
+                if (dispatch.errorNodes)
+                    listener.visitErrorNode((ErrorNode)child);
+            }
+            else if (dispatch.terminals)
+            {
+                TerminalNode terminal = (TerminalNode)child;
+                if (dispatch.visitsTerminal(terminal.getSymbol().getType()))
+                    listener.visitTerminal(terminal);
+            }
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2016 Torsten Louland
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package com.satisfyingstructures.J2S;
+
+import com.satisfyingstructures.J2S.antlr.Java8Parser;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.TokenStream;
+import org.antlr.v4.runtime.atn.ATN;
+import org.antlr.v4.runtime.atn.ATNState;
+import org.antlr.v4.runtime.atn.DecisionState;
+import org.antlr.v4.runtime.atn.ParserATNSimulator;
+import org.antlr.v4.runtime.atn.PredictionMode;
+
+/// J2SParserATNSimulator is the Java8Parser's prediction engine with a shortcut for the one decision that costs more
+/// than all the others together. The alternatives of methodInvocation_lfno_primary that start with a typeName and with
+/// an expressionName match exactly the same tokens, so no amount of lookahead can tell them apart, but adaptive
+/// prediction cannot know that until both have reached the end of the rule: it falls back to full-context prediction
+/// and simulates the whole of the argument list, and every call nested inside it, before resolving the ambiguity to
+/// the lower numbered alternative. On J2S's own sources that one decision accounts for about a third of the parse.
+///
+/// Where the tokens up to the opening parenthesis leave only one outcome, the shortcut returns the alternative that
+/// prediction would have chosen, so the parse tree is the same; anything it does not recognise (type arguments,
+/// malformed input) goes through normal prediction. The shortcut leaves the shared DFA alone.
+///
+/// It also keeps SLL prediction, tried first for speed, from failing on valid input at the few decisions where it
+/// always goes wrong. Without the parser's actual call stack, SLL prediction follows the end of a rule to every place
+/// the grammar invokes it, so it cannot tell, e.g., whether the conditionalOrExpression just parsed ends the
+/// conditionalExpression or is followed by its '?': a lambda body ending a cast expression can be followed by '?'. It
+/// resolves that conflict to the first alternative, and the parse fails at the '?' of every conditional expression.
+/// The same happens to the postfixExpression loop before the '++' of a postIncrementExpression statement, to the
+/// primary loop before a method called on a class instance creation, and to packageOrTypeName before a method called
+/// on a qualified name. At the decisions of those rules prediction falls back to the full context, as LL prediction
+/// does; everywhere else SLL prediction keeps its speed, and with these it succeeds on the files J2S converts.
+///
+/// Converting with -Dplainprediction leaves it out, for ANTLR's own ParserATNSimulator; see Converter.parse.
+class J2SParserATNSimulator extends ParserATNSimulator
+{
+    private static final int METHOD_NAME_ALT = 1;          // methodName '(' ...
+    private static final int TYPE_NAME_ALT = 2;            // typeName '.' typeArguments? Identifier '(' ...
+    private static final int SUPER_ALT = 4;                // 'super' '.' typeArguments? Identifier '(' ...
+    private static final int TYPE_NAME_SUPER_ALT = 5;      // typeName '.' 'super' '.' typeArguments? Identifier '(' ...
+
+    private static final int methodInvocationDecision = ruleStartDecision(Java8Parser.RULE_methodInvocation_lfno_primary);
+    private static final boolean[] fullContextDecisions = decisionsOfRules(
+        Java8Parser.RULE_conditionalExpression,
+        Java8Parser.RULE_postfixExpression,
+        Java8Parser.RULE_primary,
+        Java8Parser.RULE_packageOrTypeName
+    );
+
+    J2SParserATNSimulator(Java8Parser parser)
+    {
+        super(parser, parser.getATN(), parser.getInterpreter().decisionToDFA, parser.getInterpreter().getSharedContextCache());
+    }
+
+    private static int ruleStartDecision(int ruleIndex)
+    {
+        ATN atn = new Java8Parser(null).getATN();
+        ATNState block = atn.ruleToStartState[ruleIndex].transition(0).target;
+        return ((DecisionState)block).decision;
+    }
+
+    private static boolean[] decisionsOfRules(int... ruleIndexes)
+    {
+        ATN atn = new Java8Parser(null).getATN();
+        boolean[] decisions = new boolean[atn.getNumberOfDecisions()];
+        for (int ruleIndex : ruleIndexes)
+            for (DecisionState state : atn.decisionToState)
+                if (state.ruleIndex == ruleIndex)
+                    decisions[state.decision] = true;
+        return decisions;
+    }
+
+    @Override
+    public int adaptivePredict(TokenStream input, int decision, ParserRuleContext outerContext)
+    {
+        if (decision == methodInvocationDecision)
+        {
+            int alt = predictMethodInvocation(input);
+            if (alt != ATN.INVALID_ALT_NUMBER)
+                return alt;
+        }
+        if (fullContextDecisions[decision] && getPredictionMode() == PredictionMode.SLL)
+        {
+            setPredictionMode(PredictionMode.LL);
+            try
+            {
+                return super.adaptivePredict(input, decision, outerContext);
+            }
+            finally
+            {
+                setPredictionMode(PredictionMode.SLL);
+            }
+        }
+        return super.adaptivePredict(input, decision, outerContext);
+    }
+
+    private static int predictMethodInvocation(TokenStream input)
+    {
+        if (input.LA(1) == Java8Parser.SUPER)
+            return isCallOfIdentifier(input, 2) ? SUPER_ALT : ATN.INVALID_ALT_NUMBER;
+        if (input.LA(1) != Java8Parser.Identifier)
+            return ATN.INVALID_ALT_NUMBER;
+        if (input.LA(2) == Java8Parser.LPAREN)
+            return METHOD_NAME_ALT;
+        // Identifier ('.' Identifier)* - the longest run; the last dotted Identifier may be the method's name
+        int i = 2;
+        while (input.LA(i) == Java8Parser.DOT && input.LA(i+1) == Java8Parser.Identifier)
+            i += 2;
+        if (input.LA(i) == Java8Parser.LPAREN)
+            return TYPE_NAME_ALT; // ambiguous with the expressionName alternative, which prediction resolves this way
+        if (input.LA(i) == Java8Parser.DOT && input.LA(i+1) == Java8Parser.SUPER && isCallOfIdentifier(input, i+2))
+            return TYPE_NAME_SUPER_ALT;
+        return ATN.INVALID_ALT_NUMBER;
+    }
+
+    // '.' Identifier '(' at offset i
+    private static boolean isCallOfIdentifier(TokenStream input, int i)
+    {
+        return input.LA(i) == Java8Parser.DOT && input.LA(i+1) == Java8Parser.Identifier && input.LA(i+2) == Java8Parser.LPAREN;
+    }
+}
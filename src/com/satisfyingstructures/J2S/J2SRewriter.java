@@ -43,12 +43,14 @@ public class J2SRewriter extends ParseTreeRewriter {
 
     public final String lineBreak;      // the standard linebreak used in the token stream
     public final String singleIndent;   // the standard single indent used in the token stream
+    final J2STokenIndex neighbours;     // constant time lookups of line breaks and blanks around a token
 
     public J2SRewriter(ParseTree tree, TokenStream tokens)
     {
         super(tree, tokens);
         lineBreak = discoverLineBreakType(tokens);
         singleIndent = discoverSingelIndentType(tokens);
+        neighbours = new J2STokenIndex(tokens);
     }
 
     static String discoverLineBreakType(TokenStream tokens)
@@ -161,6 +163,15 @@ public class J2SRewriter extends ParseTreeRewriter {
         return null;
     }
 
+    /// The first token after token that is neither whitespace nor a block comment, or null if there is none.
+    public Token getNonBlankTokenFollowing(Token token)
+    {
+        int index = neighbours.nextNonBlank(token.getTokenIndex());
+        if (index < tokens.size())
+            return tokens.get(index);
+        return null;
+    }
+
     // insert comments
 
     enum CommentWhere {
@@ -187,12 +198,13 @@ public class J2SRewriter extends ParseTreeRewriter {
     {
         Token token, tokenWS;
         String s;
+        int lineBreakIndex;
         switch (where)
         {
             case beforeLineBreak:
-                for (token = null; tokenIndex >= 0; tokenIndex--)
-                    if (Java8Parser.LB == (token = tokens.get(tokenIndex)).getType())
-                        break;
+                // line break starting the line, else the first token
+                lineBreakIndex = neighbours.lineBreakAtOrBefore(tokenIndex);
+                token = 0 <= lineBreakIndex ? tokens.get(lineBreakIndex) : 0 <= tokenIndex ? tokens.get(0) : null;
                 s = getText(token); // have to get text, because it could be multiline
                 if (Java8Parser.WS == (tokenWS = getTokenFollowing(token)).getType())
                     s += getText(tokenWS); // Add indent
@@ -207,9 +219,10 @@ public class J2SRewriter extends ParseTreeRewriter {
                 break;
             case afterLineBreak:
             case atEndOfLine:
-                for (token = null; tokenIndex < tokens.size(); tokenIndex++)
-                    if (Java8Parser.LB == (token = tokens.get(tokenIndex)).getType())
-                        break;
+                // line break ending the line, else the last token
+                lineBreakIndex = neighbours.lineBreakAtOrAfter(tokenIndex);
+                token = lineBreakIndex < tokens.size() ? tokens.get(lineBreakIndex)
+                      : tokenIndex < tokens.size() ? tokens.get(tokens.size() - 1) : null;
                 if (where == CommentWhere.afterLineBreak)
                 {
                     s = "";
@@ -270,7 +283,7 @@ public class J2SRewriter extends ParseTreeRewriter {
             // crude and not comprehensive, but good enough for now...
             switch (codePointL)
             {
-                case '=': case ',': case '?': case '}':
+                case '=': case ',': case '?': case '{': case '}':
                 case '*': case '/': case '+': case '-':
                 keepSeparate = true;
                 break;
@@ -293,181 +306,21 @@ public class J2SRewriter extends ParseTreeRewriter {
     {
         // The aim here is to prevent text merging with adjacent tokens (and to separate as looks reasonable).
 
-        // It would be much better if TokenStreamRewriter recorded alterations as token insertions, deletions, moves and
-        // alterations, so that lexical and structural information is retained as much as possible, then we would just
-        // need a final pass before the end of processing to insert essential whitespace tokens. However, it doesn't.
-
-        // The problem is that because the insertions and replacements are expressed as strings, lexical information is
-        // lost, and we can no longer be certain what the type of adjacent tokens is - it may well have already been
-        // rewritten. Hence we have to fallback to testing the adjacent token text - what a pain. Which leads to this
-        // fragile, messy code.
-
-        // Furthermore, when we scan backwards and forwards for adjacent non-empty tokens, we can find 'residue': where
-        // a whole rule context has been replaced with an empty string, getText for the first token returns empty, but
-        // getText for the following token (i.e. inside the subtree of the context) can return the original token text
-        // - rewriter doesn't expect us to be asking for this token's text, and does not apply correct transform - so
-        // we see something that will not actually be output in the final rewritten stream. We can't trust what we see.
-        // (Root cause is TokenStreamRewriter.reduceToSingleOperationPerIndex - operation per index only returns the
-        // right operation for the first index of the range it changes.)
-        // Hard one to workaround.
-
-        // OK, worked around it - here's how: in ParseTreeRewriter, we maintain a changed interval map. When we scan
-        // through adjacent text, if a token is in a changed interval, get the whole changed text, otherwise get the
-        // token text.
-
-        // Gotcha: adding separation whitespace is ok, but removing excess separation can be problematic: on a later
-        // call to getText(), the rewriter can consolidate accumulated rewrite operations, such that a reduction of the
-        // trailing WS token gets merged with whatever transformed text there is for the preceding token, i.e. combined
-        // replacement text for a widened range of tokens, extending beyond the original range of significant (i.e.
-        // non-white) tokens; if there is a further transformation on the significant range of tokens, a
-        // replacement will be requested up to the end of the last significant token, but this now falls in the
-        // middle of the consolidated replacement op, hence TokenStreamRewriter considers it an overlapping replacement
-        // request and throws an exception. !!! What a pain. The ideal time for adjusting whitespace would be in an
-        // extra pass at the end — if we still had lexical information about our replacements; but we do not. :-(
-
-        String textL, textR;
-        Interval interval;
-        int i, tokenIdxL, tokenIdxR, lenL, lenR, wsL, wsR, wsWanted;
-        int tokenIdxL_WSFrom, tokenIdxL_WSTo, tokenIdxR_WSFrom, tokenIdxR_WSTo;
-        int codePointL, codePointR;
-        boolean leftIsIndent;
-        boolean keepSeparate;
+        // Because insertions and replacements are expressed as strings, lexical information is lost, and we can no
+        // longer be certain what the type of adjacent tokens is - it may well have already been rewritten. So we test
+        // the adjacent text instead. Doing that here, at the time of the replacement, meant scanning left and right
+        // through text that may yet be rewritten again, and recording the adjustments as further replacements of the
+        // whitespace tokens - which could then be consolidated with later replacements into overlapping operations.
 
-        text = text.trim();
-
-        // Assess left: count whitespace and stop when first non-white character reached
-        tokenIdxL = from - 1; textL = null;
-        tokenIdxL_WSFrom = tokenIdxL_WSTo = -1;
-        codePointL = 0; wsL = 0; i = -1;
-        assessL: while ( 0 <= tokenIdxL )
-        {
-            if (null != (interval = getChangedIntervalContaining(tokenIdxL, tokenIdxL)))
-                textL = getText(interval);
-            else
-                textL = getText(tokenIdxL, tokenIdxL);
-            for (lenL = textL.length(), i = lenL-1; 0 <= i; i--)
-            {
-                codePointL = textL.codePointAt(i);
-            //  if (Character.SPACE_SEPARATOR != Character.getType(codePointL))
-            //  ...doesn't work as expected - getType('\t') primary category is not SPACE_SEPARATOR, so test explicitly
-                if (' ' != codePointL && '\t' != codePointL)
-                    break assessL;
-                wsL++;
-                tokenIdxL_WSFrom = null != interval ? interval.a : tokenIdxL;
-                if (tokenIdxL_WSTo == -1)
-                    tokenIdxL_WSTo = null != interval ? interval.b : tokenIdxL;
-            }
-            tokenIdxL = null != interval ? interval.a - 1 : tokenIdxL - 1;
-            textL = null;
-        }
-        // leftIsIndent = Character.LINE_SEPARATOR == Character.getType(codePointL)
-        // ...doesn't work as expected - getType('\n') primary category is CONTROL not LINE_SEPARATOR, so test explicitly
-        leftIsIndent = codePointL == '\n' || codePointL == '\r' || (0 > tokenIdxL && 0 > i);
-
-        // Assess right: count whitespace and stop when first non-white character reached
-        tokenIdxR = to + 1; textR = null;
-        tokenIdxR_WSFrom = tokenIdxR_WSTo = -1;
-        codePointR = 0; wsR = 0;
-        assessR: while ( tokenIdxR < tokens.size() )
-        {
-            if (null != (interval = getChangedIntervalContaining(tokenIdxR, tokenIdxR)))
-                textR = getText(interval);
-            else
-                textR = getText(tokenIdxR, tokenIdxR);
-            for (i = 0, lenR = textR.length(); i < lenR; i++)
-            {
-                codePointR = textR.codePointAt(i);
-            //  if (Character.SPACE_SEPARATOR != Character.getType(codePointR))
-            //  ...doesn't work as expected - getType('\t') primary category is not SPACE_SEPARATOR, so test explicitly
-                if (' ' != codePointR && '\t' != codePointR)
-                    break assessR;
-                wsR++;
-                if (tokenIdxR_WSFrom == -1)
-                    tokenIdxR_WSFrom = null != interval ? interval.a : tokenIdxR;
-                tokenIdxR_WSTo = null != interval ? interval.b : tokenIdxR;
-            }
-            tokenIdxR = null != interval ? interval.b + 1 : tokenIdxR + 1;
-            textR = null;
-        }
+        // Instead, the replacement is recorded as such in the edit log, and ParseTreeRewriter adjusts the whitespace
+        // either side of it in the one pass that renders the text, when what is adjacent is final. See
+        // ParseTreeRewriter.Render, which uses recommendKeepSeparate above to decide.
 
-        if (0 < text.length())
-        {
-            keepSeparate = recommendKeepSeparate(codePointL, text.codePointAt(0));
-            wsWanted = keepSeparate ? 1 : 0;
-            if (!leftIsIndent && wsL != wsWanted)
-            {
-                if (wsL == 0)
-                {
-                    // with no white space on the left, we can use the replacement text
-                    text = " " + text;
-                }
-                else
-                {
-                    // We have an excess of whitespace
-                    String s = tokenIdxL == tokenIdxL_WSTo
-                             ? textL
-                             : getText(tokenIdxL_WSFrom, tokenIdxL_WSTo);
-                    s = s.substring(0, s.length() - (wsL - wsWanted)); // trim excess from end
-                    replace(tokenIdxL_WSFrom, tokenIdxL_WSTo, s);
-                }
-            }
+        text = text.trim();
 
-            // Same again for RHS
-            keepSeparate = recommendKeepSeparate(text.codePointAt(text.length()-1), codePointR);
-            wsWanted = keepSeparate ? 1 : 0;
-            if (wsR != wsWanted)
-            {
-                if (wsR == 0)
-                {
-                    // with no white space on the right, we can use the replacement text
-                    text += " ";
-                }
-                else
-                {
-                    // We have an excess of whitespace
-                    String s = tokenIdxR == tokenIdxR_WSFrom
-                             ? textR
-                             : getText(tokenIdxR_WSFrom, tokenIdxR_WSTo);
-                    s = s.substring(wsR - wsWanted); // trim excess from start
-                    replace(tokenIdxR_WSFrom, tokenIdxR_WSTo, s);
-                }
-            }
-        }
+        if (0 == text.length() && !(0 < from && to < tokens.size()-1))
+            replace(from, to, text); // ...deletions at either end of the file are left as they are
         else
-        if (0 < from && to < tokens.size()-1)
-        {
-            keepSeparate = recommendKeepSeparate(codePointL, codePointR);
-            wsWanted = keepSeparate && !leftIsIndent ? 1 : 0;
-            if (leftIsIndent)
-                ; // do nothing to left
-            else if (wsL == wsWanted)
-                wsWanted -= wsL;
-            else if (wsL > wsWanted)
-            {
-                // We have an excess of whitespace
-                String s = tokenIdxL == tokenIdxL_WSTo
-                         ? textL
-                         : getText(tokenIdxL_WSFrom, tokenIdxL_WSTo);
-                s = s.substring(0, s.length() - (wsL - wsWanted)); // trim excess from end
-                replace(tokenIdxL_WSFrom, tokenIdxL_WSTo, s);
-                wsWanted = 0;
-            }
-
-            if (wsR > wsWanted)
-            {
-                String s = tokenIdxR == tokenIdxR_WSFrom
-                         ? textR
-                         : getText(tokenIdxR_WSFrom, tokenIdxR_WSTo);
-                s = s.substring(wsR - wsWanted); // trim excess from start
-                replace(tokenIdxR_WSFrom, tokenIdxR_WSTo, s);
-            }
-            else if (wsR < wsWanted)
-            {
-                text = " ";
-            }
-        }
-
-        // Finally replace the requested interval
-        replace(from, to, text);
+            replaceAdjustingWhitespace(from, to, text);
     }
 }
@@ -33,12 +33,19 @@ import java.util.HashMap;
 public class J2SStringMapper
 {
     private MapperLevel top = null;
+    private J2SMappingProfile profile = null;
 
     // public
 
     public String map(String inType)
     {
-        return null != top ? top.getMapping(inType) : inType;
+        return null != top ? top.getMapping(inType) : fromProfile(inType);
+    }
+
+    /// Consult profile for any type not mapped by any level.
+    public void setProfile(J2SMappingProfile profile)
+    {
+        this.profile = profile;
     }
 
     public void push()
@@ -98,42 +105,87 @@ public class J2SStringMapper
     {
         if (null == mapper)
             return;
-        mapper.parent = top;
+        mapper.setParent(top);
         top = mapper;
     }
 
+    private String fromProfile(String inType)
+    {
+        String outType = null != profile ? profile.get(inType) : null;
+        return null != outType ? outType : inType;
+    }
+
     // helper
 
+    /// A level holds its own mappings, plus a flattened view of those in force at the level, i.e. its own over those
+    /// of its ancestors, so that a lookup is a single probe however deep the nesting. A new level shares the flattened
+    /// view of its parent until it adds a mapping of its own, when it takes a copy. Only the top level is mutable, so a
+    /// view is never changed while a level nested within it is sharing it.
     protected class MapperLevel
     {
         private MapperLevel parent;
         private int nests;
         private Map<String, String> map;
+        private Map<String, String> flattened;
+        private boolean flattenedIsShared;
 
         public MapperLevel()
         {
             nests = 0;
             this.map = new HashMap<>();
+            this.flattened = new HashMap<>();
+        }
+
+        private void setParent(MapperLevel parent)
+        {
+            this.parent = parent;
+            if (null == parent)
+                return;
+            if (map.isEmpty())
+            {
+                flattened = parent.flattened;
+                flattenedIsShared = true;
+                return;
+            }
+            flattened = new HashMap<>(parent.flattened);
+            flattenedIsShared = false;
+            for (Map.Entry<String, String> entry : map.entrySet())
+                flatten(entry.getKey(), entry.getValue());
         }
 
         public void addOneMapping(String from, String to)
         {
             map.put(from, to);
+            if (flattenedIsShared)
+            {
+                flattened = new HashMap<>(flattened);
+                flattenedIsShared = false;
+            }
+            flatten(from, to);
         }
 
         public void addManyMappings(Map<String, String> map)
         {
-            this.map.putAll(map);
+            for (Map.Entry<String, String> entry : map.entrySet())
+                addOneMapping(entry.getKey(), entry.getValue());
+        }
+
+        private void flatten(String from, String to)
+        {
+            if (null == to && null != parent)
+                to = parent.flattened.get(from); // a null mapping defers to the parent
+            if (null == to)
+                flattened.remove(from);
+            else
+                flattened.put(from, to);
         }
 
         public String getMapping(String inType)
         {
             if (null == inType)
                 return null;
-            String outType = map.get(inType);
-            if (null == outType)
-                outType = null != parent ? parent.getMapping(inType) : inType;
-            return outType;
+            String outType = flattened.get(inType);
+            return null != outType ? outType : fromProfile(inType);
         }
     }
 }
@@ -0,0 +1,199 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2016 Torsten Louland
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package com.satisfyingstructures.J2S;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+
+/// J2STimings records the wall clock and CPU time spent in each phase of converting a file, along with how many
+/// tokens, parse tree nodes and rewrite operations there were, and how often classifying the use of an identifier that
+/// is a Swift keyword found the answer already cached, and reports them for each file, or summed over a batch,
+/// as text or as JSON. Phases are timed back to back: ending one starts the next.
+class J2STimings
+{
+    enum Phase {
+        read,       // reading and decoding the input
+        lex,        // tokenizing with Java8Lexer
+        parse,      // Java8Parser.compilationUnit
+        walk,       // walking the tree with J2SConverter
+        render,     // rendering the rewritten text, including passing it to the output as it goes when streaming
+        write       // writing and closing the output, or what remains of it after rendering
+    }
+
+    enum Format {
+        text,
+        json
+    }
+
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private static final boolean cpuTimed = threads.isCurrentThreadCpuTimeSupported() && threads.isThreadCpuTimeEnabled();
+    private static final Phase[] phases = Phase.values();
+
+    final long[] wallNanos = new long[phases.length];
+    final long[] cpuNanos = new long[phases.length];
+    long tokenCount;
+    long nodeCount;
+    long opCount;
+    long identifierContextLookups;
+    long identifierContextHits;
+    int fileCount;
+    private long markWall;
+    private long markCpu;
+
+    private static long cpuNow()
+    {
+        return cpuTimed ? threads.getCurrentThreadCpuTime() : 0;
+    }
+
+    /// Start timing, from now, whatever phase is ended next.
+    void start()
+    {
+        markWall = System.nanoTime();
+        markCpu = cpuNow();
+    }
+
+    void end(Phase phase)
+    {
+        long wall = System.nanoTime();
+        long cpu = cpuNow();
+        wallNanos[phase.ordinal()] += wall - markWall;
+        cpuNanos[phase.ordinal()] += cpu - markCpu;
+        markWall = wall;
+        markCpu = cpu;
+    }
+
+    long wallMillis(Phase phase)
+    {
+        return wallNanos[phase.ordinal()] / 1000000;
+    }
+
+    /// Add in the timings of another conversion, for a batch summary.
+    synchronized void add(J2STimings timings)
+    {
+        for (int i = 0; i < phases.length; i++)
+        {
+            wallNanos[i] += timings.wallNanos[i];
+            cpuNanos[i] += timings.cpuNanos[i];
+        }
+        tokenCount += timings.tokenCount;
+        nodeCount += timings.nodeCount;
+        opCount += timings.opCount;
+        identifierContextLookups += timings.identifierContextLookups;
+        identifierContextHits += timings.identifierContextHits;
+        fileCount++;
+    }
+
+    private static String millis(long nanos)
+    {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+
+    private static String rate(long count, long nanos)
+    {
+        return String.format(Locale.ROOT, "%.1f", 0 < nanos ? count * 1e9 / nanos : 0.0);
+    }
+
+    private static void appendJsonString(StringBuilder sb, String s)
+    {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++)
+        {
+            char c = s.charAt(i);
+            if ('"' == c || '\\' == c)
+                sb.append('\\').append(c);
+            else if (c < ' ')
+                sb.append(String.format("\\u%04x", (int)c));
+            else
+                sb.append(c);
+        }
+        sb.append('"');
+    }
+
+    private void appendText(StringBuilder sb)
+    {
+        for (Phase phase : phases)
+            sb.append(0 == phase.ordinal() ? "" : ", ").append(phase).append(' ')
+              .append(millis(wallNanos[phase.ordinal()])).append(" ms")
+              .append(cpuTimed ? " (cpu "+millis(cpuNanos[phase.ordinal()])+")" : "");
+        sb.append("; ").append(tokenCount).append(" tokens, ").append(nodeCount).append(" nodes, ")
+          .append(opCount).append(" rewrite ops, ").append(identifierContextLookups).append(" keyword identifiers (")
+          .append(identifierContextHits).append(" contexts cached)");
+    }
+
+    private void appendJson(StringBuilder sb)
+    {
+        sb.append("\"tokens\":").append(tokenCount).append(",\"nodes\":").append(nodeCount)
+          .append(",\"ops\":").append(opCount).append(",\"keywordIdentifiers\":").append(identifierContextLookups)
+          .append(",\"contextsCached\":").append(identifierContextHits);
+        for (int t = 0; t < 2; t++)
+        {
+            long[] nanos = 0 == t ? wallNanos : cpuNanos;
+            if (1 == t && !cpuTimed)
+                break;
+            sb.append(0 == t ? ",\"wallMs\":{" : ",\"cpuMs\":{");
+            for (Phase phase : phases)
+                sb.append(0 == phase.ordinal() ? "\"" : ",\"").append(phase).append("\":")
+                  .append(millis(nanos[phase.ordinal()]));
+            sb.append('}');
+        }
+    }
+
+    /// A report of the timings for converting one file.
+    String report(Format format, String file, J2S.ParseStrategy parseStrategy)
+    {
+        StringBuilder sb = new StringBuilder();
+        if (Format.json == format)
+        {
+            sb.append("{\"file\":");
+            appendJsonString(sb, file);
+            sb.append(",\"parseStrategy\":\"").append(parseStrategy.name()).append("\",");
+            appendJson(sb);
+            return sb.append('}').toString();
+        }
+        sb.append("J2S: ").append(file).append(": ");
+        appendText(sb);
+        return sb.toString();
+    }
+
+    /// A report of the timings summed over a batch, which took elapsedNanos in all.
+    synchronized String summary(Format format, long elapsedNanos)
+    {
+        StringBuilder sb = new StringBuilder();
+        if (Format.json == format)
+        {
+            sb.append("{\"summary\":{\"files\":").append(fileCount)
+              .append(",\"elapsedMs\":").append(millis(elapsedNanos))
+              .append(",\"filesPerSecond\":").append(rate(fileCount, elapsedNanos))
+              .append(",\"tokensPerSecond\":").append(rate(tokenCount, elapsedNanos)).append(',');
+            appendJson(sb);
+            return sb.append("}}").toString();
+        }
+        sb.append("J2S: ").append(fileCount).append(" files in ").append(millis(elapsedNanos)).append(" ms, ")
+          .append(rate(fileCount, elapsedNanos)).append(" files/s, ")
+          .append(rate(tokenCount, elapsedNanos)).append(" tokens/s; summed over files: ");
+        appendText(sb);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,87 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2016 Torsten Louland
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package com.satisfyingstructures.J2S;
+
+import com.satisfyingstructures.J2S.antlr.Java8Parser;
+
+import org.antlr.v4.runtime.TokenStream;
+
+/// J2STokenIndex answers questions about the neighbourhood of a token that would otherwise mean scanning the tokens
+/// either side of it, e.g. where the line containing it begins or ends, in constant time. It is filled in by a pass
+/// forward and a pass back over the token types, once the stream is complete, and held in arrays of primitive ints.
+class J2STokenIndex
+{
+    private final int size;
+    private final int[] lineBreakAtOrBefore;    // by token index, that of the nearest line break at or before it, or -1
+    private final int[] lineBreakAtOrAfter;     // ...at or after it, or size
+    private final int[] nextNonBlank;           // ...of the first token after it that is neither WS nor COMMENT, or size
+
+    J2STokenIndex(TokenStream tokens)
+    {
+        size = tokens.size();
+        lineBreakAtOrBefore = new int[size];
+        lineBreakAtOrAfter = new int[size];
+        nextNonBlank = new int[size];
+        int[] types = new int[size];
+        int lineBreak = -1;
+        for (int i = 0; i < size; i++)
+        {
+            int type = types[i] = tokens.get(i).getType();
+            if (Java8Parser.LB == type)
+                lineBreak = i;
+            lineBreakAtOrBefore[i] = lineBreak;
+        }
+        lineBreak = size;
+        int nonBlank = size;
+        for (int i = size - 1; 0 <= i; i--)
+        {
+            int type = types[i];
+            nextNonBlank[i] = nonBlank;
+            if (Java8Parser.LB == type)
+                lineBreak = i;
+            lineBreakAtOrAfter[i] = lineBreak;
+            if (Java8Parser.WS != type && Java8Parser.COMMENT != type)
+                nonBlank = i;
+        }
+    }
+
+    /// The index of the nearest line break token at or before index, or -1 if there is none.
+    int lineBreakAtOrBefore(int index)
+    {
+        return index < 0 ? -1 : lineBreakAtOrBefore[Math.min(index, size - 1)];
+    }
+
+    /// The index of the nearest line break token at or after index, or the size of the stream if there is none.
+    int lineBreakAtOrAfter(int index)
+    {
+        return index >= size ? size : lineBreakAtOrAfter[Math.max(index, 0)];
+    }
+
+    /// The index of the first token after that at index, which must be in the stream, that is neither whitespace nor
+    /// a block comment, or the size of the stream if there is none.
+    int nextNonBlank(int index)
+    {
+        return nextNonBlank[index];
+    }
+}
@@ -0,0 +1,180 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2016 Torsten Louland
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+package com.satisfyingstructures.J2S;
+
+import com.sun.nio.file.SensitivityWatchEventModifier;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/// J2SWatch keeps the output directory of a batch conversion in step with the input directory as java files are
+/// edited. It watches every directory of the input tree, collecting the java files touched by each burst of changes -
+/// an editor's save can be several events, and a branch switch or a refactoring many - until the tree has been quiet
+/// for a short while, then hands the burst to a background thread to reconvert. The parser is warm from the batch run
+/// before watching starts, and each burst converts only the files it touched, so a save shows up in the swift output
+/// well within a second. Deleting a java file deletes its swift file.
+class J2SWatch
+{
+    private static final long QUIET_MILLIS = 100; // a burst of changes ends after this long without another
+
+    private final J2SBatch batch;
+    private final Path inputRoot;
+    private final boolean verbose;
+    private final PrintStream err;
+
+    private final ExecutorService converter = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "J2S watch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    J2SWatch(J2SBatch batch, Path inputRoot, boolean verbose, PrintStream err)
+    {
+        this.batch = batch;
+        this.inputRoot = inputRoot;
+        this.verbose = verbose;
+        this.err = err;
+    }
+
+    /// Watch until interrupted; never returns normally.
+    int run() throws IOException, InterruptedException
+    {
+        try (WatchService watcher = inputRoot.getFileSystem().newWatchService())
+        {
+            registerTree(watcher, inputRoot, null);
+            err.println("J2S: watching "+inputRoot+" for changes");
+            for (;;)
+            {
+                Set<Path> changed = new LinkedHashSet<>();
+                Set<Path> deleted = new LinkedHashSet<>();
+                WatchKey key = watcher.take();
+                do
+                    collect(watcher, key, changed, deleted);
+                while (null != (key = watcher.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS)));
+                converter.execute(() -> update(changed, deleted));
+            }
+        }
+        finally
+        {
+            converter.shutdownNow();
+        }
+    }
+
+    private void collect(WatchService watcher, WatchKey key, Set<Path> changed, Set<Path> deleted)
+    {
+        Path dir = (Path)key.watchable();
+        for (WatchEvent<?> event : key.pollEvents())
+        {
+            if (OVERFLOW == event.kind())
+            {
+                // Events were lost: treat everything as changed.
+                registerTree(watcher, inputRoot, changed);
+                continue;
+            }
+            Path path = dir.resolve((Path)event.context());
+            if (ENTRY_CREATE == event.kind() && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS))
+                registerTree(watcher, path, changed); // files can land in a new directory before it is registered
+            else if (isJavaFile(path))
+            {
+                if (ENTRY_DELETE == event.kind())
+                {
+                    changed.remove(path);
+                    deleted.add(path);
+                }
+                else
+                {
+                    deleted.remove(path);
+                    changed.add(path);
+                }
+            }
+        }
+        key.reset();
+    }
+
+    // Watch dir and every directory beneath it, adding the java files found to found if it is not null.
+    private void registerTree(WatchService watcher, Path dir, Set<Path> found)
+    {
+        try
+        {
+            Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+                @Override public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException
+                {
+                    // Where the watch service polls (as on macOS), the default sensitivity is ten seconds.
+                    d.register(watcher, new WatchEvent.Kind<?>[]{ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE},
+                               SensitivityWatchEventModifier.HIGH);
+                    return FileVisitResult.CONTINUE;
+                }
+                @Override public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+                {
+                    if (null != found && attrs.isRegularFile() && isJavaFile(file))
+                        found.add(file);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        catch (IOException ex)
+        {
+            err.println("J2S: could not watch "+dir+": "+ex);
+        }
+    }
+
+    private static boolean isJavaFile(Path path)
+    {
+        return path.getFileName().toString().endsWith(".java");
+    }
+
+    private void update(Set<Path> changed, Set<Path> deleted)
+    {
+        long start = System.nanoTime();
+        int converted = 0;
+        for (Path javaFile : changed)
+            // A file may have gone again by the time its burst is converted; its deletion is in a later burst.
+            if (Files.isRegularFile(javaFile) && batch.reconvert(javaFile))
+                converted++;
+        int removed = 0;
+        for (Path javaFile : deleted)
+            try
+            {
+                if (batch.removeOutput(javaFile))
+                    removed++;
+            }
+            catch (IOException ex)
+            {
+                err.println("J2S: could not delete output for "+javaFile+": "+ex);
+            }
+        if (verbose || 0 < converted || 0 < removed)
+            err.println("J2S: reconverted "+converted+(1 == converted ? " file" : " files")
+                        +(0 < removed ? ", removed "+removed : "")
+                        +" in "+TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)+" ms");
+    }
+}
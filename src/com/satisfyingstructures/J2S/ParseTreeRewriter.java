@@ -31,221 +31,1119 @@ import org.antlr.v4.runtime.*;
 import org.antlr.v4.runtime.tree.ParseTree;
 import org.antlr.v4.runtime.misc.Interval;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.*;
 
 
 public class ParseTreeRewriter extends TokenStreamRewriter {
 
     /// ChangedIntervalsList records an ordered normalised list of intervals in the rewriter's token stream that will be
-    /// rewritten. The list can be added to, tested, reset and regenerated.
-	class ChangedIntervalsList
+    /// rewritten. The list can be added to, tested, reset and rolled back.
+	static class ChangedIntervalsList
 	{
-		final ArrayList<Interval> intervals = new ArrayList<>(256); // Normalised (overlapping/abutting entries merged), sorted
+        // The intervals are normalised (overlapping/abutting entries merged), hence disjoint and ordered by start alone.
+        // They are kept in a treap - a binary search tree on interval start, kept balanced by also keeping random node
+        // priorities in heap order - so that recording a change and probing for one are both O(log n), where a list
+        // scan was O(n) and made rewriting large files quadratic. Nodes are held in parallel arrays of primitive ints
+        // rather than as objects; index 0 stands for no node.
+        private static final int NIL = 0;
+        private int[] starts = new int[256];
+        private int[] stops = new int[256];
+        private int[] priorities = new int[256];
+        private int[] lefts = new int[256];
+        private int[] rights = new int[256];
+        private int root = NIL;
+        private int lastNode = NIL;     // node with the greatest start
+        private int nextNode = 1;       // next never used node
+        private int freeNodes = NIL;    // released nodes, linked through rights
+        private int random = 0x2545F491;
+        private int splitLess, splitNotLess; // results of split
+        // History, so that changes can be rolled back: for each call to changed, the start of the interval it put in
+        // place, or -1 if it changed nothing, and how many intervals it swallowed, which are stacked in removed.
+        private int changeCount = 0;
+        private int[] changeStarts = new int[256];
+        private int[] changeRemovedCounts = new int[256];
+        private int[] removed = new int[256];   // start, stop pairs
+        private int removedSize = 0;
 
-		void rebuildFromRewriteOps(List<TokenStreamRewriter.RewriteOperation> opList)
-		{
-            intervals.clear();
-            /*  Don't have sufficient access to RewriteOperation subclasses to do this:
-            TokenStreamRewriter.RewriteOperation op;
-            TokenStreamRewriter.ReplaceOp rop;
-            TokenStreamRewriter.InsertOp iop;
-            int i, len, start, stop;
-            for (i = 0, len = opList.size(); i < len; i++)
+        void clear()
+        {
+            root = lastNode = NIL;
+            nextNode = 1;
+            freeNodes = NIL;
+            changeCount = removedSize = 0;
+        }
+
+        /// The number of calls to changed so far, for rollback.
+        int changeCount()
+        {
+            return changeCount;
+        }
+
+        /// Undo the calls to changed after the first count, most recent first. Each is undone by taking out the
+        /// interval it put in place and putting back those it swallowed, so the cost is in proportion to what is undone.
+        void rollback(int count)
+        {
+            while (changeCount > count)
             {
-                if (null == (op = opList.get(i)))
+                int call = --changeCount;
+                int start = changeStarts[call];
+                if (-1 == start)
                     continue;
-                start = stop = op.index;
-                if (op instanceof ReplaceOp)
+                split(root, start);
+                int less = splitLess;
+                split(splitNotLess, start + 1);
+                int combined = splitLess;
+                int greater = splitNotLess;
+                lefts[combined] = rights[combined] = NIL;
+                release(combined);
+                int restored = NIL;
+                int n = changeRemovedCounts[call];
+                removedSize -= 2 * n;
+                for (int i = removedSize, end = removedSize + 2 * n; i < end; i += 2)
+                    restored = merge(restored, newNode(removed[i], removed[i+1]));
+                root = merge(merge(less, restored), greater);
+            }
+            lastNode = root;
+            if (NIL != lastNode)
+                while (NIL != rights[lastNode])
+                    lastNode = rights[lastNode];
+        }
+
+        private void recordChange(int start, int removedCount)
+        {
+            if (changeCount == changeStarts.length)
+            {
+                changeStarts = Arrays.copyOf(changeStarts, 2 * changeCount);
+                changeRemovedCounts = Arrays.copyOf(changeRemovedCounts, 2 * changeCount);
+            }
+            changeStarts[changeCount] = start;
+            changeRemovedCounts[changeCount] = removedCount;
+            changeCount++;
+        }
+
+        /// Stack the intervals of the subtree at node, in order, and return how many.
+        private int recordRemoved(int node)
+        {
+            if (NIL == node)
+                return 0;
+            int count = recordRemoved(lefts[node]);
+            if (removedSize == removed.length)
+                removed = Arrays.copyOf(removed, 2 * removedSize);
+            removed[removedSize++] = starts[node];
+            removed[removedSize++] = stops[node];
+            return count + 1 + recordRemoved(rights[node]);
+        }
+
+        private int newNode(int start, int stop)
+        {
+            int node = freeNodes;
+            if (NIL != node)
+                freeNodes = rights[node];
+            else
+            {
+                if ((node = nextNode++) == starts.length)
                 {
-                    rop = (ReplaceOp)op;
-                    stop = rop.lastIndex;
+                    int capacity = 2 * starts.length;
+                    starts = Arrays.copyOf(starts, capacity);
+                    stops = Arrays.copyOf(stops, capacity);
+                    priorities = Arrays.copyOf(priorities, capacity);
+                    lefts = Arrays.copyOf(lefts, capacity);
+                    rights = Arrays.copyOf(rights, capacity);
                 }
-                changed(start, stop);
             }
-            */
-		}
+            // xorshift is plenty random enough to keep the tree balanced
+            random ^= random << 13;
+            random ^= random >>> 17;
+            random ^= random << 5;
+            starts[node] = start;
+            stops[node] = stop;
+            priorities[node] = random;
+            lefts[node] = rights[node] = NIL;
+            return node;
+        }
 
-		void changed(int start, int stop)
-		{
-            // Rewriting in response to a parse tree walk is generally done linearly going forward, with occasional
-            // larger rewrites reaching further back as the tree walk steps out to wider scopes. Therefore, rather than
-            // use a binary search, we search linearly backwards from the end, implying from most recent.
+        private void release(int node)
+        {
+            if (NIL == node)
+                return;
+            release(lefts[node]);
+            release(rights[node]);
+            rights[node] = freeNodes;
+            freeNodes = node;
+        }
 
-            // We scan backwards for to identify all existing changed intervals that we intersect plus those that abutt
-            // each end if present, then replace them with a combined interval. We also check if the changed interval is
-            // completely contained in a gap, and if so insert it. Note that Interval represents a closed interval -
-            // both ends included.
+        /// Split the subtree at node into those nodes with start less than key, left in splitLess, and the rest, left in
+        /// splitNotLess.
+        private void split(int node, int key)
+        {
+            if (NIL == node)
+            {
+                splitLess = splitNotLess = NIL;
+            }
+            else if (starts[node] < key)
+            {
+                split(rights[node], key);
+                rights[node] = splitLess;
+                splitLess = node;
+            }
+            else
+            {
+                split(lefts[node], key);
+                lefts[node] = splitNotLess;
+                splitNotLess = node;
+            }
+        }
 
-            if (0 == intervals.size())
+        /// Join two subtrees, where every start in the first is less than every start in the second.
+        private int merge(int less, int greater)
+        {
+            if (NIL == less)
+                return greater;
+            if (NIL == greater)
+                return less;
+            if (priorities[less] > priorities[greater])
             {
-                intervals.add(Interval.of(start, stop));
-                return;
+                rights[less] = merge(rights[less], greater);
+                return less;
             }
+            lefts[greater] = merge(less, lefts[greater]);
+            return greater;
+        }
+
+        /// The node of the interval with the greatest start not after index, or NIL if none.
+        private int floor(int index)
+        {
+            // Rewriting in response to a parse tree walk is generally done linearly going forward, so most probes are
+            // answered by the last interval without descending the tree.
+            if (NIL != lastNode && starts[lastNode] <= index)
+                return lastNode;
+            int found = NIL;
+            for (int node = root; NIL != node; )
+            {
+                if (starts[node] <= index)
+                {
+                    found = node;
+                    node = rights[node];
+                }
+                else
+                    node = lefts[node];
+            }
+            return found;
+        }
+
+		void changed(int start, int stop)
+		{
+            // We identify all existing changed intervals that we intersect plus those that abutt each end if present,
+            // then replace them with a combined interval. Note that Interval represents a closed interval - both ends
+            // included.
 
             // Make a test interval that is one larger on each end, so that we can test for intersection with intervals
             // that abutt in before and after
-            Interval intervalChanged = Interval.of(start, stop);
-            Interval intervalToCatch = Interval.of(start > 0 ? start-1 : 0, stop + 1);
-            Interval interval;
-            int gapStart, gapStop;
+            int catchStart = start > 0 ? start-1 : 0;
+            int catchStop = stop + 1;
             int combinedStart = start;
             int combinedStop = stop;
-            final int NO_INDEX = Integer.MAX_VALUE;
-            int intersectingIndexLast = NO_INDEX;
-            int intersectingIndexFirst = NO_INDEX;
-            int insertionIndex = NO_INDEX;
-            int i = intervals.size();
-
-            // Scan backwards for the first intersection with an interval or complete containment by a gap
-            gapStop = Integer.MAX_VALUE;
-            while (0 < i--)
+
+            // Only the last interval starting within reach can extend past the end, and only the last starting before
+            // the catch zone can extend into it from the front; any in between are swallowed entirely.
+            int last = floor(catchStop);
+            if (NIL != last && stops[last] >= catchStart)
             {
-                interval = intervals.get(i);
-                // Look for an intersection
-                if (!intervalToCatch.disjoint(interval))
+                if (starts[last] <= start && stop <= stops[last])
                 {
-                    if (interval.properlyContains(intervalChanged))
-                        return; // already included in changed intervals, so nothing more to do
-                    intersectingIndexFirst = intersectingIndexLast = i;
-                    if (combinedStop < interval.b)
-                        combinedStop = interval.b;
-                    if (combinedStart > interval.a)
-                        combinedStart = interval.a;
+                    recordChange(-1, 0);
+                    return; // already included in changed intervals, so nothing more to do
+                }
+                if (combinedStop < stops[last])
+                    combinedStop = stops[last];
+                int first = floor(catchStart);
+                if (NIL != first && stops[first] >= catchStart && combinedStart > starts[first])
+                    combinedStart = starts[first];
+            }
+
+            // Cut out the intersecting intervals and put the combined interval in their place
+            split(root, combinedStart);
+            int less = splitLess;
+            split(splitNotLess, catchStop + 1);
+            recordChange(combinedStart, recordRemoved(splitLess));
+            release(splitLess);
+            int greater = splitNotLess;
+            int node = newNode(combinedStart, combinedStop);
+            if (NIL == greater)
+                lastNode = node;
+            root = merge(merge(less, node), greater);
+		}
+
+		void changed(Interval interval)
+		{
+            changed(interval.a, interval.b);
+        }
+
+        boolean isChanged(Interval interval)
+        {
+            return isChanged(interval.a, interval.b);
+        }
+
+        boolean isChanged(int from, int to)
+        {
+            // Intervals are disjoint, so only the last one starting not after to can reach back to from
+            int node = floor(to);
+			return NIL != node && stops[node] >= from;
+		}
+
+        Interval getChangedIntervalContaining(int from, int to)
+        {
+            int node = floor(to);
+            if (NIL != node && stops[node] >= from)
+                return Interval.of(starts[node], stops[node]);
+            return null;
+        }
+
+	}
+
+    /// RewriteOp is one instruction to the rewriter, equivalent to the operations that TokenStreamRewriter keeps, which
+    /// are out of our reach in its package.
+    static class RewriteOp
+    {
+        static final int INSERT_BEFORE = 0;
+        static final int REPLACE = 1;
+
+        final int kind;
+        final int instructionIndex;
+        int index;      // token before which inserted text goes, or first token replaced; insertAfter i is at i+1
+        int lastIndex;  // last token replaced, or index for inserts
+        Object text;
+        final boolean adjustWhitespace; // replace for which whitespace either side is adjusted when rendered
+
+        RewriteOp(int kind, int instructionIndex, int index, int lastIndex, Object text, boolean adjustWhitespace)
+        {
+            this.kind = kind;
+            this.instructionIndex = instructionIndex;
+            this.index = index;
+            this.lastIndex = lastIndex;
+            this.text = text;
+            this.adjustWhitespace = adjustWhitespace;
+        }
+    }
+
+    /// UndoRecord notes the state of an operation before reduction changed it, for RewriteProgram.truncate.
+    static class UndoRecord
+    {
+        static final int DISCARDED = 0;     // reduced away
+        static final int INDEXED = 1;       // put in the index
+        static final int ALTERED = 2;       // range or text changed
+
+        final int change;
+        final RewriteOp op;
+        final boolean indexed;
+        final int index;
+        final int lastIndex;
+        final Object text;
+
+        UndoRecord(int change, RewriteOp op, boolean indexed)
+        {
+            this.change = change;
+            this.op = op;
+            this.indexed = indexed;
+            this.index = op.index;
+            this.lastIndex = op.lastIndex;
+            this.text = op.text;
+        }
+
+        void undo(RewriteProgram program)
+        {
+            switch (change)
+            {
+                case DISCARDED:
+                    program.instructions.set(op.instructionIndex, op);
+                    if (indexed)
+                    {
+                        program.setOpAt(op.index, op);
+                        if (op.kind == RewriteOp.REPLACE)
+                            program.replaces.put(op.index, op);
+                    }
                     break;
+                case INDEXED:
+                    program.unindex(op);
+                    break;
+                case ALTERED:
+                    op.index = index;
+                    op.lastIndex = lastIndex;
+                    op.text = text;
+                    break;
+            }
+        }
+    }
+
+    /// RewriteProgram keeps the instructions of one rewrite program so that getText can render any range at a cost
+    /// proportional to the range, rather than that of the whole program.
+    ///
+    /// TokenStreamRewriter.getText reduces the whole instruction list to a single operation per token index every time
+    /// it is called - folding inserts into replaces, combining inserts at the same index, dropping operations that
+    /// later ones make redundant - and leaves the list reduced. Re-reducing the already reduced instructions changes
+    /// nothing, so here the reduction is applied only to the instructions added since the last getText, against an
+    /// index by token position of those already reduced. The same rules apply in the same order, so the text rendered
+    /// is the same, and overlapping operations are reported with the same exceptions, as with TokenStreamRewriter.
+    ///
+    /// Every change reduction makes is recorded in an undo log, in batches that each reduce the instructions between two
+    /// boundaries: the marks handed out by mark, which are where rollback goes back to, and the ends of the reductions
+    /// getText makes. Reducing in two batches either side of a boundary gives the same
+    /// result as in one, just as calling getText there would. Rollback to a count undoes only the batches after it,
+    /// restoring the instructions and index as they were there, so its cost follows the instructions discarded rather
+    /// than those kept.
+    class RewriteProgram
+    {
+        ParseTreeRewriter rewriter()
+        {
+            return ParseTreeRewriter.this;
+        }
+
+        final ArrayList<RewriteOp> instructions = new ArrayList<>(PROGRAM_INIT_SIZE); // null once reduced away
+        int reducedCount = 0;                                   // instructions before this are reduced
+        RewriteOp[] opAt = new RewriteOp[tokens.size() + 2];    // reduced operations by index
+        final TreeMap<Integer, RewriteOp> replaces = new TreeMap<>(); // reduced replace operations by index
+        final ArrayList<UndoRecord> undoLog = new ArrayList<>();
+        final ArrayList<int[]> batches = new ArrayList<>();      // first instruction reduced and undo log size, by batch
+        final TreeSet<Integer> marks = new TreeSet<>();         // marks not yet reached by reduction
+
+        void add(int kind, int index, int lastIndex, Object text, boolean adjustWhitespace)
+        {
+            instructions.add(new RewriteOp(kind, instructions.size(), index, lastIndex, text, adjustWhitespace));
+        }
+
+        private RewriteOp opAt(int index)
+        {
+            return index < opAt.length ? opAt[index] : null;
+        }
+
+        private void setOpAt(int index, RewriteOp op)
+        {
+            if (index >= opAt.length)
+                opAt = Arrays.copyOf(opAt, Math.max(index + 1, 2 * opAt.length));
+            opAt[index] = op;
+        }
+
+        private boolean isLive(RewriteOp op)
+        {
+            return op == instructions.get(op.instructionIndex);
+        }
+
+        /// Reduce away an operation, taking it out of the index if it is there.
+        private void discard(RewriteOp op)
+        {
+            boolean indexed = opAt(op.index) == op;
+            undoLog.add(new UndoRecord(UndoRecord.DISCARDED, op, indexed));
+            instructions.set(op.instructionIndex, null);
+            if (indexed)
+                unindex(op);
+        }
+
+        private void index(RewriteOp op)
+        {
+            undoLog.add(new UndoRecord(UndoRecord.INDEXED, op, true));
+            setOpAt(op.index, op);
+            if (op.kind == RewriteOp.REPLACE)
+                replaces.put(op.index, op);
+        }
+
+        private void unindex(RewriteOp op)
+        {
+            if (opAt(op.index) == op)
+                opAt[op.index] = null;
+            if (op.kind == RewriteOp.REPLACE && replaces.get(op.index) == op)
+                replaces.remove(op.index);
+        }
+
+        private void setText(RewriteOp op, Object text)
+        {
+            undoLog.add(new UndoRecord(UndoRecord.ALTERED, op, false));
+            op.text = text;
+        }
+
+        private void setRange(RewriteOp op, int index, int lastIndex)
+        {
+            undoLog.add(new UndoRecord(UndoRecord.ALTERED, op, false));
+            op.index = index;
+            op.lastIndex = lastIndex;
+        }
+
+        /// The instruction count, noted as a batch boundary for reduction so that rollback to it undoes no more than the
+        /// instructions added after it.
+        int mark()
+        {
+            int count = instructions.size();
+            if (count > reducedCount)
+                marks.add(count);
+            return count;
+        }
+
+        /// Take away the instructions from instructionIndex on, first undoing the reduction of any batch that reached
+        /// them. Back to a mark, those are only the batches of the instructions taken away.
+        void truncate(int instructionIndex)
+        {
+            if (instructionIndex > instructions.size())
+                throw new IndexOutOfBoundsException("rollback: "+instructionIndex+" > "+instructions.size());
+            while (reducedCount > instructionIndex)
+            {
+                int[] batch = batches.remove(batches.size() - 1);
+                for (int i = undoLog.size() - 1; i >= batch[1]; i--)
+                    undoLog.remove(i).undo(this);
+                reducedCount = batch[0];
+            }
+            instructions.subList(instructionIndex, instructions.size()).clear();
+            marks.tailSet(instructionIndex, false).clear();
+        }
+
+        private void addOverlappingReplaces(RewriteOp rop, PriorityQueue<RewriteOp> queue, Set<RewriteOp> queued,
+                                            int afterInstructionIndex)
+        {
+            // Reduced replaces are disjoint, so at most one that starts before rop can reach into it
+            Map.Entry<Integer, RewriteOp> entry = replaces.lowerEntry(rop.index);
+            List<RewriteOp> overlapping = new ArrayList<>(replaces.subMap(rop.index, true, rop.lastIndex, true).values());
+            if (null != entry && entry.getValue().lastIndex >= rop.index)
+                overlapping.add(entry.getValue());
+            for (RewriteOp prevRop : overlapping)
+                if (prevRop.instructionIndex > afterInstructionIndex && queued.add(prevRop))
+                    queue.add(prevRop);
+        }
+
+        void reduce()
+        {
+            while (reducedCount < instructions.size())
+            {
+                Integer mark = marks.higher(reducedCount);
+                reduce(null == mark ? instructions.size() : Math.min(mark, instructions.size()));
+            }
+            // ...the batches now keep those boundaries
+            marks.headSet(reducedCount, true).clear();
+        }
+
+        /// Reduce the instructions from reducedCount up to size, as one batch.
+        private void reduce(int size)
+        {
+            batches.add(new int[]{reducedCount, undoLog.size()});
+
+            // Inserts not yet reduced, by index, in instruction order
+            TreeMap<Integer, List<RewriteOp>> newInserts = new TreeMap<>();
+            for (int i = reducedCount; i < size; i++)
+            {
+                RewriteOp op = instructions.get(i);
+                if (null != op && op.kind != RewriteOp.REPLACE)
+                {
+                    List<RewriteOp> ops = newInserts.get(op.index);
+                    if (null == ops)
+                        newInserts.put(op.index, (ops = new ArrayList<>(1)));
+                    ops.add(op);
+                }
+            }
+
+            // WALK REPLACES
+            for (int i = reducedCount; i < size; i++)
+            {
+                RewriteOp rop = instructions.get(i);
+                if (null == rop || rop.kind != RewriteOp.REPLACE)
+                    continue;
+                // Wipe prior inserts within range; an insert at the start of the range becomes part of the replacement
+                for (int index = rop.index; index <= rop.lastIndex; index++)
+                {
+                    RewriteOp iop = opAt(index);
+                    if (null != iop && iop.kind != RewriteOp.REPLACE)
+                        wipeInsert(rop, iop);
                 }
-                // Create trailing gap and test
-                gapStart = interval.b + 1;
-                if (start >= gapStart && stop <= gapStop)
+                for (List<RewriteOp> iops : newInserts.subMap(rop.index, true, rop.lastIndex, true).values())
+                    for (RewriteOp iop : iops)
+                        if (iop.instructionIndex < i && isLive(iop))
+                            wipeInsert(rop, iop);
+                // Drop any prior replaces contained within, combine overlapping deletes, and otherwise throw unless
+                // disjoint. Prior replaces are considered in instruction order against the range as it stands then,
+                // and combining deletes can widen the range to reach more of them.
+                PriorityQueue<RewriteOp> queue = new PriorityQueue<>(8, (a, b) -> a.instructionIndex - b.instructionIndex);
+                Set<RewriteOp> queued = Collections.newSetFromMap(new IdentityHashMap<>());
+                addOverlappingReplaces(rop, queue, queued, -1);
+                while (!queue.isEmpty())
                 {
-                    insertionIndex = i + 1; // insert before following entry
-                    break;
+                    RewriteOp prevRop = queue.poll();
+                    if (prevRop.index >= rop.index && prevRop.lastIndex <= rop.lastIndex)
+                    {
+                        discard(prevRop);
+                        continue;
+                    }
+                    if (null == prevRop.text && null == rop.text)
+                    {
+                        discard(prevRop);
+                        setRange(rop, Math.min(prevRop.index, rop.index), Math.max(prevRop.lastIndex, rop.lastIndex));
+                        addOverlappingReplaces(rop, queue, queued, prevRop.instructionIndex);
+                    }
+                    else
+                        throw new IllegalArgumentException("replace op boundaries of "+describe(rop)
+                                                           +" overlap with previous "+describe(prevRop));
                 }
-                gapStop = interval.a - 1;
+                index(rop);
             }
-            if (0 > i && insertionIndex == NO_INDEX)
+
+            // WALK INSERTS
+            for (int i = reducedCount; i < size; i++)
             {
-                gapStart = 0;
-                if (start >= gapStart && stop <= gapStop)
-                    insertionIndex = i + 1; // insert before following entry
+                RewriteOp iop = instructions.get(i);
+                if (null == iop || iop.kind == RewriteOp.REPLACE)
+                    continue;
+                // Combine with a prior insert at the same index; the later text comes first
+                RewriteOp prevIop = opAt(iop.index);
+                if (null != prevIop && prevIop.kind != RewriteOp.REPLACE)
+                {
+                    setText(iop, catOpText(iop.text, prevIop.text));
+                    discard(prevIop);
+                }
+                // An insert at the start of a prior replace becomes part of the replacement; one within it is an error
+                Map.Entry<Integer, RewriteOp> entry = replaces.floorEntry(iop.index);
+                RewriteOp rop = null != entry ? entry.getValue() : null;
+                if (null != rop && rop.instructionIndex < i && iop.index <= rop.lastIndex)
+                {
+                    if (iop.index != rop.index)
+                        throw new IllegalArgumentException("insert op "+describe(iop)
+                                                           +" within boundaries of previous "+describe(rop));
+                    setText(rop, catOpText(iop.text, rop.text));
+                    discard(iop);
+                    continue;
+                }
+                if (null != opAt(iop.index))
+                    throw new Error("should only be one op per index");
+                index(iop);
             }
+            reducedCount = size;
+        }
 
-            // Continue scanning backwards until last of intersecting intervals
-            if (insertionIndex == NO_INDEX)
-            while (0 < i--)
+        private void wipeInsert(RewriteOp rop, RewriteOp iop)
+        {
+            if (iop.index == rop.index)
             {
-                interval = intervals.get(i);
-                // Accumulate if we have another intersection
-                if (!intervalToCatch.disjoint(interval))
+                // E.g., insert before 2, delete 2..2; update replace text to include insert before, kill insert
+                setText(rop, String.valueOf(iop.text) + (rop.text != null ? rop.text.toString() : ""));
+            }
+            discard(iop); // ...otherwise it is a no-op
+        }
+
+        String getText(Interval interval)
+        {
+            return render(interval, null);
+        }
+
+        /// Render interval to out as it goes, or when out is null, to the string returned.
+        String render(Interval interval, Writer out)
+        {
+            int start = interval.a;
+            int stop = interval.b;
+            int size = tokens.size();
+
+            // ensure start/end are in range
+            if (stop > size-1)
+                stop = size-1;
+            if (start < 0)
+                start = 0;
+
+            reduce();
+
+            Render render = new Render(this, start, out);
+            boolean lastIndexDone = false;
+            int i = start;
+            while (i <= stop && i < size)
+            {
+                RewriteOp op = opAt(i);
+                Token t = tokens.get(i);
+                lastIndexDone |= i == size-1;
+                if (null == op)
                 {
-                    intersectingIndexFirst = i;
-                    if (combinedStart > interval.a)
-                        combinedStart = interval.a;
+                    // no operation at that index, just dump token
+                    if (t.getType() != Token.EOF)
+                        render.append(t.getText());
+                    i++;
+                }
+                else if (op.kind == RewriteOp.REPLACE)
+                {
+                    if (op.adjustWhitespace)
+                        render.appendAdjustingWhitespace(null == op.text ? "" : op.text.toString());
+                    else if (null != op.text)
+                        render.append(op.text.toString());
+                    i = op.lastIndex + 1;
                 }
                 else
-                    break; // done
+                {
+                    render.append(String.valueOf(op.text));
+                    if (t.getType() != Token.EOF)
+                        render.append(t.getText());
+                    i++;
+                }
+            }
+
+            // include stuff after end if it's last index in buffer, i.e. an insertAfter(lastValidIndex, text)
+            if (stop == size-1)
+                for (int index = lastIndexDone ? size : size-1; index < opAt.length; index++)
+                    if (null != opAt[index])
+                        render.append(String.valueOf(opAt[index].text));
+            return render.finish(stop == size-1 ? opAt.length : i);
+        }
+
+        /// The text that index contributes to the output, ignoring whitespace adjustment, or null for tokens that are
+        /// replaced along with those before them. Used to look for the context either side of a range being rendered.
+        private String renderedTextAt(int index)
+        {
+            RewriteOp op = opAt(index);
+            String text = index < tokens.size() && tokens.get(index).getType() != Token.EOF
+                        ? tokens.get(index).getText() : "";
+            if (null == op)
+            {
+                Map.Entry<Integer, RewriteOp> entry = replaces.lowerEntry(index);
+                return null != entry && entry.getValue().lastIndex >= index ? null : text;
             }
+            if (op.kind == RewriteOp.REPLACE)
+                return null == op.text ? "" : op.text.toString();
+            return String.valueOf(op.text) + text;
+        }
+
+        private RewriteOp replaceCovering(int index)
+        {
+            Map.Entry<Integer, RewriteOp> entry = replaces.floorEntry(index);
+            return null != entry && entry.getValue().lastIndex >= index ? entry.getValue() : null;
+        }
 
-            for (i = intersectingIndexLast; i > intersectingIndexFirst; i--)
-                intervals.remove(i);
-            if (intersectingIndexFirst != NO_INDEX && intersectingIndexFirst < intervals.size())
-                intervals.set(intersectingIndexFirst, Interval.of(combinedStart, combinedStop));
+        private String describe(RewriteOp op)
+        {
+            String name = op.kind == RewriteOp.REPLACE ? (null == op.text ? "DeleteOp" : "ReplaceOp") : "InsertBeforeOp";
+            String at = tokenDescription(op.index);
+            if (op.kind == RewriteOp.REPLACE)
+                at += ".."+tokenDescription(op.lastIndex);
+            return "<"+name+"@"+at+(null == op.text ? "" : ":\""+op.text+"\"")+">";
+        }
+
+        private String tokenDescription(int index)
+        {
+            return index < tokens.size() ? tokens.get(index).toString() : "#"+index;
+        }
+    }
+
+    /// Render accumulates the text of a range being rendered, and adjusts the whitespace either side of replacements
+    /// made by replaceAdjustingWhitespace as it goes, in the one pass. Given a writer, it passes on the text in chunks
+    /// as it goes, holding back only what an adjustment could still change or look at, rather than accumulating it all.
+    ///
+    /// Whitespace here means spaces and tabs. To the left of replacement text, the whitespace is made one space if
+    /// recommendKeepSeparate says the characters either side should be kept apart, or none if not; unless the left is
+    /// an indent, i.e. follows a line break or the start of the file. To the right, the same, except that there is no
+    /// exception for indents, and as the text to the right is not yet known, the adjustment is pending until the next
+    /// character that is not whitespace arrives. Where the replacement is empty, i.e. a deletion, the whitespace
+    /// either side is joined and adjusted as one. Adjustments only ever touch the tail of the text so far.
+    static class Render
+    {
+        private static final int NONE = 0;
+        private static final int RIGHT = 1;     // adjust whitespace following replacement text
+        private static final int JOIN = 2;      // adjust whitespace either side of a deletion
+
+        static final int CHUNK = 1 << 13;
+
+        private final RewriteProgram program;
+        private final int startIndex;
+        private final Writer out;               // where the text goes, if not to the string returned by finish
+        private final StringBuilder buf = new StringBuilder();
+        private int pending = NONE;
+        private int pendingCodePoint;           // last character of replacement text, or first left of a deletion
+        private boolean pendingAfterIndent;     // for a deletion, whether left of it is an indent
+        private int runStart;                   // where in buf the whitespace to adjust starts
+        private int runBefore;                  // how much of that whitespace precedes the range being rendered
+        private int runLeft;                    // for a deletion, how much of that whitespace is left of it
+
+        Render(RewriteProgram program, int startIndex, Writer out)
+        {
+            this.program = program;
+            this.startIndex = startIndex;
+            this.out = out;
+        }
+
+        private static boolean isBlank(int c)
+        {
+            return ' ' == c || '\t' == c;
+        }
+
+        void append(String s)
+        {
+            if (NONE == pending)
+                buf.append(s);
             else
-            if (insertionIndex != NO_INDEX)
-                intervals.add(insertionIndex, Interval.of(combinedStart, combinedStop));
-		}
+            {
+                int n = s.length(), i = 0;
+                while (i < n && isBlank(s.charAt(i)))
+                    i++;
+                buf.append(s, 0, i);
+                if (i < n)
+                {
+                    resolve(s.codePointAt(i), 0);
+                    buf.append(s, i, n);
+                }
+            }
+            if (null != out && NONE == pending && CHUNK <= buf.length())
+                flush();
+        }
 
-		void changed(Interval interval)
-		{
-            changed(interval.a, interval.b);
+        /// Write out the text so far, except for the whitespace at its end and the character before that, which is
+        /// as far back as adjustments reach.
+        private void flush()
+        {
+            int k = buf.length();
+            while (0 < k && isBlank(buf.charAt(k-1)))
+                k--;
+            if (0 < k)
+                k = buf.offsetByCodePoints(k, -1);
+            if (0 == k)
+                return;
+            write(0, k);
+            buf.delete(0, k);
         }
 
-        boolean isChanged(Interval interval)
+        private void write(int from, int to)
         {
-            return isChanged(interval.a, interval.b);
+            try
+            {
+                out.append(buf, from, to);
+            }
+            catch (IOException ex)
+            {
+                throw new UncheckedIOException(ex); // ...unwrapped by writeText
+            }
         }
 
-        boolean isChanged(int from, int to)
+        /// Count the whitespace at the end of the text so far, looking further left than the start of the range being
+        /// rendered if need be. Returns the character before it, with assessedBefore and assessedIndent set.
+        private int assessedBefore, assessedIndent;
+        private int assessLeft()
         {
-            Interval interval;
-            int i = intervals.size();
-            while (0 < i--)
+            int k = buf.length();
+            while (0 < k && isBlank(buf.charAt(k-1)))
+                k--;
+            assessedBefore = 0;
+            if (0 < k)
             {
-                interval = intervals.get(i);
-                if (interval.b < from)
-                    return false;
-                if (interval.a <= to)
-                    return true;
+                int c = buf.codePointBefore(k);
+                assessedIndent = '\n' == c || '\r' == c ? 1 : 0;
+                return c;
             }
-			return false;
-		}
+            for (int index = startIndex - 1; 0 <= index; )
+            {
+                String text = program.renderedTextAt(index);
+                if (null == text)
+                {
+                    index = program.replaceCovering(index).index;
+                    continue;
+                }
+                for (int i = text.length(); 0 < i; i--)
+                {
+                    if (!isBlank(text.charAt(i-1)))
+                    {
+                        int c = text.codePointBefore(i);
+                        assessedIndent = '\n' == c || '\r' == c ? 1 : 0;
+                        return c;
+                    }
+                    assessedBefore++;
+                }
+                index--;
+            }
+            assessedIndent = 1; // start of file
+            return 0;
+        }
 
-        Interval getChangedIntervalContaining(int from, int to)
+        void appendAdjustingWhitespace(String text)
         {
-            Interval interval;
-            int i = intervals.size();
-            while (0 < i--)
+            if (0 == text.length())
             {
-                interval = intervals.get(i);
-                if (interval.b < from)
-                    return null;
-                if (interval.a <= to)
-                    return interval;
+                if (JOIN == pending)
+                    return; // ...the whitespace left of this deletion is right of the previous one, so join it all
+                pending = NONE;
+                pendingCodePoint = assessLeft();
+                pendingAfterIndent = 0 != assessedIndent;
+                runBefore = assessedBefore;
+                runStart = buf.length();
+                while (runStart > 0 && isBlank(buf.charAt(runStart-1)))
+                    runStart--;
+                runLeft = runBefore + buf.length() - runStart;
+                pending = JOIN;
+                return;
+            }
+
+            int c = text.codePointAt(0);
+            if (NONE != pending)
+                resolve(c, 0);
+            int end = buf.length(), k = end;
+            while (0 < k && isBlank(buf.charAt(k-1)))
+                k--;
+            int codePointL = assessLeft();
+            int wsInBuf = end - k;
+            int wsL = wsInBuf + assessedBefore;
+            int wsWanted = recommendKeepSeparate(codePointL, c) ? 1 : 0;
+            if (0 == assessedIndent && wsL != wsWanted)
+            {
+                if (0 == wsL)
+                    buf.append(' ');
+                else
+                    buf.setLength(end - Math.min(wsL - wsWanted, wsInBuf)); // trim excess from end
             }
+            buf.append(text);
+            pending = RIGHT;
+            pendingCodePoint = text.codePointBefore(text.length());
+            runStart = buf.length();
+            runBefore = 0;
+        }
+
+        private boolean recommendKeepSeparate(int codePointL, int codePointR)
+        {
+            return program.rewriter().recommendKeepSeparate(codePointL, codePointR);
+        }
+
+        /// Keep the first count characters of the whitespace being adjusted
+        private void keepFirst(int count)
+        {
+            int keep = count - runBefore;
+            if (keep < buf.length() - runStart)
+                buf.setLength(runStart + Math.max(0, keep));
+        }
+
+        /// Keep the last count characters of the whitespace being adjusted, of which after more follow the text so far
+        private void keepLast(int count, int after)
+        {
+            int inBuf = buf.length() - runStart;
+            int remove = inBuf + after - count;
+            if (0 < remove)
+                buf.delete(runStart, runStart + Math.min(remove, inBuf));
+        }
+
+        /// Adjust the pending whitespace now that the next character, c, is known; after is how much more whitespace
+        /// precedes it beyond the text so far.
+        private void resolve(int c, int after)
+        {
+            int ws = runBefore + buf.length() - runStart + after;
+            if (RIGHT == pending)
+            {
+                int wsWanted = recommendKeepSeparate(pendingCodePoint, c) ? 1 : 0;
+                if (0 == ws && 1 == wsWanted)
+                    buf.append(' ');
+                else if (ws > wsWanted)
+                    keepLast(wsWanted, after); // trim excess from start
+            }
+            else
+            {
+                int wsR = ws - runLeft;
+                int wsWanted = recommendKeepSeparate(pendingCodePoint, c) && !pendingAfterIndent ? 1 : 0;
+                if (pendingAfterIndent)
+                    keepFirst(runLeft);
+                else if (runLeft >= wsWanted)
+                    keepFirst(wsWanted);
+                else if (wsR > wsWanted)
+                    keepLast(wsWanted, after);
+                else if (0 == wsR)
+                    buf.append(' ');
+            }
+            pending = NONE;
+        }
+
+        /// Settle any pending adjustment by looking right of the rendered range from index, and return the text, or
+        /// when writing it out, write the rest and return null.
+        String finish(int index)
+        {
+            if (NONE != pending)
+            {
+                int after = 0, c = 0;
+                int size = program.rewriter().tokens.size();
+                look: for ( ; index < program.opAt.length && (index < size || null != program.opAt[index]); )
+                {
+                    String text = program.renderedTextAt(index);
+                    RewriteOp op = program.opAt(index);
+                    index = null != op && op.kind == RewriteOp.REPLACE ? op.lastIndex + 1 : index + 1;
+                    if (null == text)
+                        continue;
+                    for (int i = 0; i < text.length(); i++)
+                    {
+                        if (!isBlank(text.charAt(i)))
+                        {
+                            c = text.codePointAt(i);
+                            break look;
+                        }
+                        after++;
+                    }
+                }
+                resolve(c, after);
+            }
+            if (null == out)
+                return buf.toString();
+            write(0, buf.length());
             return null;
         }
+    }
 
-	}
+    /// Whether text ending with codePointL and text starting with codePointR should be kept separate by whitespace,
+    /// for replaceAdjustingWhitespace. Here, only identifiers are kept apart; subclasses know their language better.
+    boolean recommendKeepSeparate(int codePointL, int codePointR)
+    {
+        return Character.isJavaIdentifierPart(codePointL) && Character.isJavaIdentifierPart(codePointR);
+    }
 
     final ParseTree tree;
     final Map<String, ChangedIntervalsList> changedIntervalsByProgram;
+    final Map<String, RewriteProgram> rewriteProgramsByName;
 
     public ParseTreeRewriter(ParseTree tree, TokenStream tokens) {
         super(tokens);
 		this.changedIntervalsByProgram = new HashMap();
 		this.changedIntervalsByProgram.put("default", new ChangedIntervalsList());
+        this.rewriteProgramsByName = new HashMap<>();
         this.tree = tree;
     }
 
-    // changed intervals
+    private RewriteProgram getRewriteProgram(String programName)
+    {
+        RewriteProgram program = rewriteProgramsByName.get(programName);
+        if (null == program)
+            rewriteProgramsByName.put(programName, (program = new RewriteProgram()));
+        return program;
+    }
+
+    private ChangedIntervalsList getChangedIntervals(String programName)
+    {
+		ChangedIntervalsList changedIntervals = changedIntervalsByProgram.get(programName);
+        if (null == changedIntervals)
+            changedIntervalsByProgram.put(programName, (changedIntervals = new ChangedIntervalsList()));
+        return changedIntervals;
+    }
+
+    /// The number of instructions in the program so far.
+    public int getInstructionCount(String programName)
+    {
+        RewriteProgram program = rewriteProgramsByName.get(programName);
+        return null == program ? 0 : program.instructions.size();
+    }
+
+    public int getInstructionCount()
+    {
+        return getInstructionCount(DEFAULT_PROGRAM_NAME);
+    }
+
+    /// The number of instructions in the program so far, to pass to rollback later to abandon those added since, e.g.
+    /// to back out of a speculative rewrite. Rollback to a mark costs in proportion to the instructions abandoned.
+    public int mark(String programName)
+    {
+        RewriteProgram program = rewriteProgramsByName.get(programName);
+        return null == program ? 0 : program.mark();
+    }
+
+    public int mark()
+    {
+        return mark(DEFAULT_PROGRAM_NAME);
+    }
+
+    // rewrite operations - all others are implemented in terms of these
 
 	@Override public void rollback(String programName, int instructionIndex)
 	{
-		super.rollback(programName, instructionIndex);
+        RewriteProgram program = rewriteProgramsByName.get(programName);
+        if (null == program)
+            return;
+        program.truncate(instructionIndex);
+        // ...one change is recorded in the changed intervals for each instruction
 		ChangedIntervalsList changedIntervals = changedIntervalsByProgram.get(programName);
 		if (null != changedIntervals)
-			changedIntervals.rebuildFromRewriteOps(programs.get(programName));
+			changedIntervals.rollback(instructionIndex);
 	}
 
 	@Override public void insertBefore(String programName, int index, Object text)
 	{
-		super.insertBefore(programName, index, text);
-		ChangedIntervalsList changedIntervals = changedIntervalsByProgram.get(programName);
-        if (null == changedIntervals)
-            changedIntervalsByProgram.put(programName, (changedIntervals = new ChangedIntervalsList()));
-		changedIntervals.changed(index, index);
+        getRewriteProgram(programName).add(RewriteOp.INSERT_BEFORE, index, index, text, false);
+		getChangedIntervals(programName).changed(index, index);
+	}
+
+	@Override public void insertAfter(String programName, int index, Object text)
+	{
+        // to insert after, just insert before next index (even if past end)
+        insertBefore(programName, index + 1, text);
 	}
 
 	@Override public void replace(String programName, int from, int to, Object text)
 	{
-		super.replace(programName, from, to, text);
+        if (from > to || from < 0 || to < 0 || to >= tokens.size())
+            throw new IllegalArgumentException("replace: range invalid: "+from+".."+to+"(size="+tokens.size()+")");
+        getRewriteProgram(programName).add(RewriteOp.REPLACE, from, to, text, false);
+		getChangedIntervals(programName).changed(from, to);
+	}
+
+    /// Replace, as replace does, but with the whitespace either side adjusted when the text is rendered, according to
+    /// recommendKeepSeparate. See Render.
+    public void replaceAdjustingWhitespace(String programName, int from, int to, String text)
+    {
+        if (from > to || from < 0 || to < 0 || to >= tokens.size())
+            throw new IllegalArgumentException("replace: range invalid: "+from+".."+to+"(size="+tokens.size()+")");
+        getRewriteProgram(programName).add(RewriteOp.REPLACE, from, to, text, true);
+		getChangedIntervals(programName).changed(from, to);
+    }
+
+    public void replaceAdjustingWhitespace(int from, int to, String text)
+    {
+        replaceAdjustingWhitespace(DEFAULT_PROGRAM_NAME, from, to, text);
+    }
+
+    /// Whether the text of interval could differ from the original: whether anything in it has changed, or when it
+    /// reaches the last token, whether anything has been inserted after that, which is rendered along with it.
+    private boolean mayBeChanged(String programName, Interval interval)
+    {
 		ChangedIntervalsList changedIntervals = changedIntervalsByProgram.get(programName);
         if (null == changedIntervals)
-            changedIntervalsByProgram.put(programName, (changedIntervals = new ChangedIntervalsList()));
-		changedIntervals.changed(from, to);
-	}
+            return true;
+        return changedIntervals.isChanged(interval.a, interval.b >= tokens.size()-1 ? Integer.MAX_VALUE : interval.b);
+    }
 
 	@Override public String getText(String programName, Interval interval)
 	{
-        // super.getText is very expensive - avoid it if we can.
-		ChangedIntervalsList changedIntervals = changedIntervalsByProgram.get(programName);
-		if (null != changedIntervals && !changedIntervals.isChanged(interval))
+        // Rendering a changed range is much more expensive than taking the original text - avoid it if we can.
+		if (!mayBeChanged(programName, interval))
 			return this.tokens.getText(interval);
-		return super.getText(programName, interval);
+        RewriteProgram program = rewriteProgramsByName.get(programName);
+        if (null == program || program.instructions.isEmpty())
+            return this.tokens.getText(interval); // no instructions to execute
+		return program.getText(interval);
 	}
 
+    /// Write the text that getText would return to writer, as it is rendered, so that the whole of it is never held in
+    /// memory at once. The writer is not flushed.
+    public void writeText(String programName, Interval interval, Writer writer) throws IOException
+    {
+        RewriteProgram program = rewriteProgramsByName.get(programName);
+		if (!mayBeChanged(programName, interval) || null == program || program.instructions.isEmpty())
+        {
+            // As for tokens.getText(interval)
+            if (interval.a < 0 || interval.b < 0)
+                return;
+            for (int i = interval.a, stop = Math.min(interval.b, tokens.size()-1); i <= stop; i++)
+            {
+                Token t = tokens.get(i);
+                if (t.getType() == Token.EOF)
+                    break;
+                writer.write(t.getText());
+            }
+            return;
+        }
+        try
+        {
+            program.render(interval, writer);
+        }
+        catch (UncheckedIOException ex)
+        {
+            throw ex.getCause();
+        }
+    }
+
+    public void writeText(Writer writer) throws IOException
+    {
+        writeText(DEFAULT_PROGRAM_NAME, Interval.of(0, tokens.size()-1), writer);
+    }
+
+    // changed intervals
+
 	public boolean tokenRangeIsChanged(String programName, int from, int to)
     {
         ChangedIntervalsList changedIntervals = changedIntervalsByProgram.get(programName);